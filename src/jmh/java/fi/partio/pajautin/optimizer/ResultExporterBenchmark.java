@@ -0,0 +1,64 @@
+package fi.partio.pajautin.optimizer;
+
+import fi.partio.pajautin.optimizer.engine.SolvedProblem;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Each of the ResultExporter writers, writing to a temporary directory
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResultExporterBenchmark {
+
+    String dir;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("pajautin-benchmark").toString();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (File file : new File(dir).listFiles()) file.delete();
+        new File(dir).delete();
+    }
+
+    @Benchmark
+    public void writeParticipantsAsJson(SolvedProblem state) {
+        ResultExporter.writeParticipantsAsJson(state.problem, dir);
+    }
+
+    @Benchmark
+    public void writeProgramsAsJson(SolvedProblem state) {
+        ResultExporter.writeProgramsAsJson(state.problem, dir);
+    }
+
+    @Benchmark
+    public void writeParticipantsAsCSV(SolvedProblem state) {
+        ResultExporter.writeParticipantsAsCSV(state.problem, dir);
+    }
+
+    @Benchmark
+    public void writeProgramsAsCSV(SolvedProblem state) {
+        ResultExporter.writeProgramsAsCSV(state.problem, dir);
+    }
+
+    @Benchmark
+    public void writeProgramAsSQL(SolvedProblem state) {
+        ResultExporter.writeProgramAsSQL(state.problem, dir);
+    }
+
+    @Benchmark
+    public void writeParticipantRegistrationsAsSQL(SolvedProblem state) {
+        ResultExporter.writeParticipantRegistrationsAsSQL(state.problem, dir);
+    }
+}
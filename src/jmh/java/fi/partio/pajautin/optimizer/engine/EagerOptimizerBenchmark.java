@@ -0,0 +1,131 @@
+package fi.partio.pajautin.optimizer.engine;
+
+import fi.partio.pajautin.optimizer.WorkloadGenerator;
+import fi.partio.pajautin.optimizer.member.Problem;
+import fi.partio.pajautin.optimizer.member.ProblemDefinition;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole EagerOptimizer run and each of its phases separately. The phases before the benchmarked one are run
+ * in the setup of each invocation, so only the phase itself is measured.
+ *
+ * Run with -prof gc to get the allocation rate; sample time mode reports the p99 latency.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class EagerOptimizerBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Data {
+        @Param({"1000", "10000", "100000"})
+        public int participants;
+
+        ProblemDefinition definition;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            definition = new WorkloadGenerator(participants, 42).generate().toProblemDefinition();
+        }
+    }
+
+    /**
+     * Problem and optimizer with given number of phases already run
+     */
+    public abstract static class PhaseState {
+        Problem problem;
+        EagerOptimizer optimizer;
+        private long seed = 42;
+
+        void prepare(Data data, int phasesBefore) {
+            if (problem == null) problem = new Problem(data.definition);
+            problem.reset();
+            optimizer = new EagerOptimizer(problem, seed++);
+            optimizer.setVerbose(false);
+            if (phasesBefore > 0) optimizer.resolveFixedCases();
+            if (phasesBefore > 1) optimizer.allocatePrograms();
+            if (phasesBefore > 2) optimizer.assignRemainingParticipants();
+            if (phasesBefore > 3) optimizer.tryToAllocateUnallocatedParticipants();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Initial extends PhaseState {
+        @Setup(Level.Invocation)
+        public void setup(Data data) {
+            prepare(data, 0);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class FixedCasesResolved extends PhaseState {
+        @Setup(Level.Invocation)
+        public void setup(Data data) {
+            prepare(data, 1);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ProgramsAllocated extends PhaseState {
+        @Setup(Level.Invocation)
+        public void setup(Data data) {
+            prepare(data, 2);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ParticipantsAssigned extends PhaseState {
+        @Setup(Level.Invocation)
+        public void setup(Data data) {
+            prepare(data, 3);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class UnallocatedReallocated extends PhaseState {
+        @Setup(Level.Invocation)
+        public void setup(Data data) {
+            prepare(data, 4);
+        }
+    }
+
+    @Benchmark
+    public Problem optimize(Initial state) {
+        state.optimizer.optimize();
+        return state.problem;
+    }
+
+    @Benchmark
+    public Problem resolveFixedCases(Initial state) {
+        state.optimizer.resolveFixedCases();
+        return state.problem;
+    }
+
+    @Benchmark
+    public Problem allocatePrograms(FixedCasesResolved state) {
+        state.optimizer.allocatePrograms();
+        return state.problem;
+    }
+
+    @Benchmark
+    public Problem assignRemainingParticipants(ProgramsAllocated state) {
+        state.optimizer.assignRemainingParticipants();
+        return state.problem;
+    }
+
+    @Benchmark
+    public Problem tryToAllocateUnallocatedParticipants(ParticipantsAssigned state) {
+        state.optimizer.tryToAllocateUnallocatedParticipants();
+        return state.problem;
+    }
+
+    @Benchmark
+    public Problem tryToFindPeopleForProgramsUnderMinimum(UnallocatedReallocated state) {
+        state.optimizer.tryToFindPeopleForProgramsUnderMinimum();
+        return state.problem;
+    }
+}
@@ -0,0 +1,54 @@
+package fi.partio.pajautin.optimizer.engine;
+
+import fi.partio.pajautin.optimizer.WorkloadGenerator;
+import fi.partio.pajautin.optimizer.member.Problem;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FlowAssignmentOptimizer on the timetable of an EagerOptimizer solution: one round over the three slots and
+ * a full run. Each invocation starts from the eager assignment.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class FlowAssignmentBenchmark {
+
+    @Param({"1000", "5000", "10000"})
+    public int participants;
+
+    Problem eager;
+    Problem problem;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        eager = new Problem(new WorkloadGenerator(participants, 42).generate().toProblemDefinition());
+        EagerOptimizer optimizer = new EagerOptimizer(eager, 42);
+        optimizer.setVerbose(false);
+        optimizer.optimize();
+        problem = eager.copy();
+    }
+
+    @Setup(Level.Invocation)
+    public void restore() {
+        problem.getAssignment().restore(eager.getAssignment());
+    }
+
+    @Benchmark
+    public Problem oneRound() {
+        FlowAssignmentOptimizer optimizer = new FlowAssignmentOptimizer(problem, 42);
+        optimizer.setMaxRounds(1);
+        optimizer.optimize();
+        return problem;
+    }
+
+    @Benchmark
+    public Problem optimize() {
+        new FlowAssignmentOptimizer(problem, 42).optimize();
+        return problem;
+    }
+}
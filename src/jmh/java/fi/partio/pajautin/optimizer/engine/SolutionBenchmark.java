@@ -0,0 +1,32 @@
+package fi.partio.pajautin.optimizer.engine;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fitness calculation, statistics and the sanity check of a finished solution
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SolutionBenchmark {
+
+    @Benchmark
+    public int calculateFitness(SolvedProblem state) {
+        return state.problem.calculateFitness();
+    }
+
+    @Benchmark
+    public LinkedHashMap<String, String> getStats(SolvedProblem state) {
+        return state.problem.getStats();
+    }
+
+    @Benchmark
+    public boolean checkSanity(SolvedProblem state) {
+        return SanityChecker.checkSanity(state.problem);
+    }
+}
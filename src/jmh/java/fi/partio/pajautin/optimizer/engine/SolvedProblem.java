@@ -0,0 +1,25 @@
+package fi.partio.pajautin.optimizer.engine;
+
+import fi.partio.pajautin.optimizer.WorkloadGenerator;
+import fi.partio.pajautin.optimizer.member.Problem;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Synthetic problem optimized once with EagerOptimizer, for benchmarks that work on a finished solution
+ */
+@State(Scope.Benchmark)
+public class SolvedProblem {
+
+    @Param({"1000", "10000", "100000"})
+    public int participants;
+
+    public Problem problem;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        problem = new Problem(new WorkloadGenerator(participants, 42).generate().toProblemDefinition());
+        EagerOptimizer optimizer = new EagerOptimizer(problem, 42);
+        optimizer.setVerbose(false);
+        optimizer.optimize();
+    }
+}
@@ -51,31 +51,20 @@ public class DataUtil {
 
 
     public static void writeMapToJsonFile(Map<Object, Object> map, String filename) {
+        writeJsonFile(map, filename);
+    }
+
+    public static void writeJsonFile(Object value, String filename) {
         try {
             ObjectMapper mapper = new ObjectMapper();
             // set pretty printing to true
-            mapper.writerWithDefaultPrettyPrinter().writeValue(new File(filename), map);
+            mapper.writerWithDefaultPrettyPrinter().writeValue(new File(filename), value);
 
         } catch (Exception e) {
             System.out.println("Error writing JSON file: " + e.getMessage());
         }
     }
 
-    public static void writeProjectedData(int projectedCount) {
-        Map<Object, Object> map = readJsonFileToMap("results.json");
-        // get entryset as vector
-        Object[] entries = map.entrySet().toArray();
-        HashMap<Object,Object> projectedMap = new HashMap<Object,Object>();
-        float multiplier =  (float)entries.length / (float)projectedCount;
-        for (int i = 0; i < projectedCount; i++) {
-            var entry = (Map.Entry<Object,Object>)entries[(int)((float)i*multiplier)];
-            projectedMap.put(java.util.UUID.randomUUID().toString(), entry.getValue());
-        }
-        System.out.println("Projected " + projectedMap.size() + " entries");
-        writeMapToJsonFile(projectedMap, "projected.json");
-
-    }
-
     public static void writeCsvFile(String inputFileName, String outputFileName) {
         // open outputfile for writing
         File outputFile = new File(outputFileName);
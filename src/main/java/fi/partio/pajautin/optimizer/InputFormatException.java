@@ -0,0 +1,33 @@
+package fi.partio.pajautin.optimizer;
+
+/**
+ * Thrown when an input file is not in the expected format. Tells the file and the line and column of the
+ * offending value.
+ */
+public class InputFormatException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String file;
+    private final int line;
+    private final int column;
+
+    public InputFormatException(String file, int line, int column, String message) {
+        super(file + " line " + line + " column " + column + ": " + message);
+        this.file = file;
+        this.line = line;
+        this.column = column;
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    public int getLine() {
+        return line;
+    }
+
+    public int getColumn() {
+        return column;
+    }
+}
@@ -1,10 +1,22 @@
 package fi.partio.pajautin.optimizer;
 
-import fi.partio.pajautin.optimizer.engine.EagerOptimizer;
-import fi.partio.pajautin.optimizer.engine.Optimizer;
+import fi.partio.pajautin.optimizer.engine.AnnealingOptimizer;
+import fi.partio.pajautin.optimizer.engine.ChangeReport;
+import fi.partio.pajautin.optimizer.engine.MultiStartOptimizer;
+import fi.partio.pajautin.optimizer.engine.OptimizerMetrics;
 import fi.partio.pajautin.optimizer.engine.SanityChecker;
+import fi.partio.pajautin.optimizer.engine.SanityReport;
+import fi.partio.pajautin.optimizer.engine.WarmStartOptimizer;
 import fi.partio.pajautin.optimizer.member.Problem;
+import fi.partio.pajautin.optimizer.member.ProblemDefinition;
+import fi.partio.pajautin.optimizer.member.ProblemSnapshot;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 
 public class Main {
@@ -12,39 +24,211 @@ public class Main {
 
 
         if (args[0].equals("optimize")) {
-
-           for (var done = optimize(args); !done ; done = optimize(args)) {
-               System.out.println("Optimization failed, trying again");
-           }
+            optimize(args);
         } else if (args[0].equals("test-data")) {
             test(args);
+        } else if (args[0].equals("generate")) {
+            generate(args);
         } else if (args[0].equals("csv")) {
             csv(args);
+        } else if (args[0].equals("snapshot")) {
+            snapshot(args);
+        } else if (args[0].equals("improve")) {
+            improve(args);
+        } else if (args[0].equals("reoptimize")) {
+            reoptimize(args);
+        } else if (args[0].equals("serve")) {
+            serve(args);
         } else {
             System.out.println("Unknown command: " + args[0]);
         }
     }
 
+    /**
+     * test-data [participants] [seed]
+     * Writes a generated data set with default settings to directory test-data
+     */
     private static void test(String[] args) {
-        DataUtil.writeProjectedData(3250);
+        int participants = args.length > 1 ? Integer.parseInt(args[1]) : 3250;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+        new WorkloadGenerator(participants, seed).generate().writeTo("test-data");
+    }
+
+    /**
+     * generate directory participants seed [setting=value ...]
+     * Settings: programs, zipf, present-all, present-two, tightness, multi-occurrence, continuation, facilitators,
+     * few-preferences, groups. See WorkloadGenerator.
+     */
+    private static void generate(String[] args) {
+        WorkloadGenerator generator = new WorkloadGenerator(Integer.parseInt(args[2]), Long.parseLong(args[3]));
+        double presentInAll = 0.8;
+        double presentInTwo = 0.15;
+        for (int i = 4; i < args.length; i++) {
+            String[] setting = args[i].split("=", 2);
+            if (setting.length != 2) throw new IllegalArgumentException("Expected setting=value, got " + args[i]);
+            String value = setting[1];
+            switch (setting[0]) {
+                case "programs": generator.setProgramCount(Integer.parseInt(value)); break;
+                case "zipf": generator.setZipfExponent(Double.parseDouble(value)); break;
+                case "present-all": presentInAll = Double.parseDouble(value); break;
+                case "present-two": presentInTwo = Double.parseDouble(value); break;
+                case "tightness": generator.setCapacityTightness(Double.parseDouble(value)); break;
+                case "multi-occurrence": generator.setMultiOccurrenceRatio(Double.parseDouble(value)); break;
+                case "continuation": generator.setContinuationRatio(Double.parseDouble(value)); break;
+                case "facilitators": generator.setFacilitatorRatio(Double.parseDouble(value)); break;
+                case "few-preferences": generator.setFewPreferencesRatio(Double.parseDouble(value)); break;
+                case "groups": generator.setGroupRatio(Double.parseDouble(value)); break;
+                default: throw new IllegalArgumentException("Unknown setting " + setting[0]);
+            }
+        }
+        generator.setPresenceMix(presentInAll, presentInTwo);
+        generator.generate().writeTo(args[1]);
+    }
+
+    /**
+     * snapshot programs.json participants.json speakers.json problem.snap
+     * Writes the input as a binary snapshot that loads much faster than the JSON files, see optimize
+     */
+    private static void snapshot(String[] args) {
+        ProblemSnapshot.write(ProblemLoader.load(args[1], args[2], args[3]), Paths.get(args[4]));
     }
 
+    /**
+     * optimize programs.json participants.json speakers.json [starts] [seconds] [seed] [improve-seconds] [timetable-seconds] [--prometheus] [--gzip]
+     * optimize problem.snap [starts] [seconds] [seed] [improve-seconds] [timetable-seconds] [--prometheus] [--gzip]
+     * Runs independent starts in parallel on all cores and exports the best sane solution.
+     * With improve-seconds, each start is improved with local search for that long.
+     * With timetable-seconds, the timetable of each start is searched for that long before the improvement.
+     * Phase metrics of the best start are written to metrics.json, and with --prometheus also to metrics.prom.
+     * With --gzip the exported text files are gzipped.
+     */
     private static boolean optimize(String[] args) {
-        Problem problem = new Problem(DataUtil.readJsonFileToList(args[1]),DataUtil.readJsonFileToMap(args[2]), DataUtil.readJsonFileToDoubleList(args[3]));
-        Optimizer optimizer = new EagerOptimizer(problem);
-        optimizer.optimize();
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        boolean prometheus = arguments.remove("--prometheus");
+        boolean gzip = arguments.remove("--gzip");
+        args = arguments.toArray(new String[0]);
 
-        // Check sanity
-        if (SanityChecker.checkSanity(problem)) {
-            System.out.println("Sanity check passed");
-            ResultExporter.exportProblem(problem);
-            return true;
+        // Index of the first argument after the input files
+        int next;
+        ProblemDefinition definition;
+        if (args[1].endsWith(".snap")) {
+            definition = ProblemSnapshot.readDefinition(Paths.get(args[1]));
+            next = 2;
         } else {
-            System.out.println("Sanity check failed");
+            definition = ProblemLoader.load(args[1], args[2], args[3]);
+            next = 4;
+        }
+
+        MultiStartOptimizer optimizer = new MultiStartOptimizer(definition);
+        if (args.length > next) optimizer.setMaxStarts(Integer.parseInt(args[next]));
+        if (args.length > next + 1) optimizer.setTimeBudgetMillis(Long.parseLong(args[next + 1]) * 1000);
+        if (args.length > next + 2) optimizer.setBaseSeed(Long.parseLong(args[next + 2]));
+        if (args.length > next + 3) optimizer.setImprovementMillis(Long.parseLong(args[next + 3]) * 1000);
+        if (args.length > next + 4) optimizer.setTimetableSearchMillis(Long.parseLong(args[next + 4]) * 1000);
+
+        Problem problem = optimizer.optimize();
+        if (problem == null) {
+            System.out.println("Sanity check failed in all " + optimizer.getStartsRun() + " starts");
             return false;
         }
 
+        System.out.println("Sanity check passed in " + optimizer.getSaneStarts() + " of " + optimizer.getStartsRun() + " starts, best seed " + optimizer.getBestSeed());
+        if (optimizer.getBestFitnessCurve() != null) {
+            System.out.println("Fitness during improvement of the best start:");
+            for (AnnealingOptimizer.FitnessPoint point : optimizer.getBestFitnessCurve()) System.out.println("  " + point);
+        }
+        problem.printStats();
+
+        OptimizerMetrics metrics = optimizer.getBestMetrics();
+        OptimizerMetrics.PhaseMetrics export = metrics.startPhase("export", problem);
+        String problemDir = ResultExporter.exportProblem(problem, gzip);
+        export.end(problem);
+        System.out.println("Phases of the best start:");
+        for (OptimizerMetrics.PhaseMetrics phase : metrics.getPhases()) System.out.println("  " + phase);
+        ResultExporter.writeMetrics(metrics, problemDir, prometheus);
+        return true;
+    }
+
+    /**
+     * improve solution.snap seconds [seed]
+     * Continues from a solution saved by optimize (solution.snap in the results) with local search and exports
+     * the result if it is sane
+     */
+    private static boolean improve(String[] args) {
+        Problem problem = ProblemSnapshot.read(Paths.get(args[1]));
+        AnnealingOptimizer annealing = args.length > 3 ? new AnnealingOptimizer(problem, Long.parseLong(args[3])) : new AnnealingOptimizer(problem);
+        annealing.setTimeBudgetMillis(Long.parseLong(args[2]) * 1000);
+        int startFitness = problem.calculateFitness();
+        annealing.optimize();
+        System.out.println("Improved fitness from " + startFitness + " to " + problem.calculateFitness() + " in " + annealing.getIterations() + " iterations");
 
+        SanityReport report = SanityChecker.check(problem);
+        if (!report.isSane()) {
+            System.out.println("Sanity check failed with " + report.getFatalCount() + " violations");
+            return false;
+        }
+        problem.printStats();
+        ResultExporter.writeMetrics(annealing.getMetrics(), ResultExporter.exportProblem(problem), false);
+        return true;
+    }
+
+    /**
+     * reoptimize previous-results-dir programs.json participants.json speakers.json [seed] [--free-timetable] [--gzip]
+     * reoptimize previous-results-dir problem.snap [seed] [--free-timetable] [--gzip]
+     * Starts from the solution in the results of a previous run and repairs only the participants affected by
+     * the changes in the input. The timetable is kept as it is unless --free-timetable is given. Participants
+     * whose programs changed are written to changes.csv.
+     */
+    private static boolean reoptimize(String[] args) {
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        boolean freeTimetable = arguments.remove("--free-timetable");
+        boolean gzip = arguments.remove("--gzip");
+        args = arguments.toArray(new String[0]);
+
+        WarmStartOptimizer.PreviousResult previous = ResultLoader.load(args[1]);
+        int next;
+        ProblemDefinition definition;
+        if (args[2].endsWith(".snap")) {
+            definition = ProblemSnapshot.readDefinition(Paths.get(args[2]));
+            next = 3;
+        } else {
+            definition = ProblemLoader.load(args[2], args[3], args[4]);
+            next = 5;
+        }
+
+        Problem problem = new Problem(definition);
+        WarmStartOptimizer optimizer = args.length > next
+                ? new WarmStartOptimizer(problem, previous, Long.parseLong(args[next]))
+                : new WarmStartOptimizer(problem, previous);
+        optimizer.setFixedTimetable(!freeTimetable);
+        optimizer.optimize();
+        ChangeReport changes = optimizer.getChangeReport();
+        System.out.println(changes);
+
+        SanityReport report = SanityChecker.check(problem);
+        if (!report.isSane()) {
+            // The previous timetable may not fit the changes, e.g. a program drops below its minimum. Exported
+            // anyway so that the changes can be reviewed.
+            System.out.println("Sanity check failed with " + report.getFatalCount() + " violations:");
+            for (SanityReport.Violation violation : report.getViolations()) System.out.println("  " + violation);
+        }
+        problem.printStats();
+        String problemDir = ResultExporter.exportProblem(problem, gzip);
+        ResultExporter.writeMetrics(optimizer.getMetrics(), problemDir, false);
+        ResultExporter.writeChanges(changes, problemDir);
+        return report.isSane();
+    }
+
+    /**
+     * serve [port]
+     * Keeps problems in memory and optimizes them on request through a local HTTP API, see OptimizerService
+     */
+    private static void serve(String[] args) {
+        try {
+            new OptimizerService().start(args.length > 1 ? Integer.parseInt(args[1]) : 8080);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not start the service", e);
+        }
     }
 
     private static void csv(String[] args) {
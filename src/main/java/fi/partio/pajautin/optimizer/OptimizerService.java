@@ -0,0 +1,337 @@
+package fi.partio.pajautin.optimizer;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import fi.partio.pajautin.optimizer.engine.MultiStartOptimizer;
+import fi.partio.pajautin.optimizer.member.Problem;
+import fi.partio.pajautin.optimizer.member.ProblemDefinition;
+import fi.partio.pajautin.optimizer.member.ProblemSnapshot;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps problems loaded in memory and runs optimization jobs on them through a local HTTP API, so that the
+ * input does not have to be parsed and the JVM warmed up again for every run.
+ *
+ * POST   /problems                       submit a problem: {"programs": [...], "participants": {...},
+ *                                        "speakers": [...]} as in the input files, or a snapshot as
+ *                                        application/octet-stream
+ * GET    /problems                       list the problems
+ * DELETE /problems/{id}                  forget a problem
+ * POST   /problems/{id}/jobs             start optimizing, parameters starts, seconds, seed, improve and
+ *                                        timetable as in optimize
+ * GET    /jobs, /jobs/{id}               progress and best fitness of the jobs
+ * DELETE /jobs/{id}                      cancel a job, the best solution so far is kept
+ * GET    /jobs/{id}/results/{file}       one file of the best solution in the format of the exported results
+ *
+ * Requests are handled on virtual threads when the JVM has them and on a cached thread pool otherwise. The
+ * optimizer starts of a job run on a platform thread pool of their own, since they are CPU bound.
+ */
+public class OptimizerService {
+
+    private static final Logger log = LogManager.getLogger(OptimizerService.class);
+
+    private static final ObjectMapper mapper = new ObjectMapper().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    public enum JobStatus {
+        RUNNING,
+        DONE,
+        // Finished, but none of the starts passed the sanity check
+        NO_SANE_SOLUTION,
+        CANCELLED,
+        FAILED
+    }
+
+    private static class Job {
+        final String id;
+        final String problemId;
+        final int maxStarts;
+        final MultiStartOptimizer optimizer;
+        final long startTime = System.currentTimeMillis();
+
+        volatile JobStatus status = JobStatus.RUNNING;
+        volatile boolean cancelled;
+        volatile long endTime;
+        volatile String error;
+        Future<?> future;
+
+        Job(String id, String problemId, int maxStarts, MultiStartOptimizer optimizer) {
+            this.id = id;
+            this.problemId = problemId;
+            this.maxStarts = maxStarts;
+            this.optimizer = optimizer;
+        }
+    }
+
+    private final Map<String, ProblemDefinition> problems = new ConcurrentHashMap<>();
+
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+
+    private final AtomicInteger nextId = new AtomicInteger(1);
+
+    private final ExecutorService executor = newThreadPerTaskExecutor();
+
+    private HttpServer server;
+
+    /**
+     * Start serving on the loopback address
+     */
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/problems", this::handle);
+        server.createContext("/jobs", this::handle);
+        server.setExecutor(executor);
+        server.start();
+        System.out.println("Serving on http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/");
+    }
+
+    public void stop() {
+        server.stop(0);
+        for (Job job : jobs.values()) cancel(job);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() on JVMs that have virtual threads, otherwise a cached pool
+     */
+    private static ExecutorService newThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            log.info("Virtual threads not available, using platform threads");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String[] path = exchange.getRequestURI().getPath().replaceAll("^/+|/+$", "").split("/+");
+            String method = exchange.getRequestMethod();
+            route(exchange, method, path);
+        } catch (IllegalArgumentException | InputFormatException | JsonProcessingException e) {
+            sendJson(exchange, 400, error(e.getMessage()));
+        } catch (RuntimeException e) {
+            log.error("Request " + exchange.getRequestURI() + " failed", e);
+            sendJson(exchange, 500, error(String.valueOf(e.getMessage())));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void route(HttpExchange exchange, String method, String[] path) throws IOException {
+        if (path[0].equals("problems")) {
+            if (path.length == 1 && method.equals("POST")) {
+                sendJson(exchange, 201, submitProblem(exchange));
+                return;
+            }
+            if (path.length == 1 && method.equals("GET")) {
+                List<Object> list = new ArrayList<>();
+                problems.forEach((id, definition) -> list.add(describe(id, definition)));
+                sendJson(exchange, 200, list);
+                return;
+            }
+            ProblemDefinition definition = path.length > 1 ? problems.get(path[1]) : null;
+            if (definition == null) {
+                sendJson(exchange, 404, error("No such problem"));
+            } else if (path.length == 2 && method.equals("DELETE")) {
+                problems.remove(path[1]);
+                sendJson(exchange, 200, describe(path[1], definition));
+            } else if (path.length == 3 && path[2].equals("jobs") && method.equals("POST")) {
+                sendJson(exchange, 202, describe(startJob(path[1], definition, query(exchange))));
+            } else {
+                sendJson(exchange, 405, error("Unsupported request"));
+            }
+            return;
+        }
+
+        if (!path[0].equals("jobs")) {
+            sendJson(exchange, 404, error("Unknown path"));
+            return;
+        }
+        if (path.length == 1 && method.equals("GET")) {
+            List<Object> list = new ArrayList<>();
+            for (Job job : jobs.values()) list.add(describe(job));
+            sendJson(exchange, 200, list);
+            return;
+        }
+        Job job = path.length > 1 ? jobs.get(path[1]) : null;
+        if (job == null) {
+            sendJson(exchange, 404, error("No such job"));
+        } else if (path.length == 2 && method.equals("GET")) {
+            sendJson(exchange, 200, describe(job));
+        } else if (path.length == 2 && method.equals("DELETE")) {
+            cancel(job);
+            sendJson(exchange, 200, describe(job));
+        } else if (path.length == 4 && path[2].equals("results") && method.equals("GET")) {
+            sendResult(exchange, job, path[3]);
+        } else {
+            sendJson(exchange, 405, error("Unsupported request"));
+        }
+    }
+
+    private Map<String, Object> submitProblem(HttpExchange exchange) throws IOException {
+        ProblemDefinition definition;
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (contentType != null && contentType.startsWith("application/octet-stream")) {
+            // Snapshots are read from a file
+            Path file = Files.createTempFile("problem", ".snap");
+            try (InputStream in = exchange.getRequestBody()) {
+                Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+                definition = ProblemSnapshot.readDefinition(file);
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        } else {
+            JsonNode body;
+            try (InputStream in = exchange.getRequestBody()) {
+                body = mapper.readTree(in);
+            }
+            if (body == null || !body.has("programs") || !body.has("participants") || !body.has("speakers"))
+                throw new IllegalArgumentException("Expected {\"programs\": [...], \"participants\": {...}, \"speakers\": [...]}");
+            definition = ProblemLoader.load(body.get("programs"), body.get("participants"), body.get("speakers"));
+        }
+        String id = String.valueOf(nextId.getAndIncrement());
+        problems.put(id, definition);
+        log.info("Problem " + id + " loaded");
+        return describe(id, definition);
+    }
+
+    private Job startJob(String problemId, ProblemDefinition definition, Map<String, String> parameters) {
+        int maxStarts = Integer.parseInt(parameters.getOrDefault("starts", "64"));
+        MultiStartOptimizer optimizer = new MultiStartOptimizer(definition);
+        optimizer.setMaxStarts(maxStarts);
+        if (parameters.containsKey("seconds")) optimizer.setTimeBudgetMillis(Long.parseLong(parameters.get("seconds")) * 1000);
+        if (parameters.containsKey("seed")) optimizer.setBaseSeed(Long.parseLong(parameters.get("seed")));
+        if (parameters.containsKey("improve")) optimizer.setImprovementMillis(Long.parseLong(parameters.get("improve")) * 1000);
+        if (parameters.containsKey("timetable")) optimizer.setTimetableSearchMillis(Long.parseLong(parameters.get("timetable")) * 1000);
+
+        Job job = new Job(String.valueOf(nextId.getAndIncrement()), problemId, maxStarts, optimizer);
+        jobs.put(job.id, job);
+        synchronized (job) {
+            job.future = executor.submit(() -> run(job));
+        }
+        return job;
+    }
+
+    private void run(Job job) {
+        try {
+            Problem best = job.optimizer.optimize();
+            if (job.cancelled) job.status = JobStatus.CANCELLED;
+            else job.status = best == null ? JobStatus.NO_SANE_SOLUTION : JobStatus.DONE;
+        } catch (RuntimeException e) {
+            log.error("Job " + job.id + " failed", e);
+            job.error = String.valueOf(e.getMessage());
+            job.status = JobStatus.FAILED;
+        }
+        job.endTime = System.currentTimeMillis();
+    }
+
+    private void cancel(Job job) {
+        if (job.status != JobStatus.RUNNING) return;
+        job.cancelled = true;
+        // Interrupting the job stops the optimizer starts, the job then records the best solution so far
+        synchronized (job) {
+            job.future.cancel(true);
+        }
+    }
+
+    private void sendResult(HttpExchange exchange, Job job, String fileName) throws IOException {
+        if (!ResultExporter.getFileNames().contains(fileName)) {
+            sendJson(exchange, 404, error("No such result file, available: " + ResultExporter.getFileNames()));
+            return;
+        }
+        Problem best = job.optimizer.getBestProblem();
+        if (best == null) {
+            sendJson(exchange, 404, error("No solution yet"));
+            return;
+        }
+        // The views of a problem create some objects lazily, so each request reads its own copy
+        Problem problem = best.copy();
+        exchange.getResponseHeaders().set("Content-Type", contentType(fileName));
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = exchange.getResponseBody()) {
+            ResultExporter.writeFile(problem, fileName, out);
+        }
+    }
+
+    private static String contentType(String fileName) {
+        if (fileName.endsWith(".json")) return "application/json; charset=utf-8";
+        if (fileName.endsWith(".csv")) return "text/csv; charset=utf-8";
+        return "text/plain; charset=utf-8";
+    }
+
+    private static Map<String, Object> describe(String id, ProblemDefinition definition) {
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("id", id);
+        data.put("participants", definition.getParticipantCount());
+        data.put("programs", definition.getProgramCount());
+        return data;
+    }
+
+    private static Map<String, Object> describe(Job job) {
+        MultiStartOptimizer optimizer = job.optimizer;
+        Problem best = optimizer.getBestProblem();
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("id", job.id);
+        data.put("problem", job.problemId);
+        data.put("status", job.status);
+        data.put("startsRun", optimizer.getStartsRun());
+        data.put("saneStarts", optimizer.getSaneStarts());
+        data.put("maxStarts", job.maxStarts);
+        data.put("bestFitness", best == null ? null : best.calculateFitness());
+        data.put("bestSeed", best == null ? null : optimizer.getBestSeed());
+        data.put("unallocated", best == null ? null : best.getUnallocatedCount());
+        data.put("elapsedMillis", (job.endTime == 0 ? System.currentTimeMillis() : job.endTime) - job.startTime);
+        if (job.error != null) data.put("error", job.error);
+        return data;
+    }
+
+    private static Map<String, Object> error(String message) {
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("error", message);
+        return data;
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) {
+        Map<String, String> parameters = new HashMap<>();
+        String query = exchange.getRequestURI().getQuery();
+        if (query == null) return parameters;
+        for (String parameter : query.split("&")) {
+            String[] pair = parameter.split("=", 2);
+            parameters.put(pair[0], pair.length > 1 ? pair[1] : "");
+        }
+        return parameters;
+    }
+
+    private static void sendJson(HttpExchange exchange, int status, Object body) throws IOException {
+        byte[] bytes = mapper.writeValueAsBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package fi.partio.pajautin.optimizer;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import fi.partio.pajautin.optimizer.member.ProblemDefinition;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Reads programs.json, participants.json and speakers.json straight into a ProblemDefinition with a streaming
+ * parser, without building maps of the whole input first.
+ *
+ * Numbers are accepted both as JSON numbers and as strings ("12"), and booleans both as JSON booleans and as
+ * "TRUE" / "FALSE". Unknown fields are skipped. Values that cannot be used throw an InputFormatException
+ * telling where in the file the value is.
+ */
+public class ProblemLoader {
+
+    private static final Logger log = LogManager.getLogger(ProblemLoader.class);
+
+    private static final JsonFactory factory = new JsonFactory();
+
+    private final ProblemDefinition.Builder builder = new ProblemDefinition.Builder();
+
+    private String file;
+    private JsonParser parser;
+
+    /**
+     * Read the three input files to a problem definition
+     */
+    public static ProblemDefinition load(String programsFile, String participantsFile, String speakersFile) {
+        ProblemLoader loader = new ProblemLoader();
+        loader.read(programsFile, loader::readPrograms);
+        loader.read(participantsFile, loader::readParticipants);
+        loader.read(speakersFile, loader::readSpeakers);
+        return loader.builder.build();
+    }
+
+    /**
+     * Read the three inputs from JSON trees, e.g. parts of a request, to a problem definition
+     */
+    public static ProblemDefinition load(JsonNode programs, JsonNode participants, JsonNode speakers) {
+        ProblemLoader loader = new ProblemLoader();
+        loader.read("programs", programs::traverse, loader::readPrograms);
+        loader.read("participants", participants::traverse, loader::readParticipants);
+        loader.read("speakers", speakers::traverse, loader::readSpeakers);
+        return loader.builder.build();
+    }
+
+    private interface Reader {
+        void read() throws IOException;
+    }
+
+    private interface Source {
+        JsonParser open() throws IOException;
+    }
+
+    private void read(String file, Reader reader) {
+        read(file, () -> factory.createParser(new File(file)), reader);
+    }
+
+    private void read(String file, Source source, Reader reader) {
+        this.file = file;
+        try (JsonParser parser = source.open()) {
+            this.parser = parser;
+            parser.nextToken();
+            reader.read();
+            if (parser.nextToken() != null) throw error("Unexpected content after the end of the data");
+        } catch (JsonParseException e) {
+            JsonLocation location = e.getLocation();
+            throw new InputFormatException(file, location.getLineNr(), location.getColumnNr(), e.getOriginalMessage());
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read " + file, e);
+        } finally {
+            this.parser = null;
+        }
+    }
+
+    /**
+     * [{"id": "1", "name": "...", "slot1": "TRUE", "maxSize": "30", ...}, ...]
+     */
+    private void readPrograms() throws IOException {
+        expect(JsonToken.START_ARRAY, "a list of programs");
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            expect(JsonToken.START_OBJECT, "a program");
+            JsonLocation start = parser.getTokenLocation();
+
+            Integer id = null;
+            String name = null;
+            byte possibleMask = 0;
+            int minPlaces = 5;
+            int maxPlaces = 30;
+            int maxOccurance = 1;
+            Integer countinueOnSlot = null;
+            String keywords = null;
+            String author = null;
+            String description = null;
+            String type = null;
+            boolean roverRecommended = false;
+
+            while (parser.nextToken() != JsonToken.END_OBJECT) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                switch (field) {
+                    case "id": id = readInt(); break;
+                    case "name": name = readString(); break;
+                    case "slot1": if (readBoolean()) possibleMask |= 1; break;
+                    case "slot2": if (readBoolean()) possibleMask |= 2; break;
+                    case "slot3": if (readBoolean()) possibleMask |= 4; break;
+                    case "minSize": minPlaces = readInt(5); break;
+                    case "maxSize": maxPlaces = readInt(30); break;
+                    case "availableSlots": maxOccurance = readInt(1); break;
+                    case "countinueInSlot": countinueOnSlot = readOptionalInt(); break;
+                    case "keywords": keywords = readString(); break;
+                    case "author": author = readString(); break;
+                    case "description": description = readString(); break;
+                    case "type": type = readString(); break;
+                    case "roverRecommended": roverRecommended = readBoolean(); break;
+                    default: parser.skipChildren();
+                }
+            }
+            if (id == null) throw error(start, "Program has no id");
+            builder.addProgram(id, name + "", possibleMask, minPlaces, maxPlaces, maxOccurance, countinueOnSlot,
+                    keywords, author, description, type, roverRecommended);
+        }
+    }
+
+    /**
+     * {"participant id": {"prog": [1, 2, ...], "present": [true, true, false]}, ...}
+     */
+    private void readParticipants() throws IOException {
+        expect(JsonToken.START_OBJECT, "participants by id");
+        Set<String> ids = new HashSet<>();
+        while (parser.nextToken() != JsonToken.END_OBJECT) {
+            String id = parser.getCurrentName();
+            if (!ids.add(id)) throw error("Participant " + id + " appears twice");
+            parser.nextToken();
+            expect(JsonToken.START_OBJECT, "participant " + id);
+            JsonLocation start = parser.getTokenLocation();
+
+            builder.startParticipant(id);
+            boolean hasPreferences = false;
+            boolean hasPresence = false;
+            while (parser.nextToken() != JsonToken.END_OBJECT) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                if (field.equals("prog") && parser.currentToken() == JsonToken.START_ARRAY) {
+                    hasPreferences = true;
+                    while (parser.nextToken() != JsonToken.END_ARRAY) builder.addPreference(readInt());
+                } else if (field.equals("present")) {
+                    expect(JsonToken.START_ARRAY, "a list of presence in each time slot");
+                    hasPresence = true;
+                    int slot = 0;
+                    while (parser.nextToken() != JsonToken.END_ARRAY) {
+                        if (slot == ProblemDefinition.SLOT_COUNT) throw error("More than " + ProblemDefinition.SLOT_COUNT + " time slots");
+                        if (readBoolean()) builder.setPresent(slot);
+                        slot++;
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (!hasPreferences) log.warn("Warning: Program list empty for participant " + id);
+            if (!hasPresence) throw error(start, "Participant " + id + " has no presence");
+        }
+    }
+
+    /**
+     * [[program id, "participant id"], ...]
+     */
+    private void readSpeakers() throws IOException {
+        expect(JsonToken.START_ARRAY, "a list of facilitators");
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            expect(JsonToken.START_ARRAY, "[program id, participant id]");
+            parser.nextToken();
+            int programId = readInt();
+            parser.nextToken();
+            String participantId = readString();
+            if (participantId == null || parser.nextToken() != JsonToken.END_ARRAY)
+                throw error("Expected [program id, participant id]");
+            builder.addFacilitator(programId, participantId);
+        }
+    }
+
+    private void expect(JsonToken token, String what) {
+        if (parser.currentToken() != token) throw error("Expected " + what);
+    }
+
+    private String readString() throws IOException {
+        JsonToken token = parser.currentToken();
+        if (token == JsonToken.VALUE_NULL) return null;
+        if (token.isScalarValue()) return parser.getText();
+        throw error("Expected a value, got " + token.asString());
+    }
+
+    private int readInt() throws IOException {
+        Integer value = readOptionalInt();
+        if (value == null) throw error("Expected a number");
+        return value;
+    }
+
+    /**
+     * @return the number, or null if the value is null or an empty string
+     */
+    private Integer readOptionalInt() throws IOException {
+        JsonToken token = parser.currentToken();
+        if (token == JsonToken.VALUE_NUMBER_INT) return parser.getIntValue();
+        if (token == JsonToken.VALUE_NULL) return null;
+        if (token == JsonToken.VALUE_STRING) {
+            String text = parser.getText().trim();
+            if (text.isEmpty()) return null;
+            try {
+                return Integer.parseInt(text);
+            } catch (NumberFormatException e) {
+                // reported below
+            }
+        }
+        throw error("Expected a number, got " + parser.getText());
+    }
+
+    /**
+     * Read a number that has a default value. Missing or unreadable values fall back to the default.
+     */
+    private int readInt(int def) throws IOException {
+        JsonToken token = parser.currentToken();
+        if (token == JsonToken.VALUE_NUMBER_INT) return parser.getIntValue();
+        try {
+            return Integer.parseInt(parser.getText().trim());
+        } catch (NumberFormatException e) {
+            JsonLocation location = parser.getTokenLocation();
+            log.info("Warning, could not parse " + parser.getText() + " at " + file + " line " + location.getLineNr()
+                    + " column " + location.getColumnNr() + " using default value " + def);
+            parser.skipChildren();
+            return def;
+        }
+    }
+
+    private boolean readBoolean() throws IOException {
+        JsonToken token = parser.currentToken();
+        if (token == JsonToken.VALUE_TRUE) return true;
+        if (token == JsonToken.VALUE_FALSE || token == JsonToken.VALUE_NULL) return false;
+        if (token == JsonToken.VALUE_STRING) return parser.getText().equalsIgnoreCase("TRUE");
+        throw error("Expected a boolean, got " + parser.getText());
+    }
+
+    private InputFormatException error(String message) {
+        return error(parser.getTokenLocation(), message);
+    }
+
+    private InputFormatException error(JsonLocation location, String message) {
+        return new InputFormatException(file, location.getLineNr(), location.getColumnNr(), message);
+    }
+}
@@ -1,22 +1,114 @@
 package fi.partio.pajautin.optimizer;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import fi.partio.pajautin.optimizer.engine.ChangeReport;
+import fi.partio.pajautin.optimizer.engine.OptimizerMetrics;
+import fi.partio.pajautin.optimizer.member.ContentionProfile;
+import fi.partio.pajautin.optimizer.member.Participant;
+import fi.partio.pajautin.optimizer.member.Preference;
+import fi.partio.pajautin.optimizer.member.ProblemDefinition;
+import fi.partio.pajautin.optimizer.member.ProblemSnapshot;
 import fi.partio.pajautin.optimizer.member.Problem;
 import fi.partio.pajautin.optimizer.member.Program;
-import netscape.javascript.JSObject;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
-import java.io.PrintStream;
-import java.util.stream.Collectors;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a solution to a new directory under results: participants and programs as JSON, CSV and SQL, the
+ * contention profile and a binary snapshot. The files are written concurrently, each by its own task, from
+ * one read-only snapshot of the solution through buffered writers. Text files can optionally be gzipped.
+ */
+public class ResultExporter {
 
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.IOException;
+    // The writers are closed by the exporter
+    private static final ObjectMapper mapper = new ObjectMapper().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
 
-public class ResultExporter {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final int SLOTS = ProblemDefinition.SLOT_COUNT;
+
+    // Rejection reasons in the order of the contention.csv columns
+    private static final Participant.Rejection[] CSV_REJECTIONS = {
+            Participant.Rejection.PROGRAM_FULL,
+            Participant.Rejection.PROGRAM_NOT_ACTIVE,
+            Participant.Rejection.NOT_PRESENT,
+            Participant.Rejection.ALREADY_ALLOCATED,
+            Participant.Rejection.NOT_PRESENT_IN_CONTINUATION
+    };
+
+    /**
+     * Content of one exported text file
+     */
+    private interface Content {
+        void write(Problem problem, PrintWriter out) throws IOException;
+    }
+
+    // Text files of the results by name
+    private static final Map<String, Content> FILES = new LinkedHashMap<>();
+    static {
+        FILES.put("participants.json", ResultExporter::writeParticipantsAsJson);
+        FILES.put("programs.json", ResultExporter::writeProgramsAsJson);
+        FILES.put("participants.csv", ResultExporter::writeParticipantsAsCSV);
+        FILES.put("programs.csv", ResultExporter::writeProgramsAsCSV);
+        FILES.put("programs.sql", ResultExporter::writeProgramAsSQL);
+        FILES.put("participant_registrations.sql", ResultExporter::writeParticipantRegistrationsAsSQL);
+        FILES.put("contention.csv", ResultExporter::writeContentionAsCSV);
+        FILES.put("contention.json", ResultExporter::writeContentionAsJson);
+    }
+
+    /**
+     * @return names of the text files in the results
+     */
+    public static Set<String> getFileNames() {
+        return Collections.unmodifiableSet(FILES.keySet());
+    }
+
+    /**
+     * Write one text file of the results to the stream, e.g. to serve it without exporting everything
+     */
+    public static void writeFile(Problem problem, String fileName, OutputStream stream) throws IOException {
+        Content content = FILES.get(fileName);
+        if (content == null) throw new IllegalArgumentException("Unknown result file " + fileName);
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), BUFFER_SIZE));
+        content.write(problem, out);
+        out.flush();
+        if (out.checkError()) throw new IOException("Could not write " + fileName);
+    }
+
+    /**
+     * @return directory the results were written to
+     */
+    public static String exportProblem(Problem problem) {
+        return exportProblem(problem, false);
+    }
 
-    public static void exportProblem(Problem problem) {
+    /**
+     * @param gzip whether the text files are gzipped (.gz added to their names)
+     * @return directory the results were written to
+     */
+    public static String exportProblem(Problem problem, boolean gzip) {
         // if directory "results" does not exist, create it
         File dir = new File("results");
         if (!dir.exists()) {
@@ -26,184 +118,260 @@ public class ResultExporter {
         String currentDateInISOFormat = java.time.LocalDateTime.now().toString().replace(":", "_").replace(".", "_");
 
         // Create directory for this problem
-        String problemDir = "results/result_ua-" + problem.getUnallocated().size() + "_cancel-" + problem.getProgramsWithTooFewParticipants().size() + "_fit-" + problem.calculateFitness() + "_t-" + currentDateInISOFormat;
+        String problemDir = "results/result_ua-" + problem.getUnallocatedCount() + "_cancel-" + problem.getProgramsWithTooFewParticipants().size() + "_fit-" + problem.calculateFitness() + "_t-" + currentDateInISOFormat;
         dir = new File(problemDir);
         dir.mkdir();
 
-        // Export problem data
-        writeParticipantsAsJson(problem, problemDir);
-        writeProgramsAsJson(problem, problemDir);
-        writeParticipantsAsCSV(problem, problemDir);
-        writeProgramsAsCSV(problem, problemDir);
-        writeProgramAsSQL(problem, problemDir);
-        writeParticipantRegistrationsAsSQL(problem, problemDir);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(FILES.size() + 1, Runtime.getRuntime().availableProcessors()));
+        try {
+            // The writers share one snapshot, with the views created up front so that they only read it
+            Problem snapshot = problem.copy();
+            snapshot.createViews();
+            List<Future<?>> tasks = new ArrayList<>();
+            for (Map.Entry<String, Content> file : FILES.entrySet())
+                tasks.add(pool.submit(() -> write(snapshot, problemDir, file.getKey(), gzip, file.getValue())));
+            // Binary snapshot of the solution, can be continued from with "improve"
+            tasks.add(pool.submit(() -> ProblemSnapshot.write(snapshot, true, Paths.get(problemDir, "solution.snap"))));
+
+            for (Future<?> task : tasks) task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Could not export results to " + problemDir, e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        return problemDir;
+    }
+
+    private static void write(Problem problem, String problemDir, String fileName, boolean gzip, Content content) {
+        Path path = Paths.get(problemDir, gzip ? fileName + ".gz" : fileName);
+        try (OutputStream file = Files.newOutputStream(path);
+             OutputStream stream = gzip ? new GZIPOutputStream(file, BUFFER_SIZE) : file;
+             PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), BUFFER_SIZE))) {
+            content.write(problem, out);
+            out.flush();
+            if (out.checkError()) throw new IOException("Could not write " + path);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
+    /**
+     * Write the phase metrics of the run to metrics.json, and to metrics.prom in Prometheus text format if asked
+     */
+    public static void writeMetrics(OptimizerMetrics metrics, String problemDir, boolean prometheus) {
+        write(null, problemDir, "metrics.json", false, (problem, out) -> mapper.writer().with(SerializationFeature.INDENT_OUTPUT).writeValue(out, metrics));
+        if (prometheus) write(null, problemDir, "metrics.prom", false, (problem, out) -> out.write(metrics.toPrometheus()));
+    }
 
+    /**
+     * Write the participants whose programs changed in re-optimization to changes.csv
+     */
+    public static void writeChanges(ChangeReport report, String problemDir) {
+        write(null, problemDir, "changes.csv", false, (problem, out) -> {
+            String header = "id;status;" + slotColumns("before", "after");
+            out.println(header.substring(0, header.length() - 1));
+            for (ChangeReport.Entry entry : report.getEntries()) {
+                out.print(entry.getParticipantId() + ";" + entry.getStatus() + ";");
+                for (Integer programId : entry.getBefore()) out.print((programId == null ? "" : programId) + ";");
+                for (int slot = 0; slot < SLOTS; slot++) out.print((entry.getAfter()[slot] == null ? "" : entry.getAfter()[slot]) + (slot < SLOTS - 1 ? ";" : ""));
+                out.println();
+            }
+        });
     }
 
-    private static void writeParticipantRegistrationsAsSQL(Problem problem, String problemDir) {
+    static void writeParticipantRegistrationsAsSQL(Problem problem, String problemDir) {
+        write(problem, problemDir, "participant_registrations.sql", false, ResultExporter::writeParticipantRegistrationsAsSQL);
+    }
 
-        try {
-            File sqlFile = new File(problemDir + "/participant_registrations.sql");
-            PrintStream ps = new PrintStream(sqlFile);
-            ps.println("INSERT INTO participant_registration (program_id,participant_id,slot) VALUES");
-            boolean first = true;
-            for (var prg : problem.getPrograms()) {
-                for (int slot =0; slot<prg.getAllocatedTimeSlots().length; slot++) {
-                    for (var part : prg.getAssignedParticipants(slot).values()) {
-                        if (first) {
-                            first = false;
-                        } else {
-                            ps.println();
-                            ps.print(",");
-                        }
-                        ps.print("(" + prg.getId() + ",'" + part.getId() + "'," + (slot+1) + ")");
+    static void writeParticipantRegistrationsAsSQL(Problem problem, PrintWriter out) {
+        out.println("INSERT INTO participant_registration (program_id,participant_id,slot) VALUES");
+        boolean first = true;
+        for (Program prg : problem.getPrograms()) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                for (Participant part : prg.getAssignedParticipants(slot)) {
+                    if (first) {
+                        first = false;
+                    } else {
+                        out.println();
+                        out.print(",");
                     }
+                    out.print("(" + prg.getId() + ",'" + part.getId() + "'," + (slot + 1) + ")");
                 }
             }
-            ps.println(";");
-            ps.close();
-        } catch (IOException e) {
-            e.printStackTrace();
         }
+        out.println(";");
+    }
 
+    static void writeProgramsAsCSV(Problem problem, String problemDir) {
+        write(problem, problemDir, "programs.csv", false, ResultExporter::writeProgramsAsCSV);
     }
 
-    private static void writeProgramsAsCSV(Problem problem, String problemDir) {
-        try {
-            File csvFile = new File(problemDir + "/programs.csv");
-            PrintStream ps = new PrintStream(csvFile);
-            ps.println("id;name;max;min;occurance;possible1;possible2;possible3;active1;active2;active3;participants1;participants2;participants3;empty");
-            for (int i = 0; i < problem.getPrograms().size(); i++) {
-                ps.print(problem.getPrograms().get(i).getId() + ";");
-                ps.print(problem.getPrograms().get(i).getName().replace(';', ' ') + ";");
-                ps.print(problem.getPrograms().get(i).getMaxPlaces() + ";");
-                ps.print(problem.getPrograms().get(i).getMinPlaces() + ";");
-                ps.print(problem.getPrograms().get(i).getMaxOccurance() + ";");
-                ps.print(problem.getPrograms().get(i).getPossibleTimeSlots()[0] + ";");
-                ps.print(problem.getPrograms().get(i).getPossibleTimeSlots()[1] + ";");
-                ps.print(problem.getPrograms().get(i).getPossibleTimeSlots()[2] + ";");
-                ps.print(problem.getPrograms().get(i).getAllocatedTimeSlots()[0] + ";");
-                ps.print(problem.getPrograms().get(i).getAllocatedTimeSlots()[1] + ";");
-                ps.print(problem.getPrograms().get(i).getAllocatedTimeSlots()[2] + ";");
-                ps.print(problem.getPrograms().get(i).getAssignedParticipants().get(0).size() + ";");
-                ps.print(problem.getPrograms().get(i).getAssignedParticipants().get(1).size() + ";");
-                ps.print(problem.getPrograms().get(i).getAssignedParticipants().get(2).size() + ";");
-                ps.print((problem.getPrograms().get(i).getAssignedParticipants().stream().map(a -> a.size()).collect(Collectors.summingInt(s -> s)).intValue()==0 ? "TRUE" : "") + ";");
-                ps.println();
+    static void writeProgramsAsCSV(Problem problem, PrintWriter out) {
+        out.println("id;name;max;min;occurance;" + slotColumns("possible", "active", "participants") + "empty");
+        for (Program program : problem.getPrograms()) {
+            out.print(program.getId() + ";");
+            out.print(program.getName().replace(';', ' ') + ";");
+            out.print(program.getMaxPlaces() + ";");
+            out.print(program.getMinPlaces() + ";");
+            out.print(program.getMaxOccurance() + ";");
+            for (int slot = 0; slot < SLOTS; slot++) out.print(program.isPossibleInSlot(slot) + ";");
+            for (int slot = 0; slot < SLOTS; slot++) out.print(program.isActiveInSlot(slot) + ";");
+            int total = 0;
+            for (int slot = 0; slot < SLOTS; slot++) {
+                int count = program.getParticipantsInSlot(slot);
+                total += count;
+                out.print(count + ";");
             }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            out.print((total == 0 ? "TRUE" : "") + ";");
+            out.println();
         }
-
     }
 
-    private static void writeParticipantsAsCSV(Problem problem, String problemDir) {
-        try {
-            File csvFile = new File(problemDir + "/participants.csv");
-            PrintStream ps = new PrintStream(csvFile);
-
-            ps.println("id;fitness;slot1;slot2;slot3;present1;present2;present3;fitness1;fitness2;fitness3;best;preferences;");
-            for (int i = 0; i < problem.getParticipants().size(); i++) {
-                ps.print(problem.getParticipants().get(i).getId() + ";");
-                ps.print(problem.getParticipants().get(i).getFitness() + ";");
-                ps.print(problem.getParticipants().get(i).getAllocatedProgramIds().get(0) + ";");
-                ps.print(problem.getParticipants().get(i).getAllocatedProgramIds().get(1) + ";");
-                ps.print(problem.getParticipants().get(i).getAllocatedProgramIds().get(2) + ";");
-                ps.print(problem.getParticipants().get(i).getPresent()[0] + ";");
-                ps.print(problem.getParticipants().get(i).getPresent()[1] + ";");
-                ps.print(problem.getParticipants().get(i).getPresent()[2] + ";");
-                ps.print(problem.getParticipants().get(i).getAllocatedPreferences()[0] == null ? ";" : problem.getParticipants().get(i).getAllocatedPreferences()[0].getOrder() + ";");
-                ps.print(problem.getParticipants().get(i).getAllocatedPreferences()[1] == null ? ";" : problem.getParticipants().get(i).getAllocatedPreferences()[1].getOrder() + ";");
-                ps.print(problem.getParticipants().get(i).getAllocatedPreferences()[2] == null ? ";" : problem.getParticipants().get(i).getAllocatedPreferences()[2].getOrder() + ";");
-                ps.print(problem.getParticipants().get(i).getBestPreference() + ";");
-                ps.print(problem.getParticipants().get(i).getOriginalPreferences().stream().map(p -> p.getProgram().getId() + "").collect(Collectors.joining(";")));
-                ps.println();
-            }
-            ps.close();
+    static void writeContentionAsCSV(Problem problem, String problemDir) {
+        write(problem, problemDir, "contention.csv", false, ResultExporter::writeContentionAsCSV);
+    }
 
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    /**
+     * Contention heatmap, one row per program and the counts of each slot in their own columns
+     */
+    static void writeContentionAsCSV(Problem problem, PrintWriter out) {
+        ContentionProfile contention = problem.getContentionProfile();
+        out.print("id;name;");
+        out.print(slotColumns("attempts", "full", "inactive", "absent", "booked", "continuation", "swaps"));
+        out.println("hopeless");
+        for (Program program : problem.getPrograms()) {
+            int index = program.getIndex();
+            out.print(program.getId() + ";");
+            out.print(program.getName().replace(';', ' ') + ";");
+            for (int slot = 0; slot < SLOTS; slot++) out.print(contention.getAttempts(index, slot) + ";");
+            for (Participant.Rejection reason : CSV_REJECTIONS)
+                for (int slot = 0; slot < SLOTS; slot++) out.print(contention.getRejections(index, slot, reason) + ";");
+            for (int slot = 0; slot < SLOTS; slot++) out.print(contention.getSwapAttempts(index, slot) + ";");
+            out.println(contention.getHopeless(index));
         }
+    }
 
+    static void writeContentionAsJson(Problem problem, String problemDir) {
+        write(problem, problemDir, "contention.json", false, ResultExporter::writeContentionAsJson);
     }
 
-    private static void writeProgramsAsJson(Problem problem, String problemDir) {
+    static void writeContentionAsJson(Problem problem, PrintWriter out) throws IOException {
+        ContentionProfile contention = problem.getContentionProfile();
+        List<Map<String, Object>> programs = new ArrayList<>();
+        for (Program program : problem.getPrograms()) {
+            int index = program.getIndex();
+            List<Map<String, Object>> slots = new ArrayList<>();
+            for (int slot = 0; slot < SLOTS; slot++) {
+                Map<String, Object> rejections = new LinkedHashMap<>();
+                for (Participant.Rejection reason : Participant.Rejection.values())
+                    rejections.put(reason.name(), contention.getRejections(index, slot, reason));
+                Map<String, Object> data = new LinkedHashMap<>();
+                data.put("slot", slot + 1);
+                data.put("active", program.isActiveInSlot(slot));
+                data.put("participants", program.getParticipantsInSlot(slot));
+                data.put("attempts", contention.getAttempts(index, slot));
+                data.put("rejections", rejections);
+                data.put("swapAttempts", contention.getSwapAttempts(index, slot));
+                slots.add(data);
+            }
+            Map<String, Object> data = new LinkedHashMap<>();
+            data.put("id", program.getId());
+            data.put("name", program.getName());
+            data.put("hopeless", contention.getHopeless(index));
+            data.put("slots", slots);
+            programs.add(data);
+        }
+        mapper.writeValue(out, programs);
+    }
 
+    /**
+     * @return CSV header columns with the slot number (from 1) after each name, one column per slot
+     */
+    private static String slotColumns(String... names) {
+        StringBuilder columns = new StringBuilder();
+        for (String name : names)
+            for (int slot = 1; slot <= SLOTS; slot++) columns.append(name).append(slot).append(';');
+        return columns.toString();
+    }
 
-        ObjectMapper mapper = new ObjectMapper();
-        try {
-            mapper.writeValue(new File(problemDir + "/programs.json"), problem.getPrograms());
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    static void writeParticipantsAsCSV(Problem problem, String problemDir) {
+        write(problem, problemDir, "participants.csv", false, ResultExporter::writeParticipantsAsCSV);
+    }
+
+    static void writeParticipantsAsCSV(Problem problem, PrintWriter out) {
+        out.println("id;fitness;slot1;slot2;slot3;present1;present2;present3;fitness1;fitness2;fitness3;best;preferences;");
+        for (Participant participant : problem.getParticipants()) {
+            Preference[] allocated = participant.getAllocatedPreferences();
+            out.print(participant.getId() + ";");
+            out.print(participant.getFitness() + ";");
+            for (Preference preference : allocated) out.print((preference == null ? null : preference.getProgramId()) + ";");
+            boolean[] present = participant.getPresent();
+            for (boolean p : present) out.print(p + ";");
+            for (Preference preference : allocated) out.print(preference == null ? ";" : preference.getOrder() + ";");
+            out.print(participant.getBestPreference() + ";");
+            List<Preference> preferences = participant.getOriginalPreferences();
+            for (int i = 0; i < preferences.size(); i++) {
+                if (i > 0) out.print(';');
+                out.print(preferences.get(i).getProgram().getId());
+            }
+            out.println();
         }
+    }
 
+    static void writeProgramsAsJson(Problem problem, String problemDir) {
+        write(problem, problemDir, "programs.json", false, ResultExporter::writeProgramsAsJson);
     }
 
+    static void writeProgramsAsJson(Problem problem, PrintWriter out) throws IOException {
+        mapper.writeValue(out, problem.getPrograms());
+    }
 
     public static void writeProgramAsSQL(Problem problem, String problemDir) {
+        write(problem, problemDir, "programs.sql", false, ResultExporter::writeProgramAsSQL);
+    }
 
-        try {
-
-            File sqlFilePath = new File(problemDir + "/programs.sql");
-            // Create the SQL file
-            FileWriter writer = new FileWriter(sqlFilePath);
-
-
-
-            // Iterate over JSON array
-            for (Program prg : problem.getPrograms()) {
-                var jsonObject = prg.getJSONData();
-
-                // Extract data from JSON object
-                String id = (String) jsonObject.get("id");
-                String name = (String) jsonObject.get("name");
-                String keywords = (String) jsonObject.get("keywords");
-                String author = (String) jsonObject.get("author");
-                String description = (String) jsonObject.get("description");
-                String minSize = prg.getMinPlaces() + "";
-                String maxSize = prg.getMaxPlaces() + "";
-                String roverRecommended = "TRUE".equals(jsonObject.get("roverRecommended")) ? "1" : "0";
-                String availableSlots = prg.getMaxOccurance()+ "";
-                String type = (String) jsonObject.get("type");
-                String countinueInSlot = (String) jsonObject.get("countinueInSlot");
-                String slot3 = "TRUE".equals(jsonObject.get("slot3")) ? "1" : "0";
-                String slot2 = "TRUE".equals(jsonObject.get("slot2")) ? "1" : "0";
-                String slot1 = "TRUE".equals(jsonObject.get("slot1")) ? "1" : "0";
-                String act3 = prg.getAllocatedTimeSlots()[2] ? "1" : "0";
-                String act2 = prg.getAllocatedTimeSlots()[1] ? "1" : "0";
-                String act1 = prg.getAllocatedTimeSlots()[0] ? "1" : "0";
-
-                if (author!=null) author = author.replace("'", "\\'");
-                if (name!=null) name = name.replace("'", "\\'");
-                if (keywords!=null) keywords = keywords.replace("'", "\\'");
-                if (description!=null) description = description.replace("'", "\\'");
-
-                // Generate the SQL INSERT statement
-                String insertQuery = String.format("INSERT INTO program (keywords, author, description, maxSize, roverRecommended, " +
-                                "availableSlots, type, countinueInSlot, slot3, slot2, slot1, act3, act2, act1, name, minSize, id) VALUES ('%s', '%s', '%s', '%s', '%s', '%s', '%s', '%s', '%s', '%s', '%s', '%s', '%s', '%s', '%s', '%s', '%s');\n",
-                        keywords, author, description, maxSize, roverRecommended, availableSlots, type, countinueInSlot,
-                        slot3, slot2, slot1, act3,act2,act1, name, minSize, id);
-
-                // Write the SQL INSERT statement to the file
-                writer.write(insertQuery);
-            }
-
-            // Close the file writer
-            writer.close();
-        } catch (Exception ex) {
-            ex.printStackTrace();
+    static void writeProgramAsSQL(Problem problem, PrintWriter out) {
+        for (Program prg : problem.getPrograms()) {
+            String id = prg.getId() + "";
+            String name = prg.getName();
+            String keywords = prg.getKeywords();
+            String author = prg.getAuthor();
+            String description = prg.getDescription();
+            String minSize = prg.getMinPlaces() + "";
+            String maxSize = prg.getMaxPlaces() + "";
+            String roverRecommended = prg.isRoverRecommended() ? "1" : "0";
+            String availableSlots = prg.getMaxOccurance() + "";
+            String type = prg.getType();
+            String countinueInSlot = prg.getCountinueOnSlot() == null ? "" : prg.getCountinueOnSlot() + "";
+            String slot3 = prg.isPossibleInSlot(2) ? "1" : "0";
+            String slot2 = prg.isPossibleInSlot(1) ? "1" : "0";
+            String slot1 = prg.isPossibleInSlot(0) ? "1" : "0";
+            String act3 = prg.isActiveInSlot(2) ? "1" : "0";
+            String act2 = prg.isActiveInSlot(1) ? "1" : "0";
+            String act1 = prg.isActiveInSlot(0) ? "1" : "0";
+
+            if (author != null) author = author.replace("'", "\\'");
+            if (name != null) name = name.replace("'", "\\'");
+            if (keywords != null) keywords = keywords.replace("'", "\\'");
+            if (description != null) description = description.replace("'", "\\'");
+
+            // Generate the SQL INSERT statement
+            out.print(String.format("INSERT INTO program (keywords, author, description, maxSize, roverRecommended, " +
+                            "availableSlots, type, countinueInSlot, slot3, slot2, slot1, act3, act2, act1, name, minSize, id) VALUES ('%s', '%s', '%s', '%s', '%s', '%s', '%s', '%s', '%s', '%s', '%s', '%s', '%s', '%s', '%s', '%s', '%s');\n",
+                    keywords, author, description, maxSize, roverRecommended, availableSlots, type, countinueInSlot,
+                    slot3, slot2, slot1, act3, act2, act1, name, minSize, id));
         }
     }
 
-
-    private static void writeParticipantsAsJson(Problem problem, String problemDir) {
-        ObjectMapper mapper = new ObjectMapper();
-        try {
-            mapper.writeValue(new File(problemDir + "/participants.json"), problem.getParticipants());
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+    static void writeParticipantsAsJson(Problem problem, String problemDir) {
+        write(problem, problemDir, "participants.json", false, ResultExporter::writeParticipantsAsJson);
     }
 
+    static void writeParticipantsAsJson(Problem problem, PrintWriter out) throws IOException {
+        mapper.writeValue(out, problem.getParticipants());
+    }
 }
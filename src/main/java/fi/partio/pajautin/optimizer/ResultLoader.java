@@ -0,0 +1,67 @@
+package fi.partio.pajautin.optimizer;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import fi.partio.pajautin.optimizer.engine.WarmStartOptimizer;
+import fi.partio.pajautin.optimizer.member.Assignment;
+import fi.partio.pajautin.optimizer.member.ProblemDefinition;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads a previous solution from the participants.json and programs.json of its results directory, for
+ * re-optimizing with WarmStartOptimizer. Gzipped results (exported with --gzip) are read as well.
+ */
+public class ResultLoader {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    public static WarmStartOptimizer.PreviousResult load(String resultsDir) {
+        WarmStartOptimizer.PreviousResult previous = new WarmStartOptimizer.PreviousResult();
+
+        for (JsonNode program : read(resultsDir, "programs.json")) {
+            byte mask = 0;
+            JsonNode slots = program.path("allocatedTimeSlots");
+            for (int slot = 0; slot < slots.size() && slot < ProblemDefinition.SLOT_COUNT; slot++)
+                if (slots.get(slot).asBoolean()) mask |= 1 << slot;
+            previous.setActiveSlots(program.path("id").asInt(), mask);
+        }
+
+        for (JsonNode participant : read(resultsDir, "participants.json")) {
+            String id = participant.path("id").asText();
+            int[] programIds = new int[ProblemDefinition.SLOT_COUNT];
+            JsonNode allocated = participant.path("allocatedProgramIds");
+            for (int slot = 0; slot < programIds.length; slot++) {
+                JsonNode programId = allocated.get(slot);
+                programIds[slot] = programId == null || programId.isNull() ? Assignment.NONE : programId.asInt();
+            }
+            JsonNode preferences = participant.path("originalPreferenceIds");
+            int[] preferenceIds = new int[preferences.size()];
+            for (int i = 0; i < preferenceIds.length; i++) preferenceIds[i] = preferences.get(i).asInt();
+            byte presentMask = 0;
+            JsonNode present = participant.path("present");
+            for (int slot = 0; slot < present.size() && slot < ProblemDefinition.SLOT_COUNT; slot++)
+                if (present.get(slot).asBoolean()) presentMask |= 1 << slot;
+            previous.addParticipant(id, programIds, preferenceIds, presentMask);
+        }
+        return previous;
+    }
+
+    private static JsonNode read(String resultsDir, String fileName) {
+        Path file = Paths.get(resultsDir, fileName);
+        boolean gzip = !Files.exists(file);
+        if (gzip) file = Paths.get(resultsDir, fileName + ".gz");
+        try (InputStream in = gzip ? new GZIPInputStream(Files.newInputStream(file)) : Files.newInputStream(file)) {
+            JsonNode root = mapper.readTree(in);
+            if (!root.isArray()) throw new InputFormatException(file.toString(), 1, 1, "Expected a list");
+            return root;
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read " + file, e);
+        }
+    }
+}
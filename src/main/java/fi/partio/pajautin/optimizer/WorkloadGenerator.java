@@ -0,0 +1,279 @@
+package fi.partio.pajautin.optimizer;
+
+import fi.partio.pajautin.optimizer.member.ProblemDefinition;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Generates synthetic programs, participants and speakers in the same JSON format as the real input files.
+ * The same seed and settings always produce the same data.
+ *
+ * Settings:
+ * - programCount: number of programs, by default one per 27 participants
+ * - zipfExponent: popularity skew of the programs, program with popularity rank r is picked with weight 1 / r^s
+ * - presence mix: share of participants present in all three, two or only one of the time slots
+ * - capacityTightness: total demand (present participant slots) divided by total capacity of the programs
+ * - multiOccurrenceRatio: share of programs that can run in more than one time slot
+ * - continuationRatio: share of programs that continue to the next time slot
+ * - facilitatorRatio: share of programs that have a participant as a facilitator
+ * - fewPreferencesRatio: share of participants with fewer than 10 preferences
+ * - groupRatio: share of participants who copy the preferences and presence of an earlier participant, like
+ *   members of a scout group registering with the same list
+ */
+public class WorkloadGenerator {
+
+    private final int participantCount;
+    private final long seed;
+
+    private int programCount;
+    private double zipfExponent = 0.5;
+    private double presentInAllRatio = 0.8;
+    private double presentInTwoRatio = 0.15;
+    private double capacityTightness = 0.7;
+    private double multiOccurrenceRatio = 0.5;
+    private double continuationRatio = 0.01;
+    private double facilitatorRatio = 0.25;
+    private double fewPreferencesRatio = 0.15;
+    private double groupRatio = 0;
+
+    private List<Map<Object, Object>> programs;
+    private Map<Object, Object> participants;
+    private List<List<Object>> speakers;
+
+    public WorkloadGenerator(int participantCount, long seed) {
+        this.participantCount = participantCount;
+        this.seed = seed;
+        this.programCount = Math.max(10, participantCount / 27);
+    }
+
+    public WorkloadGenerator generate() {
+        Random random = new Random(seed);
+
+        // Participants first, the program capacities depend on how many slots they are present in
+        List<String> ids = new ArrayList<>(participantCount);
+        List<boolean[]> presence = new ArrayList<>(participantCount);
+        // Earlier participant whose registration is copied, -1 if none
+        int[] copyOf = new int[participantCount];
+        int demand = 0;
+        for (int i = 0; i < participantCount; i++) {
+            ids.add(new UUID(random.nextLong(), random.nextLong()).toString());
+            copyOf[i] = -1;
+            if (groupRatio > 0 && i > 0 && random.nextDouble() < groupRatio) copyOf[i] = random.nextInt(i);
+            boolean[] present = copyOf[i] >= 0 ? presence.get(copyOf[i]) : generatePresence(random);
+            for (boolean p : present) if (p) demand++;
+            presence.add(present);
+        }
+
+        programs = generatePrograms(random, demand);
+
+        // Programs in random popularity order, the most popular first
+        List<Integer> popularity = new ArrayList<>();
+        for (int i = 0; i < programCount; i++) popularity.add(i + 1);
+        Collections.shuffle(popularity, random);
+        double[] cumulative = new double[programCount];
+        double total = 0;
+        for (int rank = 0; rank < programCount; rank++) {
+            total += 1.0 / Math.pow(rank + 1, zipfExponent);
+            cumulative[rank] = total;
+        }
+
+        participants = new LinkedHashMap<>();
+        List<List<Integer>> preferenceLists = new ArrayList<>(participantCount);
+        for (int i = 0; i < participantCount; i++) {
+            if (copyOf[i] >= 0) {
+                List<Integer> copied = preferenceLists.get(copyOf[i]);
+                preferenceLists.add(copied);
+                boolean[] present = presence.get(i);
+                Map<Object, Object> participant = new LinkedHashMap<>();
+                participant.put("prog", new ArrayList<>(copied));
+                participant.put("present", Arrays.asList(present[0], present[1], present[2]));
+                participants.put(ids.get(i), participant);
+                continue;
+            }
+            int preferenceCount = random.nextDouble() < fewPreferencesRatio ? 3 + random.nextInt(7) : 10 + random.nextInt(6);
+            preferenceCount = Math.min(preferenceCount, programCount);
+
+            List<Integer> preferences = new ArrayList<>(preferenceCount);
+            Set<Integer> picked = new HashSet<>();
+            int attempts = 0;
+            while (preferences.size() < preferenceCount) {
+                int rank;
+                if (attempts++ < preferenceCount * 50) {
+                    rank = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+                    if (rank < 0) rank = -rank - 1;
+                    rank = Math.min(rank, programCount - 1);
+                } else {
+                    // Very skewed popularity, fill the rest uniformly
+                    rank = random.nextInt(programCount);
+                }
+                int programId = popularity.get(rank);
+                if (picked.add(programId)) preferences.add(programId);
+            }
+
+            preferenceLists.add(preferences);
+            boolean[] present = presence.get(i);
+            Map<Object, Object> participant = new LinkedHashMap<>();
+            participant.put("prog", preferences);
+            participant.put("present", Arrays.asList(present[0], present[1], present[2]));
+            participants.put(ids.get(i), participant);
+        }
+
+        speakers = new ArrayList<>();
+        for (int i = 0; i < programCount && participantCount > 0; i++) {
+            if (random.nextDouble() < facilitatorRatio)
+                speakers.add(Arrays.<Object>asList(i + 1, ids.get(random.nextInt(participantCount))));
+        }
+        return this;
+    }
+
+    private boolean[] generatePresence(Random random) {
+        double r = random.nextDouble();
+        boolean[] present = {true, true, true};
+        if (r < presentInAllRatio) return present;
+        if (r < presentInAllRatio + presentInTwoRatio) {
+            present[random.nextInt(3)] = false;
+            return present;
+        }
+        Arrays.fill(present, false);
+        present[random.nextInt(3)] = true;
+        return present;
+    }
+
+    private List<Map<Object, Object>> generatePrograms(Random random, int demand) {
+        int[] occurance = new int[programCount];
+        boolean[][] possible = new boolean[programCount][3];
+        int[] size = new int[programCount];
+        Integer[] continueInSlot = new Integer[programCount];
+        long sizeTotal = 0;
+
+        for (int i = 0; i < programCount; i++) {
+            if (random.nextDouble() < continuationRatio) {
+                // Starts in the first or second slot and continues to the next one
+                int slot = random.nextInt(2);
+                possible[i][slot] = true;
+                occurance[i] = 1;
+                continueInSlot[i] = slot + 2;
+            } else if (random.nextDouble() < multiOccurrenceRatio) {
+                occurance[i] = 2 + random.nextInt(2);
+                int possibleCount = Math.max(occurance[i], 2 + random.nextInt(2));
+                List<Integer> slots = new ArrayList<>(Arrays.asList(0, 1, 2));
+                Collections.shuffle(slots, random);
+                for (int k = 0; k < possibleCount; k++) possible[i][slots.get(k)] = true;
+            } else {
+                occurance[i] = 1;
+                int possibleCount = 1 + random.nextInt(3);
+                List<Integer> slots = new ArrayList<>(Arrays.asList(0, 1, 2));
+                Collections.shuffle(slots, random);
+                for (int k = 0; k < possibleCount; k++) possible[i][slots.get(k)] = true;
+            }
+            size[i] = 20 + random.nextInt(61);
+            sizeTotal += (long) size[i] * occurance[i];
+        }
+
+        // Scale the sizes so that total capacity = demand / tightness
+        double scale = sizeTotal == 0 ? 1 : demand / capacityTightness / sizeTotal;
+
+        List<Map<Object, Object>> result = new ArrayList<>(programCount);
+        for (int i = 0; i < programCount; i++) {
+            int maxSize = Math.max(2, (int) Math.round(size[i] * scale));
+            int minSize = Math.max(1, Math.min(new int[]{3, 5, 8}[random.nextInt(3)], maxSize / 4));
+
+            Map<Object, Object> program = new LinkedHashMap<>();
+            program.put("id", (i + 1) + "");
+            program.put("name", "Program " + (i + 1));
+            for (int slot = 0; slot < 3; slot++) program.put("slot" + (slot + 1), possible[i][slot] ? "TRUE" : "FALSE");
+            program.put("maxSize", maxSize + "");
+            program.put("minSize", minSize + "");
+            program.put("availableSlots", occurance[i] + "");
+            program.put("countinueInSlot", continueInSlot[i] == null ? "" : continueInSlot[i] + "");
+            program.put("keywords", "");
+            program.put("author", "Author " + (i + 1));
+            program.put("description", "Generated program");
+            program.put("roverRecommended", random.nextInt(4) == 0 ? "TRUE" : "FALSE");
+            program.put("type", "workshop");
+            result.add(program);
+        }
+        return result;
+    }
+
+    /**
+     * Write programs.json, participants.json and speakers.json to the directory
+     */
+    public void writeTo(String directory) {
+        new File(directory).mkdirs();
+        DataUtil.writeJsonFile(programs, directory + "/programs.json");
+        DataUtil.writeJsonFile(participants, directory + "/participants.json");
+        DataUtil.writeJsonFile(speakers, directory + "/speakers.json");
+        System.out.println("Generated " + programs.size() + " programs, " + participants.size() + " participants and "
+                + speakers.size() + " facilitators to " + directory + " with seed " + seed);
+    }
+
+    /**
+     * @return problem definition of the generated data, without writing it to files
+     */
+    public ProblemDefinition toProblemDefinition() {
+        return new ProblemDefinition(programs, participants, speakers);
+    }
+
+    public List<Map<Object, Object>> getPrograms() {
+        return programs;
+    }
+
+    public Map<Object, Object> getParticipants() {
+        return participants;
+    }
+
+    public List<List<Object>> getSpeakers() {
+        return speakers;
+    }
+
+    public void setProgramCount(int programCount) {
+        this.programCount = programCount;
+    }
+
+    public void setZipfExponent(double zipfExponent) {
+        this.zipfExponent = zipfExponent;
+    }
+
+    /**
+     * Share of participants present in all three and in two time slots, the rest are present in one
+     */
+    public void setPresenceMix(double presentInAllRatio, double presentInTwoRatio) {
+        this.presentInAllRatio = presentInAllRatio;
+        this.presentInTwoRatio = presentInTwoRatio;
+    }
+
+    public void setCapacityTightness(double capacityTightness) {
+        this.capacityTightness = capacityTightness;
+    }
+
+    public void setMultiOccurrenceRatio(double multiOccurrenceRatio) {
+        this.multiOccurrenceRatio = multiOccurrenceRatio;
+    }
+
+    public void setContinuationRatio(double continuationRatio) {
+        this.continuationRatio = continuationRatio;
+    }
+
+    public void setFacilitatorRatio(double facilitatorRatio) {
+        this.facilitatorRatio = facilitatorRatio;
+    }
+
+    public void setFewPreferencesRatio(double fewPreferencesRatio) {
+        this.fewPreferencesRatio = fewPreferencesRatio;
+    }
+
+    public void setGroupRatio(double groupRatio) {
+        this.groupRatio = groupRatio;
+    }
+}
@@ -0,0 +1,435 @@
+package fi.partio.pajautin.optimizer.engine;
+
+import fi.partio.pajautin.optimizer.member.Assignment;
+import fi.partio.pajautin.optimizer.member.Problem;
+import fi.partio.pajautin.optimizer.member.ProblemDefinition;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Improves an existing solution (normally the result of EagerOptimizer) with late acceptance hill climbing.
+ * A candidate move is accepted if it does not make the fitness worse than the current fitness, or than the
+ * fitness historyLength iterations ago.
+ *
+ * Moves:
+ * - move: give the participant another of their preferences in the slot (also fills an unallocated slot)
+ * - swap: two participants in different programs exchange their programs in the slot
+ * - slot exchange: the participant's programs in two slots exchange their slots
+ * - program slot move: a program moves to another of its possible slots with its whole roster, and each
+ *   participant of the roster (and each facilitator of the program) takes their program in the new slot to
+ *   the old slot in exchange
+ *
+ * The moves of one or two participants are evaluated in O(1), and a program slot move in the size of the
+ * roster, before they are applied. Moves that would break max or min places, presence (and thus facilitators),
+ * continuation slots or give a participant the same program twice are not made. The slot exchanges do not
+ * change the fitness, but they move participants out of the way of the other moves.
+ *
+ * The best solution is copied only when the search is about to leave it with a worsening move, so a climb
+ * that keeps improving does not copy the assignment at all.
+ */
+public class AnnealingOptimizer extends Optimizer {
+
+    private static final Logger log = LogManager.getLogger(AnnealingOptimizer.class);
+
+    private static final int SLOTS = ProblemDefinition.SLOT_COUNT;
+
+    // How many curve points are recorded over the time budget
+    private static final int CURVE_POINTS = 50;
+
+    // Share of each kind of move, as cumulative limits of a random number in [0, 1)
+    private static final float MOVE = 0.5f;
+    private static final float SWAP = 0.85f;
+    private static final float SLOT_EXCHANGE = 0.95f;
+
+    private long timeBudgetMillis = 10 * 1000;
+
+    private int historyLength = 1000;
+
+    private final List<FitnessPoint> fitnessCurve = new ArrayList<>();
+
+    private long iterations;
+
+    private long acceptedMoves;
+
+    // Fitness change of the move evaluated last
+    private int delta;
+
+    // Participants of the program slot move evaluated last: the roster, followed by the facilitators
+    private int[] moved = new int[16];
+    private int movedCount;
+    private int rosterCount;
+
+    // Number of participants of the program slot move who take each program to the old slot, by program index
+    private int[] taken;
+    // Programs with a non-zero count in taken
+    private int[] takenPrograms;
+
+    public AnnealingOptimizer(Problem problem) {
+        super(problem);
+    }
+
+    public AnnealingOptimizer(Problem problem, long seed) {
+        super(problem, seed);
+    }
+
+    @Override
+    public void optimize() {
+        Assignment state = problem.getAssignment();
+        int participantCount = state.getDefinition().getParticipantCount();
+        if (participantCount == 0) return;
+
+        long startTime = System.currentTimeMillis();
+        long deadline = startTime + timeBudgetMillis;
+        long curveInterval = Math.max(1, timeBudgetMillis / CURVE_POINTS);
+        long nextCurvePoint = startTime;
+
+        int current = problem.calculateFitness();
+        int best = current;
+        int initial = current;
+        Assignment bestState = null;
+        // Whether bestState holds a solution with the best fitness
+        boolean bestSaved = false;
+        int[] history = new int[historyLength];
+        Arrays.fill(history, current);
+
+        taken = new int[state.getDefinition().getProgramCount()];
+        takenPrograms = new int[state.getDefinition().getProgramCount()];
+        fitnessCurve.clear();
+        iterations = 0;
+        acceptedMoves = 0;
+        startPhase("improvement");
+
+        while (true) {
+            if ((iterations & 1023) == 0) {
+                long now = System.currentTimeMillis();
+                if (now >= nextCurvePoint) {
+                    fitnessCurve.add(new FitnessPoint(now - startTime, iterations, best));
+                    nextCurvePoint += curveInterval;
+                }
+                if (now >= deadline || Thread.currentThread().isInterrupted()) break;
+            }
+
+            int participant = getRandom().nextInt(participantCount);
+            int slot = getRandom().nextInt(SLOTS);
+            int v = (int) (iterations % historyLength);
+            iterations++;
+
+            // Participants without preferences or presence in the slot have no moves
+            if (!state.isPresent(participant, slot) || state.getDefinition().getPreferenceCount(participant) == 0) continue;
+
+            // Evaluate a random move, and apply it if it is accepted
+            float kind = getRandom().nextFloat();
+            int rank = getRandom().nextInt(state.getDefinition().getPreferenceCount(participant));
+            int other = Assignment.NONE;
+            int otherSlot = (slot + 1 + getRandom().nextInt(SLOTS - 1)) % SLOTS;
+            boolean valid;
+            if (kind < MOVE) {
+                valid = evaluateMove(state, participant, slot, rank);
+            } else if (kind < SWAP) {
+                other = pickSwapPartner(state, participant, slot, rank);
+                valid = other != Assignment.NONE && evaluateSwap(state, participant, other, slot, rank);
+            } else if (kind < SLOT_EXCHANGE) {
+                valid = evaluateSlotExchange(state, participant, slot, otherSlot);
+            } else {
+                valid = evaluateProgramSlotMove(state, state.getAllocatedProgram(participant, slot), slot, otherSlot);
+            }
+
+            if (valid && accept(current, history[v])) {
+                // Leaving the best solution: save it first
+                if (delta > 0 && current == best && !bestSaved) {
+                    if (bestState == null) bestState = state.copy();
+                    else bestState.restore(state);
+                    bestSaved = true;
+                }
+                if (kind < MOVE) applyMove(state, participant, slot, rank);
+                else if (kind < SWAP) applySwap(state, participant, other, slot, rank);
+                else if (kind < SLOT_EXCHANGE) applySlotExchange(state, participant, slot, otherSlot);
+                else applyProgramSlotMove(state, state.getAllocatedProgram(participant, slot), slot, otherSlot);
+                acceptedMoves++;
+                current += delta;
+                if (current < best) {
+                    best = current;
+                    bestSaved = false;
+                }
+            }
+            if (current < history[v]) history[v] = current;
+        }
+
+        // Return to the best solution seen
+        if (bestState != null && current > best) state.restore(bestState);
+        fitnessCurve.add(new FitnessPoint(System.currentTimeMillis() - startTime, iterations, best));
+        phase.addIterations(iterations);
+        phase.addSwapsEvaluated(iterations);
+        phase.addSwapsExecuted(acceptedMoves);
+        endPhase();
+
+        log.info("Improved fitness from " + initial + " to " + problem.calculateFitness() + " in " + iterations + " iterations, " + acceptedMoves + " moves accepted");
+    }
+
+    private boolean accept(int current, int historic) {
+        int candidate = current + delta;
+        return candidate <= current || candidate <= historic;
+    }
+
+    /**
+     * Fitness of a slot with given allocated rank, or the penalty of an unallocated slot
+     */
+    private static int slotFitness(ProblemDefinition definition, int participant, int rank) {
+        if (rank == Assignment.NONE) return Math.min(definition.getPreferenceCount(participant) + 3, 13);
+        return rank + 1;
+    }
+
+    /**
+     * @return whether the program can be taken out of the slot of the participant without breaking constraints
+     */
+    private static boolean isMovable(Assignment state, int participant, int slot) {
+        int rank = state.getAllocated(participant, slot);
+        if (rank == Assignment.NONE) return true;
+        if ((rank & Assignment.CONTINUATION) != 0) return false;
+        return !state.getDefinition().hasContinuation(state.getAllocatedProgram(participant, slot));
+    }
+
+    /**
+     * @return whether the program can have one participant more in the slot
+     */
+    private static boolean canAdd(Assignment state, int program, int slot) {
+        ProblemDefinition definition = state.getDefinition();
+        return state.isActive(program, slot) && !definition.hasContinuation(program)
+                && state.getAssignedCount(program, slot) < definition.getMaxPlaces(program);
+    }
+
+    /**
+     * @return whether the program can have one participant less in the slot
+     */
+    private static boolean canRemove(Assignment state, int program, int slot) {
+        return state.getAssignedCount(program, slot) - 1 >= state.getDefinition().getMinPlaces(program);
+    }
+
+    /**
+     * @return whether the participant has the program in some other slot than the given one
+     */
+    private static boolean hasProgramElsewhere(Assignment state, int participant, int program, int slot) {
+        for (int i = 0; i < SLOTS; i++)
+            if (i != slot && state.getAllocatedProgram(participant, i) == program) return true;
+        return false;
+    }
+
+    private boolean evaluateMove(Assignment state, int participant, int slot, int rank) {
+        if (!isMovable(state, participant, slot)) return false;
+        int currentRank = state.getAllocated(participant, slot);
+        int from = state.getAllocatedProgram(participant, slot);
+        int to = state.getDefinition().getPreference(participant, rank);
+        if (to == from || !canAdd(state, to, slot) || hasProgramElsewhere(state, participant, to, slot)) return false;
+        if (from != Assignment.NONE && !canRemove(state, from, slot)) return false;
+
+        ProblemDefinition definition = state.getDefinition();
+        delta = slotFitness(definition, participant, rank) - slotFitness(definition, participant, currentRank);
+        return true;
+    }
+
+    private void applyMove(Assignment state, int participant, int slot, int rank) {
+        state.unassign(participant, slot);
+        state.assign(participant, slot, rank);
+    }
+
+    /**
+     * @return random participant assigned in the slot to the participant's preference with given rank, or NONE
+     */
+    private int pickSwapPartner(Assignment state, int participant, int slot, int rank) {
+        int program = state.getDefinition().getPreference(participant, rank);
+        int count = state.getAssignedCount(program, slot);
+        if (count == 0) return Assignment.NONE;
+        return state.getAssigned(program, slot, getRandom().nextInt(count));
+    }
+
+    private boolean evaluateSwap(Assignment state, int participant, int other, int slot, int rank) {
+        if (!isMovable(state, participant, slot) || !isMovable(state, other, slot)) return false;
+        int from = state.getAllocatedProgram(participant, slot);
+        int to = state.getAllocatedProgram(other, slot);
+        if (from == Assignment.NONE || from == to) return false;
+        ProblemDefinition definition = state.getDefinition();
+        int otherRank = definition.getPreferenceRank(other, from);
+        if (otherRank < 0) return false;
+        if (hasProgramElsewhere(state, participant, to, slot) || hasProgramElsewhere(state, other, from, slot)) return false;
+
+        delta = (rank - state.getAllocated(participant, slot)) + (otherRank - state.getAllocated(other, slot));
+        return true;
+    }
+
+    private void applySwap(Assignment state, int participant, int other, int slot, int rank) {
+        int otherRank = state.getDefinition().getPreferenceRank(other, state.getAllocatedProgram(participant, slot));
+        state.unassign(participant, slot);
+        state.unassign(other, slot);
+        state.assign(participant, slot, rank);
+        state.assign(other, slot, otherRank);
+    }
+
+    private boolean evaluateSlotExchange(Assignment state, int participant, int slot, int otherSlot) {
+        if (!state.isPresent(participant, otherSlot)) return false;
+        if (!isMovable(state, participant, slot) || !isMovable(state, participant, otherSlot)) return false;
+        int first = state.getAllocatedProgram(participant, slot);
+        int second = state.getAllocatedProgram(participant, otherSlot);
+        if (first == Assignment.NONE || second == Assignment.NONE || first == second) return false;
+        if (!canAdd(state, first, otherSlot) || !canAdd(state, second, slot)) return false;
+        if (!canRemove(state, first, slot) || !canRemove(state, second, otherSlot)) return false;
+
+        // Same preferences, only in different slots
+        delta = 0;
+        return true;
+    }
+
+    private void applySlotExchange(Assignment state, int participant, int slot, int otherSlot) {
+        int firstRank = state.getAllocated(participant, slot);
+        int secondRank = state.getAllocated(participant, otherSlot);
+        state.unassign(participant, slot);
+        state.unassign(participant, otherSlot);
+        state.assign(participant, slot, secondRank);
+        state.assign(participant, otherSlot, firstRank);
+    }
+
+    /**
+     * Program slot move: the program moves from slot to otherSlot, where it is not active yet, with its roster.
+     * The participants of the roster take their programs in otherSlot to slot, and the facilitators of the
+     * program, who become free in slot and busy in otherSlot, do the same. Only the slots of the allocations
+     * change, so the fitness does not.
+     */
+    private boolean evaluateProgramSlotMove(Assignment state, int program, int slot, int otherSlot) {
+        ProblemDefinition definition = state.getDefinition();
+        if (program == Assignment.NONE || definition.hasContinuation(program) || !definition.isPossible(program, otherSlot)
+                || !state.isActive(program, slot) || state.isActive(program, otherSlot)) return false;
+
+        movedCount = 0;
+        int takenCount = 0;
+        boolean valid = true;
+        rosterCount = state.getAssignedCount(program, slot);
+        for (int i = 0; i < rosterCount && valid; i++) {
+            int participant = state.getAssigned(program, slot, i);
+            valid = state.isPresent(participant, otherSlot) && isMovable(state, participant, slot) && isMovable(state, participant, otherSlot);
+            if (valid) takenCount = addMoved(state, participant, otherSlot, takenCount);
+        }
+        for (int i = 0; i < definition.getFacilitatorCount(program) && valid; i++) {
+            int facilitator = definition.getFacilitator(program, i);
+            valid = state.isPresent(facilitator, otherSlot) && isMovable(state, facilitator, otherSlot)
+                    && definition.isPresent(facilitator, slot) && !isFacilitatingElsewhere(state, facilitator, program, slot);
+            if (valid) takenCount = addMoved(state, facilitator, otherSlot, takenCount);
+        }
+
+        // The programs taken to slot must fit there and must not drop below min places in otherSlot
+        for (int i = 0; i < takenCount; i++) {
+            int other = takenPrograms[i];
+            if (valid) valid = state.isActive(other, slot) && !definition.hasContinuation(other)
+                    && state.getAssignedCount(other, slot) + taken[other] <= definition.getMaxPlaces(other)
+                    && state.getAssignedCount(other, otherSlot) - taken[other] >= definition.getMinPlaces(other);
+            taken[other] = 0;
+        }
+        delta = 0;
+        return valid;
+    }
+
+    /**
+     * Add the participant to the moved participants and count the program it takes from otherSlot
+     *
+     * @return new number of programs in takenPrograms
+     */
+    private int addMoved(Assignment state, int participant, int otherSlot, int takenCount) {
+        if (movedCount == moved.length) moved = Arrays.copyOf(moved, moved.length * 2);
+        moved[movedCount++] = participant;
+        int other = state.getAllocatedProgram(participant, otherSlot);
+        if (other == Assignment.NONE) return takenCount;
+        if (taken[other]++ == 0) takenPrograms[takenCount++] = other;
+        return takenCount;
+    }
+
+    /**
+     * @return whether the facilitator facilitates some other program than the given one active in the slot
+     */
+    private static boolean isFacilitatingElsewhere(Assignment state, int facilitator, int program, int slot) {
+        ProblemDefinition definition = state.getDefinition();
+        for (int i = 0; i < definition.getFacilitatedProgramCount(facilitator); i++) {
+            int other = definition.getFacilitatedProgram(facilitator, i);
+            if (other != program && state.isActive(other, slot)) return true;
+        }
+        return false;
+    }
+
+    private void applyProgramSlotMove(Assignment state, int program, int slot, int otherSlot) {
+        state.setActive(program, otherSlot, true);
+        for (int i = 0; i < rosterCount; i++) {
+            int participant = moved[i];
+            int programRank = state.getAllocated(participant, slot);
+            int otherRank = state.getAllocated(participant, otherSlot);
+            state.unassign(participant, slot);
+            state.unassign(participant, otherSlot);
+            state.assign(participant, otherSlot, programRank);
+            if (otherRank != Assignment.NONE) state.assign(participant, slot, otherRank);
+        }
+        state.setActive(program, slot, false);
+        for (int i = rosterCount; i < movedCount; i++) {
+            int facilitator = moved[i];
+            int otherRank = state.getAllocated(facilitator, otherSlot);
+            state.unassign(facilitator, otherSlot);
+            state.setPresent(facilitator, otherSlot, false);
+            state.setPresent(facilitator, slot, true);
+            if (otherRank != Assignment.NONE) state.assign(facilitator, slot, otherRank);
+        }
+    }
+
+    public void setTimeBudgetMillis(long timeBudgetMillis) {
+        this.timeBudgetMillis = timeBudgetMillis;
+    }
+
+    public void setHistoryLength(int historyLength) {
+        this.historyLength = historyLength;
+    }
+
+    /**
+     * @return best fitness over time, sampled CURVE_POINTS times over the time budget and at the end
+     */
+    public List<FitnessPoint> getFitnessCurve() {
+        return fitnessCurve;
+    }
+
+    public long getIterations() {
+        return iterations;
+    }
+
+    public long getAcceptedMoves() {
+        return acceptedMoves;
+    }
+
+    /**
+     * Best fitness found after given time and number of iterations
+     */
+    public static class FitnessPoint {
+        private final long millis;
+        private final long iterations;
+        private final int fitness;
+
+        public FitnessPoint(long millis, long iterations, int fitness) {
+            this.millis = millis;
+            this.iterations = iterations;
+            this.fitness = fitness;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        public long getIterations() {
+            return iterations;
+        }
+
+        public int getFitness() {
+            return fitness;
+        }
+
+        @Override
+        public String toString() {
+            return millis + " ms: " + fitness;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package fi.partio.pajautin.optimizer.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What changed between a previous solution and the solution re-optimized from it with WarmStartOptimizer:
+ * participants who were added, removed or changed their registration, participants whose programs changed,
+ * and programs whose time slots were dropped or that are now below their minimum.
+ */
+public class ChangeReport {
+
+    public enum Status {
+        ADDED,
+        REMOVED,
+        // Preferences or presence changed
+        CHANGED,
+        // Registration did not change, but the allocation did
+        MOVED
+    }
+
+    /**
+     * One participant whose registration or allocation changed. Programs are the allocated program ids in each
+     * time slot as in participants.json, null when not allocated.
+     */
+    public static class Entry {
+        private final String participantId;
+        private final Status status;
+        private final Integer[] before;
+        private final Integer[] after;
+
+        Entry(String participantId, Status status, Integer[] before, Integer[] after) {
+            this.participantId = participantId;
+            this.status = status;
+            this.before = before;
+            this.after = after;
+        }
+
+        public String getParticipantId() {
+            return participantId;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public Integer[] getBefore() {
+            return before;
+        }
+
+        public Integer[] getAfter() {
+            return after;
+        }
+
+        /**
+         * @return number of time slots where the allocated program changed
+         */
+        public int getChangedSlots() {
+            int count = 0;
+            for (int slot = 0; slot < before.length; slot++)
+                if (!java.util.Objects.equals(before[slot], after[slot])) count++;
+            return count;
+        }
+
+        @Override
+        public String toString() {
+            return participantId + " " + status + ": " + Arrays.toString(before) + " -> " + Arrays.toString(after);
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<>();
+
+    private final List<String> droppedProgramSlots = new ArrayList<>();
+
+    private final List<Integer> programsBelowMinimum = new ArrayList<>();
+
+    private int keptAllocations;
+
+    private int lostAllocations;
+
+    private int repairedParticipants;
+
+    private long repairMillis;
+
+    void add(Entry entry) {
+        entries.add(entry);
+    }
+
+    void addDroppedProgramSlot(int programId, int slot) {
+        droppedProgramSlots.add(programId + " in time slot " + (slot + 1));
+    }
+
+    void addProgramBelowMinimum(int programId) {
+        programsBelowMinimum.add(programId);
+    }
+
+    void setAllocations(int kept, int lost) {
+        keptAllocations = kept;
+        lostAllocations = lost;
+    }
+
+    void setRepair(int participants, long millis) {
+        repairedParticipants = participants;
+        repairMillis = millis;
+    }
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    public List<Entry> getEntries(Status status) {
+        List<Entry> result = new ArrayList<>();
+        for (Entry entry : entries) if (entry.getStatus() == status) result.add(entry);
+        return result;
+    }
+
+    /**
+     * @return programs that were active in a time slot in the previous solution, but can not be any more
+     */
+    public List<String> getDroppedProgramSlots() {
+        return Collections.unmodifiableList(droppedProgramSlots);
+    }
+
+    public List<Integer> getProgramsBelowMinimum() {
+        return Collections.unmodifiableList(programsBelowMinimum);
+    }
+
+    /**
+     * @return allocations of the previous solution that were kept as they were
+     */
+    public int getKeptAllocations() {
+        return keptAllocations;
+    }
+
+    /**
+     * @return allocations of the previous solution that were no longer valid
+     */
+    public int getLostAllocations() {
+        return lostAllocations;
+    }
+
+    public int getRepairedParticipants() {
+        return repairedParticipants;
+    }
+
+    public long getRepairMillis() {
+        return repairMillis;
+    }
+
+    @Override
+    public String toString() {
+        int changedSlots = 0;
+        for (Entry entry : entries) changedSlots += entry.getChangedSlots();
+        return "Added " + getEntries(Status.ADDED).size() + ", removed " + getEntries(Status.REMOVED).size()
+                + ", changed " + getEntries(Status.CHANGED).size() + " and moved " + getEntries(Status.MOVED).size() + " participants, "
+                + changedSlots + " allocations changed. Kept " + keptAllocations + " and lost " + lostAllocations
+                + " previous allocations, repaired " + repairedParticipants + " participants in " + repairMillis + " ms."
+                + (droppedProgramSlots.isEmpty() ? "" : " Dropped time slots: " + droppedProgramSlots + ".")
+                + (programsBelowMinimum.isEmpty() ? "" : " Programs below minimum: " + programsBelowMinimum + ".");
+    }
+}
@@ -1,17 +1,20 @@
 package fi.partio.pajautin.optimizer.engine;
 
+import fi.partio.pajautin.optimizer.member.Assignment;
 import fi.partio.pajautin.optimizer.member.Participant;
-import fi.partio.pajautin.optimizer.member.Preference;
+import fi.partio.pajautin.optimizer.member.ParticipantClasses;
 import fi.partio.pajautin.optimizer.member.Problem;
+import fi.partio.pajautin.optimizer.member.ProblemDefinition;
 import fi.partio.pajautin.optimizer.member.Program;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
 
 public class EagerOptimizer extends Optimizer {
 
@@ -21,65 +24,244 @@ public class EagerOptimizer extends Optimizer {
     private static final Logger log = LogManager.getLogger(EagerOptimizer.class);
 
 
+    /**
+     * Rules of the fixed case propagation, see resolveFixedCases
+     */
+    public enum Rule {
+        // A program with one possible slot and between min and max places of participants who want it most
+        // gets all of them
+        TRIVIAL,
+        // A program with one possible slot gets the participants who want it most, fairly, as far as it has space
+        FIXED
+    }
+
+    // Print the resulting programs and unallocated participants after optimization
+    private boolean verbose = true;
+
+    // How many times each rule fired
+    private final long[] propagations = new long[Rule.values().length];
+
+    // Programs waiting for a rule to be applied to them, and whether each program is in the worklist
+    private final ArrayDeque<Program> worklist = new ArrayDeque<>();
+    private boolean[] queued;
+    // Programs the rule being propagated applies to
+    private boolean[] applicable;
+
+    // Groups of the worst-first phase by id, and the heap of their ids. There are never more groups than
+    // participants to serve, so the ids of the served groups are reused.
+    private IndexedHeap worstFirst;
+    private MemberGroup[] groups;
+    private final ArrayDeque<Integer> freeIds = new ArrayDeque<>();
+    // Groups that members can still join, by participant class
+    private final Map<Integer, List<MemberGroup>> openGroups = new HashMap<>();
+    private ParticipantClasses classes;
+
     public EagerOptimizer(Problem problem) {
         super(problem);
     }
 
+    public EagerOptimizer(Problem problem, long seed) {
+        super(problem, seed);
+    }
+
     @Override
     public void optimize() {
 
+        resolveFixedCases();
 
-        // Resolve trivial cases until there are no more
-        for (int i = resolveTrivialCases(); i > 0; i = resolveTrivialCases()) {
-            log.info("Resolved " + i + " trivial cases");
+        allocatePrograms();
 
-        }
+        assignRemainingParticipants();
 
+        drawClassLottery();
 
+        tryToAllocateUnallocatedParticipants();
+
+        tryToFindPeopleForProgramsUnderMinimum();
+
+        if (verbose) printStuff();
+
+    }
+
+    /**
+     * Phase 1: resolve programs that have only one possible time slot.
+     *
+     * The rules are propagated with a worklist of programs instead of rounds over all the programs: a program
+     * is queued again only when a participant assigned by a rule gets it as the new top preference, so the
+     * propagation runs to a fixpoint in time proportional to the assignments made. TRIVIAL is propagated to
+     * the end first, then FIXED, starting from the most popular programs.
+     */
+    void resolveFixedCases() {
+
+        // Resolve trivial cases until there are no more
+        startPhase("trivial-cases");
+        log.info("Resolved " + propagate(Rule.TRIVIAL) + " trivial cases");
         pruneResolvedParticipants();
         pruneResolvedPrograms();
+        endPhase();
 
 
         // Resolve non-trivial but timeslot-fixed cases until there are no more
-        for (int i = resolveNonTrivialFixedCases(); i > 0; i = resolveNonTrivialFixedCases()) {
-            log.info("Resolved " + i + " non-trivial fixed cases");
+        startPhase("fixed-cases");
+        problem.sortProgramsByPrimaryPreferenceCount();
+        log.info("Resolved " + propagate(Rule.FIXED) + " non-trivial fixed cases");
+        pruneResolvedParticipants();
+        pruneResolvedPrograms();
+        endPhase();
+    }
 
+    /**
+     * Apply the rule to the unprocessed programs with one possible time slot, in the order of the unprocessed
+     * programs, and again to each program that becomes the top preference of an assigned participant, until
+     * the worklist is empty
+     *
+     * @return number of participants assigned
+     */
+    private int propagate(Rule rule) {
+        int programCount = problem.getPrograms().size();
+        queued = new boolean[programCount];
+        applicable = new boolean[programCount];
+        for (Program program : problem.getUnprocessedPrograms()) {
+            if (program.getPossibleTimeSlotCount() != 1) continue;
+            applicable[program.getIndex()] = true;
+            enqueue(program.getIndex());
         }
 
-        pruneResolvedParticipants();
-        pruneResolvedPrograms();
+        int count = 0;
+        while (!worklist.isEmpty()) {
+            Program program = worklist.poll();
+            queued[program.getIndex()] = false;
+            if (rule == Rule.TRIVIAL) {
+                int primary = problem.getAssignment().getTopPreferences().getCount(program.getIndex());
+                if (primary < program.getMinPlaces() || primary > program.getMaxPlaces()) continue;
+            }
+            propagations[rule.ordinal()]++;
+            phase.addIterations(1);
+
+            int slot = program.getFirstPossibleSlot();
+            if (!program.isActiveInSlot(slot)) program.assignToSlot(slot);
+            program.setResolved();
+            List<Participant> participants = program.getParticipantsWithTopPreference();
+            if (rule == Rule.TRIVIAL) {
+                for (Participant participant : participants) {
+                    boolean made = participant.assignFirstPreference(slot);
+                    countAssignment(made);
+                    if (made) count++;
+                }
+            } else {
+                count += allocateFairly(program, participants, slot);
+            }
+            // Assigned participants have moved on to their next preference
+            for (Participant participant : participants) {
+                int next = problem.getAssignment().getTopPreference(participant.getIndex());
+                if (next != program.getIndex() && next != Assignment.NONE) enqueue(next);
+            }
+        }
+        return count;
+    }
+
+    private void enqueue(int program) {
+        if (!applicable[program] || queued[program]) return;
+        queued[program] = true;
+        worklist.add(problem.getPrograms().get(program));
+    }
+
+    /**
+     * @return how many times the rule has been applied to a program
+     */
+    public long getPropagations(Rule rule) {
+        return propagations[rule.ordinal()];
+    }
 
-        // Allocate time slots for all the programs and assign participants to them when possible
+    /**
+     * Phase 2: allocate time slots for all the programs and assign participants to them when possible
+     */
+    void allocatePrograms() {
+        startPhase("program-allocation");
         while (problem.getUnprocessedPrograms().size() > 0) {
+            phase.addIterations(1);
             allocateMostPopularProgram();
             pruneResolvedParticipants();
             pruneResolvedPrograms();
         }
+        endPhase();
+    }
 
-
-        // Assign remaining participants to programs
-        // Begin with participants with the worst fitness (i.e. most unfairly treated)
+    /**
+     * Phase 3: assign remaining participants to programs.
+     * Begin with participants with the worst fitness (i.e. most unfairly treated). Interchangeable members of a
+     * participant class are one entry in the heap, see MemberGroup.
+     */
+    void assignRemainingParticipants() {
+        startPhase("worst-first");
+        int participantCount = problem.getParticipants().size();
+        worstFirst = new IndexedHeap(participantCount);
+        groups = new MemberGroup[participantCount];
+        freeIds.clear();
+        openGroups.clear();
+        classes = problem.getDefinition().getParticipantClasses();
+        List<MemberGroup> initial = groupByState(problem.getUnprocessedParticipants(), false);
+        for (MemberGroup group : initial) {
+            groups[group.id] = group;
+            openGroups.computeIfAbsent(classes.getClassOf(group.peek()), c -> new ArrayList<>(1)).add(group);
+            worstFirst.put(group.id, worstFirstKey(group));
+        }
+        for (int id = participantCount - 1; id >= initial.size(); id--) freeIds.push(id);
+        // Each step either allocates a slot or resolves the participant
+        int maxIterations = participantCount * (ProblemDefinition.SLOT_COUNT + 1);
         int i = 0;
-        while (problem.getUnprocessedParticipants().size() > 0 || i > 10000) {
+        while (!worstFirst.isEmpty() && i < maxIterations) {
             i++;
             assignWorstOfParticipantToProgram();
-            pruneResolvedParticipants();
-            pruneResolvedPrograms();
         }
-        if (i == 10000) {
+        pruneResolvedParticipants();
+        pruneResolvedPrograms();
+        if (!worstFirst.isEmpty()) {
             log.error("Reached maximum number of iterations. Probably stuck in a loop.");
         }
+        phase.addIterations(i);
+        endPhase();
+    }
 
+    /**
+     * Phase 3b: lottery within each participant class. allocateFairly and the worst-first phase serve the
+     * members of a class in member order, so the first members get the places that run out. The resolved
+     * members with their registered presence exchange their allocations in a random order, so that each of
+     * them is equally likely to end up with any of the allocations of the class.
+     */
+    void drawClassLottery() {
+        startPhase("class-lottery");
+        ProblemDefinition definition = problem.getDefinition();
+        ParticipantClasses classes = definition.getParticipantClasses();
+        Assignment state = problem.getAssignment();
+        int[] members = new int[definition.getParticipantCount()];
+        for (int c = 0; c < classes.getClassCount(); c++) {
+            int count = 0;
+            for (int position = 0; position < classes.getSize(c); position++) {
+                int member = classes.getMember(c, position);
+                if (state.getPresentMask(member) == definition.getPresentMask(member) && problem.getParticipantAt(member).isResolved())
+                    members[count++] = member;
+            }
+            if (count < 2) continue;
+            phase.addIterations(1);
+            // Fisher-Yates shuffle of the allocations
+            for (int i = count - 1; i > 0; i--) {
+                int j = getRandom().nextInt(i + 1);
+                if (j != i) state.exchange(members[i], members[j]);
+            }
+        }
+        endPhase();
+    }
 
-        tryToAllocateUnallocatedParticipants();
-
-        tryToFindPeopleForProgramsUnderMinimum();
-
-        printStuff();
-
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
     }
 
-    private void tryToFindPeopleForProgramsUnderMinimum() {
+    /**
+     * Phase 5: move participants to programs that are below their minimum
+     */
+    void tryToFindPeopleForProgramsUnderMinimum() {
+        startPhase("under-minimum-repair");
         List<Program> programsWithTooFewParticipants = problem.getProgramsWithTooFewParticipants();
         for (var program : programsWithTooFewParticipants) {
                     if (program.getAllocatedTimeSlotCount()>1) {
@@ -87,18 +269,20 @@ public class EagerOptimizer extends Optimizer {
                     }
 
                     for (int i=0; i<program.getAllocatedTimeSlots().length; i++) {
-                        if (program.getAllocatedTimeSlots()[i] && program.getAssignedParticipants(i).size()<program.getMinPlaces()) {
+                        if (program.isActiveInSlot(i) && program.getParticipantsInSlot(i)<program.getMinPlaces()) {
+                            phase.addIterations(1);
                             tryToFindPersonsForProgram(program, i);
                         }
                     }
                 }
+        endPhase();
 
     }
 
     private void tryToFindPersonsForProgram(Program program, int slot) {
 
         // check how many people we need to make the program above minimum
-        int missing = program.getMinPlaces() - program.getAssignedParticipants(slot).size();
+        int missing = program.getMinPlaces() - program.getParticipantsInSlot(slot);
         log.debug("Trying to find "+missing+" persons for program " + program + " for slot " + slot+ " to make it above minimum.");
         if (missing > FORCE_MOVE_TRESHOLD) {
             log.warn("Program "+program+" has too few participants, but the number of missing participants is too high to force move people. Consider decreasing number of minimum slot for program.");
@@ -108,37 +292,32 @@ public class EagerOptimizer extends Optimizer {
         // -are not in the program already
         // -have the program in their preferences
         // -moving them to this program would not make their original program below minimum
-        List<PossibleSwap> swaps = problem.getParticipants().stream()
-                .filter(p ->
-                        !p.hasProgramWithId(program.getId()) &&
-                        p.getOriginalPreferences().stream().anyMatch(pref ->
-                                        pref.getProgramId() == program.getId()
-
-                                ) &&
-                        (p.getAllocatedPreferences()[slot]!=null &&
-                                p.getAllocatedPreferences()[slot].getProgram().getAssignedParticipants(slot).size()
-                                        >= p.getAllocatedPreferences()[slot].getProgram().getMinPlaces() + 1)
-                ).map(p ->
-                        new PossibleSwap(p, null,
-                                p.getAllocatedPreferences()[slot],
-                                p.getOriginalPreferences().stream().filter(pref -> pref.getProgramId() == program.getId()).findFirst().get(),
-                                slot, 0)
-                )
-                .collect(Collectors.toList());
-
-        // Calculate the fitness change for swaps
-        swaps.forEach(swap -> {
-            swap.setFitnessChange(swap.getFromPreference().getOrder()-swap.getToPreference().getOrder());
-        });
-
-        swaps.sort((s1, s2) -> s2.getFitnessChange() - s1.getFitnessChange());
-
-        if (swaps.size()<missing) {
+        Assignment state = problem.getAssignment();
+        ProblemDefinition definition = problem.getDefinition();
+        SwapCandidates swaps = new SwapCandidates(missing);
+        for (int p = 0; p < definition.getParticipantCount(); p++) {
+            int toRank = definition.getPreferenceRank(p, program.getIndex());
+            if (toRank < 0 || hasProgram(state, p, program.getIndex())) continue;
+            int fromRank = state.getAllocated(p, slot);
+            if (fromRank == Assignment.NONE || (fromRank & Assignment.CONTINUATION) != 0) continue;
+            int from = definition.getPreference(p, fromRank);
+            if (state.getAssignedCount(from, slot) < definition.getMinPlaces(from) + 1) continue;
+            swaps.offer(SwapCandidates.pack(fromRank - toRank, p, fromRank, toRank, slot));
+        }
+        phase.addSwapsEvaluated(swaps.getOffered());
+        problem.getContentionProfile().countSwapAttempts(program.getIndex(), slot, (int) swaps.getOffered());
+
+        if (swaps.getOffered()<missing) {
             log.warn("Program "+program+" has too few participants, but there are not enough people to move to it. Consider decreasing number of minimum slot for program.");
             return;
         }
         for (int i=0; i<missing; i++) {
-            PossibleSwap swap = swaps.get(i);
+            long candidate = swaps.get(i);
+            Participant participant = problem.getParticipantAt(SwapCandidates.participant(candidate));
+            PossibleSwap swap = new PossibleSwap(participant, null,
+                    participant.getOriginalPreferences().get(SwapCandidates.firstRank(candidate)),
+                    participant.getOriginalPreferences().get(SwapCandidates.secondRank(candidate)),
+                    slot, SwapCandidates.fitnessChange(candidate));
             log.debug("Trying to move participant " + swap.getFromParticipant() + " to program " + program + " for slot " + slot);
             executeLocalSwap(swap);
         }
@@ -148,81 +327,124 @@ public class EagerOptimizer extends Optimizer {
 
     private void executeLocalSwap(PossibleSwap swap) {
 
-        swap.getFromParticipant().getAllocatedPreferences()[swap.getSlot()] = swap.getToPreference();
-        swap.getToPreference().getProgram().getAssignedParticipants(swap.getSlot()).put(swap.getFromParticipant().getId(), swap.getFromParticipant());
-        swap.getFromPreference().getProgram().getAssignedParticipants(swap.getSlot()).remove(swap.getFromParticipant().getId());
+        Participant participant = swap.getFromParticipant();
+        Assignment state = problem.getAssignment();
+        int savepoint = state.savepoint();
+        participant.unAssignSlot(swap.getSlot());
+        phase.addSwapsExecuted(1);
+        boolean made = participant.assignPreference(swap.getToPreference(), swap.getSlot());
+        countAssignment(made);
+        if (made) {
+            state.release(savepoint);
+        } else {
+            log.warn("Could not move participant " + participant + " to program " + swap.getToPreference().getProgramId() + ", restoring the original allocation");
+            state.rollback(savepoint);
+        }
 
     }
 
-    private void tryToAllocateUnallocatedParticipants() {
-        problem.getParticipants().stream().filter(p -> p.getAllocatedCount() < p.getPresentCount() && p.getOriginalPreferences().size() > 9).forEach(
+    /**
+     * Phase 4: swap participants to make room for the participants who still have unallocated slots
+     */
+    void tryToAllocateUnallocatedParticipants() {
+        startPhase("unallocated-repair");
+        problem.getParticipants().stream().filter(p -> p.getAllocatedCount() < p.getPresentCount() && p.getOriginalPreferenceCount() > 9).forEach(
                 participant -> {
                     log.debug("Trying to allocate unallocated participant " + participant);
-                    for (int i=0; i<participant.getPresent().length; i++) {
-                        if (participant.getPresent()[i] && participant.getAllocatedPreferences()[i] == null) {
+                    phase.addIterations(1);
+                    for (int i=0; i<ProblemDefinition.SLOT_COUNT; i++) {
+                        if (participant.isCurrentlyFreeAtSlot(i)) {
                             tryToAllocateParticipantForSlot(participant, i);
                         }
                     }
 
                 }
         );
+        endPhase();
 
     }
 
     private void tryToAllocateParticipantForSlot(Participant participant, int slot) {
-        // Get preferences that match the time slot
-        List<Preference> preferencesInSlot = participant.getOriginalPreferences().stream().filter(p -> p.getProgram().getAllocatedTimeSlots()[slot]).collect(Collectors.toList());
-        if (preferencesInSlot.size()==0) {
+        Assignment state = problem.getAssignment();
+        ProblemDefinition definition = problem.getDefinition();
+        int p = participant.getIndex();
+
+        // Find possible swaps that could be made to fill the slot: another participant in a program the
+        // participant wants moves to one of their remaining preferences with space in the slot. Only the best
+        // one is kept.
+        SwapCandidates swaps = new SwapCandidates(1);
+        boolean preferencesInSlot = false;
+        for (int rank = 0; rank < definition.getPreferenceCount(p); rank++) {
+            int program = definition.getPreference(p, rank);
+            if (!state.isActive(program, slot)) continue;
+            preferencesInSlot = true;
+            // Make sure that none of the participant already have the program that they are being swapped to
+            if (hasProgram(state, p, program)) continue;
+            // assume that the participant has the worst possible fitness for this slot
+            int fitnessChangeForParticipant = 13 - (rank + 1);
+            long offeredBefore = swaps.getOffered();
+            for (int position = 0; position < state.getAssignedCount(program, slot); position++) {
+                int other = state.getAssigned(program, slot, position);
+                int otherAllocated = state.getAllocated(other, slot);
+                for (int otherRank = state.getPreferenceCursor(other); otherRank < definition.getPreferenceCount(other); otherRank++) {
+                    int otherProgram = definition.getPreference(other, otherRank);
+                    if (!state.isActive(otherProgram, slot) || state.getAssignedCount(otherProgram, slot) >= definition.getMaxPlaces(otherProgram)
+                            || hasProgram(state, other, otherProgram)) continue;
+                    int fitnessChangeForOtherParticipant = otherAllocated - otherRank;
+                    swaps.offer(SwapCandidates.pack(fitnessChangeForOtherParticipant + fitnessChangeForParticipant, other, otherRank, rank, slot));
+                }
+            }
+            problem.getContentionProfile().countSwapAttempts(program, slot, (int) (swaps.getOffered() - offeredBefore));
+        }
+        if (!preferencesInSlot) {
             log.info("Hopeless case for re-allocation. No preferences for slot " + slot + " for participant " + participant);
             return;
         }
 
-        // Find possible swaps that could be made to fill the slot
-        ArrayList<PossibleSwap> possibleSwaps = new ArrayList<>();
-        for (Preference preference : preferencesInSlot) {
-            for (Participant otherParticipant : preference.getProgram().getAssignedParticipants(slot).values()) {
-                otherParticipant.getPreferences().stream().filter(p -> p.getProgram().getAllocatedTimeSlots()[slot]).forEach(
-                        otherPreference -> {
-                            if (otherPreference.getProgram().getAssignedParticipants(slot).size() < otherPreference.getProgram().getMaxPlaces()) {
-                                int fitnessChangeForParticipant=13-preference.getOrder(); // assume that the participant has the worst possible fitness for this slot
-                                int fitnessChangeForOtherParticipant=otherParticipant.getAllocatedPreferences()[slot].getOrder()-otherPreference.getOrder();
-
-                                // Make sure that none of the participant already have the program that they are being swapped to
-                                if (otherParticipant.hasProgramWithId(otherPreference.getProgramId()) || participant.hasProgramWithId(preference.getProgramId())) {
-                                    log.debug("Swap is not possible because one of the participants already has the program that they are being swapped to");
-                                }
-                                else {
-                                    possibleSwaps.add(new PossibleSwap(otherParticipant, participant, otherPreference, preference, slot, fitnessChangeForOtherParticipant + fitnessChangeForParticipant));
-                                }
-                            }
-                        }
-                );
-            }
-        }
-
-        // Sort the swaps by fitness change
-
-        possibleSwaps.sort((s1, s2) -> Integer.compare(s2.getFitnessChange(), s1.getFitnessChange()));
-        if (possibleSwaps.size()>0) {
-            log.debug("Executing swap"+possibleSwaps.get(0).toString()+" for participant "+participant+" for slot "+slot+" with fitness change "+possibleSwaps.get(0).getFitnessChange());
-            executeSwap(possibleSwaps.get(0));
+        phase.addSwapsEvaluated(swaps.getOffered());
+        if (swaps.size()>0) {
+            long candidate = swaps.get(0);
+            Participant other = problem.getParticipantAt(SwapCandidates.participant(candidate));
+            PossibleSwap swap = new PossibleSwap(other, participant,
+                    other.getOriginalPreferences().get(SwapCandidates.firstRank(candidate)),
+                    participant.getOriginalPreferences().get(SwapCandidates.secondRank(candidate)),
+                    slot, SwapCandidates.fitnessChange(candidate));
+            log.debug("Executing swap"+swap+" for participant "+participant+" for slot "+slot+" with fitness change "+swap.getFitnessChange());
+            executeSwap(swap);
         }
         else
             log.warn("No possible swaps for participant " + participant + " for slot " + slot);
 
     }
 
+    /**
+     * @return whether the participant has the program in any slot
+     */
+    private static boolean hasProgram(Assignment state, int participant, int program) {
+        for (int slot = 0; slot < ProblemDefinition.SLOT_COUNT; slot++)
+            if (state.getAllocatedProgram(participant, slot) == program) return true;
+        return false;
+    }
 
+
+    /**
+     * Move the from participant out of the way of the to participant and find another slot for it. If there is
+     * none, the swap is rolled back.
+     */
     private void executeSwap(PossibleSwap swap) {
+        Assignment state = problem.getAssignment();
+        int savepoint = state.savepoint();
         swap.getFromParticipant().unAssignSlot(swap.getSlot());
+        phase.addSwapsExecuted(1);
         // now there should be free space
-        swap.getToParticipant().assignPreference(swap.getToPreference(), swap.getSlot());
+        countAssignment(swap.getToParticipant().assignPreference(swap.getToPreference(), swap.getSlot()));
         // and the other guy should also fit somewhere...
-        if (!allocateOneSlotForParticipant(swap.getFromParticipant())) {
-            log.error("Could not allocate slot for (from) participant " + swap.getFromParticipant() + " after swap");
+        if (allocateOneSlotForParticipant(swap.getFromParticipant())) {
+            state.release(savepoint);
+        } else {
+            log.warn("Could not allocate slot for (from) participant " + swap.getFromParticipant() + " after swap, rolling back " + state.getJournalSize() + " changes");
+            state.rollback(savepoint);
         }
-
-
     }
 
 
@@ -233,7 +455,7 @@ public class EagerOptimizer extends Optimizer {
         }
 
         AtomicInteger ct = new AtomicInteger();
-        problem.getParticipants().stream().filter(p -> p.getAllocatedCount() < p.getPresentCount() && p.getOriginalPreferences().size() > 9).forEach(
+        problem.getParticipants().stream().filter(p -> p.getAllocatedCount() < p.getPresentCount() && p.getOriginalPreferenceCount() > 9).forEach(
                 p -> {
                     System.out.println(p);
                     ct.getAndIncrement();
@@ -246,79 +468,56 @@ public class EagerOptimizer extends Optimizer {
         problem.printStats();
     }
 
+    /**
+     * Allocate one slot for the participant with the worst fitness + random. Only the allocation of that
+     * participant changes, so it leaves its group and joins the open group of its class with the same new
+     * allocations, if it is not resolved.
+     */
     private void assignWorstOfParticipantToProgram() {
 
-        problem.getUnprocessedParticipants().stream().forEach(participant -> participant.setRandom(getRandom().nextFloat()));
-        // Find participant with the worst fitness + random
-        Optional<Participant> worst = problem.getUnprocessedParticipants().stream().sorted((p2, p1) -> Float.compare(p1.getFitness() + p1.getRandom(), p2.getFitness() + p2.getRandom())).findFirst();
+        MemberGroup group = groups[worstFirst.peek()];
+        List<MemberGroup> open = openGroups.get(classes.getClassOf(group.peek()));
+        if (group.isOpen()) open.remove(group);
+        Participant worst = problem.getParticipantAt(group.serve(getRandom()));
+        if (group.isEmpty()) {
+            worstFirst.remove(group.id);
+            groups[group.id] = null;
+            freeIds.push(group.id);
+        } else {
+            worstFirst.put(group.id, worstFirstKey(group));
+        }
 
-        if (worst.isPresent()) allocateOneSlotForParticipant(worst.get());
+        allocateOneSlotForParticipant(worst);
+        if (worst.isResolved()) return;
 
+        MemberGroup joined = findGroup(open, worst.getIndex());
+        if (joined == null) {
+            joined = new MemberGroup(freeIds.pop(), false);
+            groups[joined.id] = joined;
+            open.add(joined);
+        }
+        joined.add(worst.getIndex(), getRandom());
+        worstFirst.put(joined.id, worstFirstKey(joined));
+    }
 
+    /**
+     * Heap key of a group: fitness of its members, with the random number of the next member as a tie-break
+     * between equal fitness
+     */
+    private float worstFirstKey(MemberGroup group) {
+        return problem.getParticipantAt(group.peek()).getFitness() + group.getRandom();
     }
 
     private boolean allocateOneSlotForParticipant(Participant participant) {
         boolean success = false;
         while (!success && !participant.isResolved()) {
-            success = participant.assignFirstPreference();
+            success = participant.assignFirstPreference(getRandom());
+            countAssignment(success);
         }
         return success;
     }
 
 
-    /**
-     * Resolves trivial cases, i.e. cases where first choice can be fulfilled and the program has only one possible time slot.
-     *
-     * @return number of resolved trivial cases
-     */
-    private int resolveTrivialCases() {
-
-        problem.calculatePrimaryPreferenceCountForProgram();
-        AtomicInteger count = new AtomicInteger();
-        problem.getUnprocessedPrograms()
-                .stream()
-                .filter(p -> p.getCombinations() == 1 && p.getPossibleTimeSlotCount() == 1 && p.getPrimaryPreferenceCount() <= p.getMaxPlaces() && p.getPrimaryPreferenceCount() >= p.getMinPlaces())
-                .forEach(prog -> {
-
-                    int firstPossibleSlot = prog.getFirstPossibleSlot();
-                    prog.assignToSlot(firstPossibleSlot);
-                    prog.setResolved();
-                    problem.getUnprocessedParticipants().stream().filter(participant -> participant.getPreferences().size() > 0
-                                    && participant.getPreferences().peek().getProgramId() == prog.getId())
-                            .forEach(participant -> {
-                                        if (participant.assignFirstPreference(firstPossibleSlot)) count.getAndIncrement();
-
-                                    }
-                            );
-
-                });
-
-
-        return count.get();
-    }
-
-
-    /**
-     * Resolves trivial cases, i.e. cases where first choice can be fulfilled and the program has only one possible time slot.
-     *
-     * @return number of resolved trivial cases
-     */
-    private int resolveNonTrivialFixedCases() {
-        problem.sortProgramsByPrimaryPreferenceCount();
-        AtomicInteger count = new AtomicInteger();
-        problem.getUnprocessedPrograms().stream().filter(p -> p.getCombinations() == 1 && p.getPossibleTimeSlotCount() == 1).forEach(prog -> {
-
-            int slot = prog.getFirstPossibleSlot();
-            prog.assignToSlot(slot);
-            prog.setResolved();
-            count.getAndAdd(allocateFairly(prog, problem.getUnprocessedParticipants().stream().filter(participant -> participant.getPreferences().size() > 0
-                            && participant.getPreferences().peek().getProgramId() == prog.getId())
-                    .collect(Collectors.toList()), slot));
-        });
-
-        return count.get();
-    }
-
     /**
      * Allocates most popular program to participants and removes it from the list of unprocessed programs.
      * Also fix the program's time slot.
@@ -333,16 +532,14 @@ public class EagerOptimizer extends Optimizer {
 
         int slot;
         do {
-            program.calulateTimeslotPreference(problem.getUnprocessedParticipants());
-            slot = program.findMostPopularFreeAndUnallocatedTimeSlot();
+            program.calulateTimeslotPreference();
+            slot = program.findMostPopularFreeAndUnallocatedTimeSlot(getRandom());
             log.debug("Most popular free slot for program " + program.getId() + " is " + slot);
             if (slot != -1) {
                 program.assignToSlot(slot);
                 int allocated = 0;
                 do {
-                    allocated = allocateFairly(program, problem.getUnprocessedParticipants().stream().filter(participant -> participant.getPreferences().size() > 0
-                                    && participant.getPreferences().peek().getProgramId() == program.getId())
-                            .collect(Collectors.toList()), slot);
+                    allocated = allocateFairly(program, program.getParticipantsWithTopPreference(), slot);
                     log.debug("Allocated " + allocated + " participants to program " + program.getId() + " in slot " + slot);
                 } while (allocated > 0);
             }
@@ -370,7 +567,6 @@ public class EagerOptimizer extends Optimizer {
     private void pruneResolvedPrograms() {
         // Prune resolved programs
         int pruned = problem.pruneResolvedPrograms();
-        problem.pruneResolvedPrograms();
         log.info("Pruned " + pruned + " resolved programs");
     }
 
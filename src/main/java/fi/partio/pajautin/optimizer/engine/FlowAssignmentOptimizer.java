@@ -0,0 +1,390 @@
+package fi.partio.pajautin.optimizer.engine;
+
+import fi.partio.pajautin.optimizer.member.Assignment;
+import fi.partio.pajautin.optimizer.member.ParticipantClasses;
+import fi.partio.pajautin.optimizer.member.Problem;
+import fi.partio.pajautin.optimizer.member.ProblemDefinition;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Assigns participants to programs with min-cost flow once the timetable (active time slots of the programs)
+ * is fixed.
+ *
+ * The participants of one time slot are assigned optimally with a min-cost flow from the participants to the
+ * programs active in the slot, solved with successive shortest paths over the programs. The cost of a
+ * participant in a program is the fitness of that preference, and being left without a program costs the
+ * unallocated penalty of the fitness. On top of the fitness, leaving a participant with more than 9
+ * preferences unallocated is more expensive than anything else, and filling the min places of a program is
+ * cheaper than anything else, so a sane assignment is always preferred when one exists.
+ *
+ * A participant cannot get the same program twice, which ties the slots together, so the whole problem is
+ * not a single flow. The slots are solved one at a time, each given the programs the participants have in the
+ * other slots, and the rounds over the slots are repeated until the weighted cost (the fitness plus the
+ * unallocated and min places terms above) does not improve or maxRounds rounds have been run. Every slot solve
+ * keeps or lowers the weighted cost, so the result is never worse than the start by that measure. The fitness
+ * alone is not monotone: a solve may raise it to leave fewer participants unallocated or fill more min places.
+ *
+ * Participants of the same ParticipantClasses class who have the same programs in the other slots are
+ * interchangeable in the flow, so they are handled as one row with as many participants, and each augmenting
+ * path moves as many of them as it has room for. The participants of a row get the programs of the row by
+ * lottery.
+ *
+ * Participants of continuing programs are left as they are.
+ */
+public class FlowAssignmentOptimizer extends Optimizer {
+
+    private static final Logger log = LogManager.getLogger(FlowAssignmentOptimizer.class);
+
+    private static final int SLOTS = ProblemDefinition.SLOT_COUNT;
+
+    // Cost of leaving a participant with more than 9 preferences unallocated
+    private static final long UNALLOCATED_COST = 1L << 40;
+
+    // Cost (negative) of a participant who fills the min places of a program
+    private static final long MIN_PLACES_COST = -(1L << 20);
+
+    private static final long INFINITY = Long.MAX_VALUE / 4;
+
+    private int maxRounds = 3;
+
+    private int rounds;
+
+    // Columns of the slot being solved: two per program (min places and the rest), the last one is "unallocated"
+    private int columnCount;
+    private int[] columnCapacity;
+    private int[] columnLoad;
+    private long[] potential;
+    // Candidates with flow in each column
+    private int[][] members;
+    private int[] memberCount;
+    // Columns of each program, min places column at 2 * program and the rest at 2 * program + 1, -1 if none
+    private int[] programColumns;
+
+    // Rows: free participants of the same class with the same programs in the other slots, so with the same
+    // candidates. Participants of row r at rowMemberStart[r] ... rowMemberStart[r + 1] - 1.
+    private int rowCount;
+    private int[] rowSupply;
+    private int[] rowMemberStart;
+    private int[] rowMembers;
+
+    // Candidate columns of each row, candidates of row r at candidateStart[r] ... candidateStart[r + 1] - 1,
+    // and how many participants of the row are in the column
+    private int[] candidateStart;
+    private int[] candidateRow;
+    private int[] candidateColumn;
+    private int[] candidateRank;
+    private long[] candidateCost;
+    private int[] candidateFlow;
+    // Position of the candidate in the members of its column
+    private int[] memberPosition;
+
+    // Dijkstra state
+    private long[] distance;
+    private boolean[] done;
+    // Candidate the path enters the column with, and the candidate it leaves the previous column with (-1 at the start)
+    private int[] previousCandidate;
+    private int[] previousFrom;
+
+    public FlowAssignmentOptimizer(Problem problem) {
+        super(problem);
+    }
+
+    public FlowAssignmentOptimizer(Problem problem, long seed) {
+        super(problem, seed);
+    }
+
+    @Override
+    public void optimize() {
+        Assignment state = problem.getAssignment();
+        int initial = state.getTotalFitness();
+        long cost = totalCost(state);
+        startPhase("flow-assignment");
+
+        for (rounds = 0; rounds < maxRounds; ) {
+            rounds++;
+            for (int slot = 0; slot < SLOTS; slot++) solveSlot(state, slot);
+            long newCost = totalCost(state);
+            if (newCost >= cost) break;
+            cost = newCost;
+        }
+        phase.addIterations(rounds);
+        endPhase();
+
+        log.info("Flow assignment changed fitness from " + initial + " to " + state.getTotalFitness() + " in " + rounds + " rounds");
+    }
+
+    /**
+     * @return the cost minimized by the flow: fitness with the penalties of unallocated participants and
+     * bonuses of filled min places
+     */
+    private long totalCost(Assignment state) {
+        ProblemDefinition definition = state.getDefinition();
+        long cost = state.getTotalFitness();
+        for (int p = 0; p < definition.getParticipantCount(); p++) {
+            if (definition.getPreferenceCount(p) <= 9) continue;
+            for (int slot = 0; slot < SLOTS; slot++)
+                if (state.isPresent(p, slot) && state.getAllocated(p, slot) == Assignment.NONE) cost += UNALLOCATED_COST;
+        }
+        for (int program = 0; program < definition.getProgramCount(); program++)
+            for (int slot = 0; slot < SLOTS; slot++)
+                if (state.isActive(program, slot))
+                    cost += MIN_PLACES_COST * Math.min(state.getAssignedCount(program, slot), definition.getMinPlaces(program));
+        return cost;
+    }
+
+    /**
+     * Reassign all the participants of the slot optimally, given their programs in the other slots
+     */
+    private void solveSlot(Assignment state, int slot) {
+        ProblemDefinition definition = state.getDefinition();
+        ParticipantClasses classes = definition.getParticipantClasses();
+        int participantCount = definition.getParticipantCount();
+        int programCount = definition.getProgramCount();
+
+        // Columns of the programs active in the slot
+        programColumns = new int[programCount * 2];
+        Arrays.fill(programColumns, -1);
+        columnCapacity = new int[programCount * 2 + 1];
+        columnCount = 0;
+        for (int program = 0; program < programCount; program++) {
+            if (!state.isActive(program, slot) || definition.hasContinuation(program)) continue;
+            int min = Math.min(definition.getMinPlaces(program), definition.getMaxPlaces(program));
+            programColumns[2 * program] = addColumn(min);
+            programColumns[2 * program + 1] = addColumn(definition.getMaxPlaces(program) - min);
+        }
+        int unallocated = addColumn(Integer.MAX_VALUE);
+
+        columnLoad = new int[columnCount];
+        potential = new long[columnCount];
+        members = new int[columnCount][];
+        memberCount = new int[columnCount];
+        for (int c = 0; c < columnCount; c++) members[c] = new int[Math.max(1, Math.min(columnCapacity[c], 16))];
+
+        // Free participants to rows
+        int[] rowOf = new int[participantCount];
+        int[] rowFirst = new int[participantCount];
+        rowSupply = new int[participantCount];
+        // Without identical participants every participant is a row of its own
+        HashMap<Long, Integer> rowOfKey = classes.getClassCount() < participantCount ? new HashMap<>() : null;
+        rowCount = 0;
+        for (int p = 0; p < participantCount; p++) {
+            rowOf[p] = -1;
+            if (!isFree(state, p, slot)) continue;
+            state.unassign(p, slot);
+            Integer row = null;
+            long key = classes.getClassOf(p);
+            if (rowOfKey != null) {
+                for (int other = 0; other < SLOTS; other++)
+                    if (other != slot) key = (key << 18) | (state.getAllocated(p, other) + 1);
+                row = rowOfKey.get(key);
+            }
+            if (row == null) {
+                row = rowCount++;
+                rowFirst[row] = p;
+                if (rowOfKey != null) rowOfKey.put(key, row);
+            }
+            rowOf[p] = row;
+            rowSupply[row]++;
+        }
+        rowMemberStart = new int[rowCount + 1];
+        for (int row = 0; row < rowCount; row++) rowMemberStart[row + 1] = rowMemberStart[row] + rowSupply[row];
+        rowMembers = new int[rowMemberStart[rowCount]];
+        int[] position = Arrays.copyOf(rowMemberStart, rowCount);
+        for (int p = 0; p < participantCount; p++) if (rowOf[p] >= 0) rowMembers[position[rowOf[p]]++] = p;
+
+        // Candidate columns of the rows, from their first participant
+        candidateStart = new int[rowCount + 1];
+        candidateRow = new int[Math.max(16, rowCount * 4)];
+        candidateColumn = new int[candidateRow.length];
+        candidateRank = new int[candidateRow.length];
+        candidateCost = new long[candidateRow.length];
+        int count = 0;
+        for (int row = 0; row < rowCount; row++) {
+            candidateStart[row] = count;
+            int p = rowFirst[row];
+            int preferenceCount = definition.getPreferenceCount(p);
+            for (int rank = 0; rank < preferenceCount; rank++) {
+                int program = definition.getPreference(p, rank);
+                if (programColumns[2 * program] == -1 || hasProgramElsewhere(state, p, program, slot)) continue;
+                count = addCandidate(count, row, programColumns[2 * program], rank, rank + 1 + MIN_PLACES_COST);
+                count = addCandidate(count, row, programColumns[2 * program + 1], rank, rank + 1);
+            }
+            long penalty = Math.min(preferenceCount + 3, 13);
+            if (preferenceCount > 9) penalty += UNALLOCATED_COST;
+            count = addCandidate(count, row, unallocated, Assignment.NONE, penalty);
+        }
+        candidateStart[rowCount] = count;
+        candidateFlow = new int[count];
+        memberPosition = new int[count];
+
+        distance = new long[columnCount];
+        done = new boolean[columnCount];
+        previousCandidate = new int[columnCount];
+        previousFrom = new int[columnCount];
+
+        // Add the rows one by one in random order, each along the shortest augmenting paths
+        int[] order = new int[rowCount];
+        for (int row = 0; row < rowCount; row++) order[row] = row;
+        shuffle(order, 0, rowCount);
+        for (int i = 0; i < rowCount; i++)
+            while (rowSupply[order[i]] > 0) augment(order[i], unallocated);
+
+        // The participants of a row get its columns by lottery
+        for (int i = 0; i < rowCount; i++) {
+            int row = order[i];
+            int next = rowMemberStart[row];
+            shuffle(rowMembers, next, rowMemberStart[row + 1] - next);
+            for (int c = candidateStart[row]; c < candidateStart[row + 1]; c++) {
+                for (int k = 0; k < candidateFlow[c]; k++) {
+                    int p = rowMembers[next++];
+                    if (candidateRank[c] != Assignment.NONE) {
+                        state.assign(p, slot, candidateRank[c]);
+                        phase.addAssignmentsMade(1);
+                    }
+                }
+            }
+        }
+        log.debug("Slot " + slot + ": " + rowMemberStart[rowCount] + " participants in " + rowCount + " rows");
+    }
+
+    private void shuffle(int[] values, int from, int length) {
+        for (int i = length - 1; i > 0; i--) {
+            int j = from + getRandom().nextInt(i + 1);
+            int tmp = values[from + i];
+            values[from + i] = values[j];
+            values[j] = tmp;
+        }
+    }
+
+    private int addColumn(int capacity) {
+        columnCapacity[columnCount] = capacity;
+        return columnCount++;
+    }
+
+    private int addCandidate(int count, int row, int c, int rank, long cost) {
+        if (count == candidateColumn.length) {
+            candidateRow = Arrays.copyOf(candidateRow, count * 2);
+            candidateColumn = Arrays.copyOf(candidateColumn, count * 2);
+            candidateRank = Arrays.copyOf(candidateRank, count * 2);
+            candidateCost = Arrays.copyOf(candidateCost, count * 2);
+        }
+        candidateRow[count] = row;
+        candidateColumn[count] = c;
+        candidateRank[count] = rank;
+        candidateCost[count] = cost;
+        return count + 1;
+    }
+
+    /**
+     * @return whether the participant is present in the slot and not taking part in a continuing program
+     */
+    private static boolean isFree(Assignment state, int participant, int slot) {
+        if (!state.isPresent(participant, slot)) return false;
+        int rank = state.getAllocated(participant, slot);
+        if (rank == Assignment.NONE) return true;
+        if ((rank & Assignment.CONTINUATION) != 0) return false;
+        return !state.getDefinition().hasContinuation(state.getAllocatedProgram(participant, slot));
+    }
+
+    private static boolean hasProgramElsewhere(Assignment state, int participant, int program, int slot) {
+        for (int i = 0; i < SLOTS; i++)
+            if (i != slot && state.getAllocatedProgram(participant, i) == program) return true;
+        return false;
+    }
+
+    /**
+     * Add participants of the row to the flow along the shortest path (in reduced costs) to a column with free
+     * places, moving participants on the path to their next columns, and update the column potentials. As
+     * many participants are moved as the path has room for.
+     */
+    private void augment(int row, int unallocated) {
+        Arrays.fill(distance, INFINITY);
+        Arrays.fill(done, false);
+        relax(row, -1, 0);
+
+        int target;
+        while (true) {
+            int best = -1;
+            for (int c = 0; c < columnCount; c++)
+                if (!done[c] && distance[c] < INFINITY && (best == -1 || distance[c] < distance[best])) best = c;
+            if (best == -1) throw new IllegalStateException("No path to the unallocated column");
+            done[best] = true;
+            if (columnLoad[best] < columnCapacity[best] || best == unallocated) {
+                target = best;
+                break;
+            }
+            // Column is full, continue through the rows in it
+            for (int m = 0; m < memberCount[best]; m++) relax(candidateRow[members[best][m]], members[best][m], distance[best]);
+        }
+
+        long targetDistance = distance[target];
+        for (int c = 0; c < columnCount; c++)
+            if (done[c]) potential[c] += distance[c] - targetDistance;
+
+        // Room on the path: free places in the target and participants on each step
+        int amount = rowSupply[row];
+        if (target != unallocated) amount = Math.min(amount, columnCapacity[target] - columnLoad[target]);
+        for (int c = target; previousFrom[c] != -1; c = candidateColumn[previousFrom[c]])
+            amount = Math.min(amount, candidateFlow[previousFrom[c]]);
+
+        // Move the participants along the path, from the target backwards
+        for (int c = target; c != -1; ) {
+            int from = previousFrom[c];
+            if (from != -1) addFlow(from, -amount);
+            addFlow(previousCandidate[c], amount);
+            c = from == -1 ? -1 : candidateColumn[from];
+        }
+        rowSupply[row] -= amount;
+    }
+
+    /**
+     * Relax the edges from the row, leaving the candidate from (-1 if new participants of the row are added),
+     * to its candidate columns
+     */
+    private void relax(int row, int from, long base) {
+        int fromColumn = from == -1 ? -1 : candidateColumn[from];
+        long leave = from == -1 ? 0 : candidateCost[from] - potential[fromColumn];
+        for (int i = candidateStart[row]; i < candidateStart[row + 1]; i++) {
+            int c = candidateColumn[i];
+            if (c == fromColumn || done[c]) continue;
+            long d = base + candidateCost[i] - potential[c] - leave;
+            if (d < distance[c]) {
+                distance[c] = d;
+                previousCandidate[c] = i;
+                previousFrom[c] = from;
+            }
+        }
+    }
+
+    private void addFlow(int candidate, int amount) {
+        int c = candidateColumn[candidate];
+        if (candidateFlow[candidate] == 0) {
+            if (memberCount[c] == members[c].length) members[c] = Arrays.copyOf(members[c], members[c].length * 2);
+            memberPosition[candidate] = memberCount[c];
+            members[c][memberCount[c]++] = candidate;
+        }
+        candidateFlow[candidate] += amount;
+        columnLoad[c] += amount;
+        if (candidateFlow[candidate] == 0) {
+            int position = memberPosition[candidate];
+            int last = members[c][--memberCount[c]];
+            members[c][position] = last;
+            memberPosition[last] = position;
+        }
+    }
+
+    public void setMaxRounds(int maxRounds) {
+        this.maxRounds = maxRounds;
+    }
+
+    /**
+     * @return number of rounds over the three slots run in the last optimize
+     */
+    public int getRounds() {
+        return rounds;
+    }
+}
@@ -0,0 +1,110 @@
+package fi.partio.pajautin.optimizer.engine;
+
+import java.util.Arrays;
+
+/**
+ * Max-heap of integer ids 0 ... capacity - 1 with float keys. Keeps the position of each id in the heap,
+ * so that the key of any id can be changed or the id removed in O(log n) without searching for it.
+ */
+public class IndexedHeap {
+
+    // Ids in heap order, first size entries are in use
+    private final int[] heap;
+    // Position of each id in the heap, -1 if not in the heap
+    private final int[] position;
+    private final float[] key;
+    private int size;
+
+    public IndexedHeap(int capacity) {
+        heap = new int[capacity];
+        position = new int[capacity];
+        key = new float[capacity];
+        Arrays.fill(position, -1);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(int id) {
+        return position[id] != -1;
+    }
+
+    public float getKey(int id) {
+        return key[id];
+    }
+
+    /**
+     * @return id with the largest key, or -1 if the heap is empty
+     */
+    public int peek() {
+        return size == 0 ? -1 : heap[0];
+    }
+
+    /**
+     * Add the id with given key, or change its key if it is already in the heap
+     */
+    public void put(int id, float newKey) {
+        if (contains(id)) {
+            float oldKey = key[id];
+            key[id] = newKey;
+            if (newKey > oldKey) siftUp(position[id]);
+            else siftDown(position[id]);
+            return;
+        }
+        key[id] = newKey;
+        heap[size] = id;
+        position[id] = size;
+        siftUp(size++);
+    }
+
+    public void remove(int id) {
+        int pos = position[id];
+        if (pos == -1) return;
+        int last = heap[--size];
+        position[id] = -1;
+        if (pos == size) return;
+        heap[pos] = last;
+        position[last] = pos;
+        siftUp(pos);
+        siftDown(position[last]);
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; i++) position[heap[i]] = -1;
+        size = 0;
+    }
+
+    private void siftUp(int pos) {
+        int id = heap[pos];
+        while (pos > 0) {
+            int parent = (pos - 1) / 2;
+            if (key[heap[parent]] >= key[id]) break;
+            move(heap[parent], pos);
+            pos = parent;
+        }
+        move(id, pos);
+    }
+
+    private void siftDown(int pos) {
+        int id = heap[pos];
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= size) break;
+            if (child + 1 < size && key[heap[child + 1]] > key[heap[child]]) child++;
+            if (key[heap[child]] <= key[id]) break;
+            move(heap[child], pos);
+            pos = child;
+        }
+        move(id, pos);
+    }
+
+    private void move(int id, int pos) {
+        heap[pos] = id;
+        position[id] = pos;
+    }
+}
@@ -0,0 +1,83 @@
+package fi.partio.pajautin.optimizer.engine;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Members of a participant class that are interchangeable at the moment: they have the same allocations,
+ * presence and preferences left.
+ *
+ * Each member has an independent random tie-break in [0, 1), and the members are served in the order of the
+ * tie-breaks, but only the tie-break of the next member is kept. The largest of n uniform numbers is U^(1/n)
+ * and the others are uniform below it (likewise for the smallest), so the next one can be drawn when a member
+ * has been served. Which member gets which tie-break does not matter, so the members are served in the order
+ * they were added, and EagerOptimizer.drawClassLottery evens that out afterwards.
+ */
+class MemberGroup {
+
+    // Id of the group in the heap it is served from
+    final int id;
+
+    // Serve the smallest tie-break first instead of the largest
+    private final boolean ascending;
+
+    private int[] members = new int[4];
+    private int size;
+    private int served;
+
+    // Tie-break of the next member to serve
+    private float random;
+
+    MemberGroup(int id, boolean ascending) {
+        this.id = id;
+        this.ascending = ascending;
+    }
+
+    /**
+     * Add a member with a fresh tie-break. Only before the first member is served, while the tie-breaks of
+     * all the members are independent.
+     */
+    void add(int participant, Random source) {
+        if (served > 0) throw new IllegalStateException("Cannot add a member to group " + id + " after serving one");
+        if (size == members.length) members = Arrays.copyOf(members, size * 2);
+        float drawn = source.nextFloat();
+        if (size == 0) random = drawn;
+        else random = ascending ? Math.min(random, drawn) : Math.max(random, drawn);
+        members[size++] = participant;
+    }
+
+    /**
+     * @return the next member, after drawing the tie-break of the member after it
+     */
+    int serve(Random source) {
+        int member = members[served++];
+        int remaining = size - served;
+        if (remaining > 0) {
+            float factor = (float) Math.pow(source.nextFloat(), 1.0 / remaining);
+            random = ascending ? 1 - (1 - random) * factor : random * factor;
+        }
+        return member;
+    }
+
+    /**
+     * @return the member that is served next
+     */
+    int peek() {
+        return members[served];
+    }
+
+    float getRandom() {
+        return random;
+    }
+
+    boolean isEmpty() {
+        return served == size;
+    }
+
+    /**
+     * @return whether no member has been served yet, i.e. members can still be added
+     */
+    boolean isOpen() {
+        return served == 0;
+    }
+}
@@ -0,0 +1,234 @@
+package fi.partio.pajautin.optimizer.engine;
+
+import fi.partio.pajautin.optimizer.member.Problem;
+import fi.partio.pajautin.optimizer.member.ProblemDefinition;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs independent EagerOptimizer starts in parallel, each with its own seed, and keeps the best solution that
+ * passes the sanity check. The participants of each eager timetable are reassigned with the
+ * FlowAssignmentOptimizer. If a timetable search time is set, the timetable is then improved with the
+ * TimetableSearchOptimizer, and if an improvement time is set, the solution is further improved with the
+ * AnnealingOptimizer. All the workers share one problem definition; each worker resets its own problem
+ * between the starts instead of rebuilding it.
+ */
+public class MultiStartOptimizer {
+
+    private static final Logger log = LogManager.getLogger(MultiStartOptimizer.class);
+
+    /**
+     * Solution order: lower fitness first, then fewer unallocated participants, then fewer cancelled programs
+     */
+    public static final Comparator<Problem> SOLUTION_ORDER = Comparator
+            .comparingInt(Problem::calculateFitness)
+            .thenComparingInt(Problem::getUnallocatedCount)
+            .thenComparingInt(p -> p.getProgramsWithTooFewParticipants().size());
+
+    private final ProblemDefinition definition;
+
+    private int maxStarts = 64;
+
+    private long timeBudgetMillis = 10 * 60 * 1000;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private long baseSeed = System.nanoTime();
+
+    // Whether the participants of each eager timetable are reassigned with FlowAssignmentOptimizer
+    private boolean flowAssignment = true;
+
+    // Time for improving the timetable of each start with TimetableSearchOptimizer, 0 = no search
+    private long timetableSearchMillis = 0;
+
+    // Time for improving each eager solution with AnnealingOptimizer, 0 = no improvement
+    private long improvementMillis = 0;
+
+    private final AtomicInteger startsRun = new AtomicInteger();
+
+    private final AtomicInteger saneStarts = new AtomicInteger();
+
+    private Problem bestProblem;
+
+    private long bestSeed;
+
+    private List<AnnealingOptimizer.FitnessPoint> bestFitnessCurve;
+
+    private OptimizerMetrics bestMetrics;
+
+    public MultiStartOptimizer(ProblemDefinition definition) {
+        this.definition = definition;
+    }
+
+    /**
+     * Run starts until either maxStarts starts have been run or the time budget is used up.
+     * A start that is already running when the budget runs out is allowed to finish.
+     * If the calling thread is interrupted, the starts are stopped and the best solution so far is returned;
+     * improvement stops at once, other optimizers finish their start.
+     *
+     * @return best sane solution, or null if none of the starts produced a sane solution
+     */
+    public Problem optimize() {
+        long deadline = System.currentTimeMillis() + timeBudgetMillis;
+        AtomicInteger nextStart = new AtomicInteger();
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            pool.submit(() -> {
+                Problem problem = new Problem(definition);
+                for (int start = nextStart.getAndIncrement(); start < maxStarts && System.currentTimeMillis() < deadline && !Thread.currentThread().isInterrupted(); start = nextStart.getAndIncrement()) {
+                    problem.reset();
+                    runStart(problem, start);
+                }
+            });
+        }
+        pool.shutdown();
+        try {
+            while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.info("Waiting for optimizer starts to finish, " + startsRun.get() + " done");
+            }
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        // Interrupted workers may still be finishing a start
+        return getBestProblem();
+    }
+
+    private void runStart(Problem problem, int start) {
+        long seed = baseSeed + start;
+        // Phases of all the optimizers of this start
+        OptimizerMetrics metrics = new OptimizerMetrics();
+        try {
+            EagerOptimizer optimizer = new EagerOptimizer(problem, seed);
+            optimizer.setMetrics(metrics);
+            optimizer.setVerbose(false);
+            optimizer.optimize();
+
+            if (flowAssignment) {
+                int eagerFitness = problem.calculateFitness();
+                FlowAssignmentOptimizer flow = new FlowAssignmentOptimizer(problem, seed);
+                flow.setMetrics(metrics);
+                flow.optimize();
+                log.info("Start " + start + " (seed " + seed + "): flow assignment changed fitness from " + eagerFitness + " to " + problem.calculateFitness()
+                        + " in " + flow.getRounds() + " rounds");
+            }
+
+            if (timetableSearchMillis > 0) {
+                int startFitness = problem.calculateFitness();
+                TimetableSearchOptimizer search = new TimetableSearchOptimizer(problem, seed);
+                search.setMetrics(metrics);
+                search.setTimeBudgetMillis(timetableSearchMillis);
+                search.optimize();
+                log.info("Start " + start + " (seed " + seed + "): timetable search changed fitness from " + startFitness + " to " + problem.calculateFitness()
+                        + " in " + search.getBatches() + " batches, " + search.getAcceptedMoves() + " moves taken");
+            }
+
+            List<AnnealingOptimizer.FitnessPoint> curve = null;
+            if (improvementMillis > 0) {
+                int startFitness = problem.calculateFitness();
+                AnnealingOptimizer annealing = new AnnealingOptimizer(problem, seed);
+                annealing.setMetrics(metrics);
+                annealing.setTimeBudgetMillis(improvementMillis);
+                annealing.optimize();
+                curve = annealing.getFitnessCurve();
+                log.info("Start " + start + " (seed " + seed + "): improved fitness from " + startFitness + " to " + problem.calculateFitness()
+                        + " in " + annealing.getIterations() + " iterations");
+            }
+
+            OptimizerMetrics.PhaseMetrics sanity = metrics.startPhase("sanity", problem);
+            SanityReport report = SanityChecker.check(problem);
+            sanity.addIterations(1);
+            sanity.end(problem);
+            boolean sane = report.isSane();
+            startsRun.incrementAndGet();
+            log.info("Start " + start + " (seed " + seed + "): fitness " + problem.calculateFitness()
+                    + ", unallocated " + problem.getUnallocatedCount() + ", sanity check "
+                    + (sane ? "passed" : "failed with " + report.getFatalCount() + " violations"));
+            if (!sane) log.error("Start " + start + " (seed " + seed + ") violations:\n" + report);
+            if (sane) {
+                saneStarts.incrementAndGet();
+                offer(problem, seed, curve, metrics);
+            }
+        } catch (RuntimeException e) {
+            startsRun.incrementAndGet();
+            log.error("Start " + start + " (seed " + seed + ") failed", e);
+        }
+    }
+
+    private synchronized void offer(Problem problem, long seed, List<AnnealingOptimizer.FitnessPoint> curve, OptimizerMetrics metrics) {
+        if (bestProblem == null || SOLUTION_ORDER.compare(problem, bestProblem) < 0) {
+            // The worker will reset its problem for the next start, keep a copy
+            bestProblem = problem.copy();
+            bestSeed = seed;
+            bestFitnessCurve = curve;
+            bestMetrics = metrics;
+        }
+    }
+
+    public void setMaxStarts(int maxStarts) {
+        this.maxStarts = maxStarts;
+    }
+
+    public void setTimeBudgetMillis(long timeBudgetMillis) {
+        this.timeBudgetMillis = timeBudgetMillis;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public void setBaseSeed(long baseSeed) {
+        this.baseSeed = baseSeed;
+    }
+
+    public void setFlowAssignment(boolean flowAssignment) {
+        this.flowAssignment = flowAssignment;
+    }
+
+    public void setTimetableSearchMillis(long timetableSearchMillis) {
+        this.timetableSearchMillis = timetableSearchMillis;
+    }
+
+    public void setImprovementMillis(long improvementMillis) {
+        this.improvementMillis = improvementMillis;
+    }
+
+    public synchronized Problem getBestProblem() {
+        return bestProblem;
+    }
+
+    public synchronized long getBestSeed() {
+        return bestSeed;
+    }
+
+    /**
+     * @return fitness over time during the improvement of the best solution, or null if it was not improved
+     */
+    public synchronized List<AnnealingOptimizer.FitnessPoint> getBestFitnessCurve() {
+        return bestFitnessCurve;
+    }
+
+    /**
+     * @return phase metrics of the start that produced the best solution, or null if there is none
+     */
+    public synchronized OptimizerMetrics getBestMetrics() {
+        return bestMetrics;
+    }
+
+    public int getStartsRun() {
+        return startsRun.get();
+    }
+
+    public int getSaneStarts() {
+        return saneStarts.get();
+    }
+}
@@ -1,10 +1,16 @@
 package fi.partio.pajautin.optimizer.engine;
 
+import fi.partio.pajautin.optimizer.member.Assignment;
 import fi.partio.pajautin.optimizer.member.Participant;
+import fi.partio.pajautin.optimizer.member.ParticipantClasses;
 import fi.partio.pajautin.optimizer.member.Problem;
+import fi.partio.pajautin.optimizer.member.ProblemDefinition;
 import fi.partio.pajautin.optimizer.member.Program;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 public abstract class Optimizer {
@@ -13,12 +19,54 @@ public abstract class Optimizer {
 
     protected Problem problem;
 
+    protected OptimizerMetrics metrics = new OptimizerMetrics();
+
+    // Phase being run, or null. Counters of the shared helpers go to it.
+    OptimizerMetrics.PhaseMetrics phase;
+
     public Optimizer(Problem problem) {
         this.problem = problem;
     }
 
+    public Optimizer(Problem problem, long seed) {
+        this.problem = problem;
+        this.random = new Random(seed);
+    }
+
     public abstract void optimize();
 
+    public Problem getProblem() {
+        return problem;
+    }
+
+    /**
+     * Record the phases of this optimizer to the given metrics, e.g. to collect several optimizers of one run
+     */
+    public void setMetrics(OptimizerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public OptimizerMetrics getMetrics() {
+        return metrics;
+    }
+
+    OptimizerMetrics.PhaseMetrics startPhase(String name) {
+        phase = metrics.startPhase(name, problem);
+        return phase;
+    }
+
+    void endPhase() {
+        phase.end(problem);
+        phase = null;
+    }
+
+    /**
+     * Count an assignment attempt in the current phase
+     */
+    void countAssignment(boolean made) {
+        if (phase != null) phase.assignment(made);
+    }
+
     public Random getRandom() {
         if (random==null) {
             random=new Random();
@@ -28,25 +76,79 @@ public abstract class Optimizer {
 
     public int allocateFairly(Program program, List<Participant> participantList, int timeSlot) {
 
-        // Sort participants first by top preference, then by random number
+        // Serve participants first by top preference, then by random number
         // This way, participants with the same top preference will be allocated randomly
         // This should make the allocation more fair
-        participantList.forEach(participant -> participant.setRandom(getRandom().nextFloat()));
-        participantList.sort((p1, p2) -> Float.compare(p1.getRandom()+(float)p1.getTopPreferenceOrder(), p2.getRandom()+(float)p2.getTopPreferenceOrder()));
+        // Interchangeable members of a participant class are served as one group, see MemberGroup
+        List<MemberGroup> groups = groupByState(participantList, true);
+        IndexedHeap order = new IndexedHeap(groups.size());
+        for (MemberGroup group : groups) order.put(group.id, fairKey(group));
 
         // Try to allocate participants to their top preference as long there is space
-        // Iterate based on "fairly" sorted list
+        // Iterate in the "fair" order
         int count = 0;
-        for (Participant participant : participantList) {
-            if (program.hasSpace(timeSlot)) {
-                if (participant.assignFirstPreference(timeSlot)) count++;
-            }
+        while (!order.isEmpty() && program.hasSpace(timeSlot)) {
+            MemberGroup group = groups.get(order.peek());
+            Participant participant = problem.getParticipantAt(group.serve(getRandom()));
+            if (group.isEmpty()) order.remove(group.id);
+            else order.put(group.id, fairKey(group));
+            boolean made = participant.assignFirstPreference(timeSlot);
+            countAssignment(made);
+            if (made) count++;
         }
 
         return count;
 
     }
 
+    /**
+     * Heap key of a group in allocateFairly: the smallest top preference order and random number first
+     */
+    private float fairKey(MemberGroup group) {
+        return -(group.getRandom() + (float) problem.getParticipantAt(group.peek()).getTopPreferenceOrder());
+    }
+
+    /**
+     * Split the participants to groups of members of the same participant class with the same allocations,
+     * presence and preferences left
+     *
+     * @param ascending whether the members are served in ascending order of their random numbers
+     * @return the groups in the order of their first members, with ids 0 ... size - 1
+     */
+    List<MemberGroup> groupByState(List<Participant> participants, boolean ascending) {
+        ParticipantClasses classes = problem.getDefinition().getParticipantClasses();
+        Map<Integer, List<MemberGroup>> groupsOfClass = new HashMap<>();
+        List<MemberGroup> groups = new ArrayList<>();
+        for (Participant participant : participants) {
+            int p = participant.getIndex();
+            List<MemberGroup> candidates = groupsOfClass.computeIfAbsent(classes.getClassOf(p), c -> new ArrayList<>(1));
+            MemberGroup group = findGroup(candidates, p);
+            if (group == null) {
+                group = new MemberGroup(groups.size(), ascending);
+                candidates.add(group);
+                groups.add(group);
+            }
+            group.add(p, getRandom());
+        }
+        return groups;
+    }
+
+    /**
+     * @return the group among the groups of the participant's class whose members have the same state, or null
+     */
+    MemberGroup findGroup(List<MemberGroup> candidates, int participant) {
+        Assignment state = problem.getAssignment();
+        for (MemberGroup candidate : candidates) {
+            int member = candidate.peek();
+            if (state.getPreferenceCursor(member) != state.getPreferenceCursor(participant) || state.getPresentMask(member) != state.getPresentMask(participant)) continue;
+            boolean same = true;
+            for (int slot = 0; slot < ProblemDefinition.SLOT_COUNT && same; slot++)
+                same = state.getAllocated(member, slot) == state.getAllocated(participant, slot);
+            if (same) return candidate;
+        }
+        return null;
+    }
+
 
 
 }
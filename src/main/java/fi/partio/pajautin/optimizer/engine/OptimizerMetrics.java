@@ -0,0 +1,179 @@
+package fi.partio.pajautin.optimizer.engine;
+
+import fi.partio.pajautin.optimizer.member.Problem;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Metrics of one optimizer run, phase by phase: wall time, iterations, assignments made and rejected, swaps
+ * evaluated and executed, and the fitness before and after the phase.
+ *
+ * A phase is started with startPhase and ended with PhaseMetrics.end. The counters of the phase are updated
+ * in between by the optimizer. Serialized as JSON with Jackson, or in Prometheus text format with toPrometheus.
+ */
+public class OptimizerMetrics {
+
+    private final List<PhaseMetrics> phases = new ArrayList<>();
+
+    /**
+     * Start a new phase. Phases with the same name are kept separate, in the order they were run.
+     */
+    public synchronized PhaseMetrics startPhase(String name, Problem problem) {
+        PhaseMetrics phase = new PhaseMetrics(name, problem.calculateFitness());
+        phases.add(phase);
+        return phase;
+    }
+
+    /**
+     * Add the phases of another run after the phases of this one
+     */
+    public synchronized void addAll(OptimizerMetrics other) {
+        phases.addAll(other.getPhases());
+    }
+
+    public synchronized List<PhaseMetrics> getPhases() {
+        return new ArrayList<>(phases);
+    }
+
+    public synchronized long getTotalWallTimeNanos() {
+        long total = 0;
+        for (PhaseMetrics phase : phases) total += phase.getWallTimeNanos();
+        return total;
+    }
+
+    /**
+     * @return the metrics in Prometheus text exposition format, one sample per phase and metric
+     */
+    public synchronized String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+        appendMetric(sb, "pajautin_phase_wall_seconds", "Wall time of the optimizer phase", "gauge", phase -> phase.getWallTimeNanos() / 1e9);
+        appendMetric(sb, "pajautin_phase_iterations", "Iterations of the main loop of the phase", "counter", phase -> phase.getIterations());
+        appendMetric(sb, "pajautin_phase_assignments_made", "Participant slots assigned", "counter", phase -> phase.getAssignmentsMade());
+        appendMetric(sb, "pajautin_phase_assignments_rejected", "Assignments that could not be made", "counter", phase -> phase.getAssignmentsRejected());
+        appendMetric(sb, "pajautin_phase_swaps_evaluated", "Swaps or moves evaluated", "counter", phase -> phase.getSwapsEvaluated());
+        appendMetric(sb, "pajautin_phase_swaps_executed", "Swaps or moves executed", "counter", phase -> phase.getSwapsExecuted());
+        appendMetric(sb, "pajautin_phase_fitness_before", "Fitness before the phase", "gauge", phase -> phase.getFitnessBefore());
+        appendMetric(sb, "pajautin_phase_fitness_after", "Fitness after the phase", "gauge", phase -> phase.getFitnessAfter());
+        return sb.toString();
+    }
+
+    private interface Value {
+        double of(PhaseMetrics phase);
+    }
+
+    private void appendMetric(StringBuilder sb, String name, String help, String type, Value value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        for (int i = 0; i < phases.size(); i++) {
+            PhaseMetrics phase = phases.get(i);
+            sb.append(name).append("{phase=\"").append(phase.getName()).append("\",order=\"").append(i).append("\"} ")
+                    .append(format(value.of(phase))).append('\n');
+        }
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) return Long.toString((long) value);
+        return Double.toString(value);
+    }
+
+    /**
+     * Metrics of one phase
+     */
+    public static class PhaseMetrics {
+        private final String name;
+        private final long startNanos;
+        private long wallTimeNanos;
+        private long iterations;
+        private long assignmentsMade;
+        private long assignmentsRejected;
+        private long swapsEvaluated;
+        private long swapsExecuted;
+        private final int fitnessBefore;
+        private int fitnessAfter;
+
+        PhaseMetrics(String name, int fitnessBefore) {
+            this.name = name;
+            this.fitnessBefore = fitnessBefore;
+            this.fitnessAfter = fitnessBefore;
+            this.startNanos = System.nanoTime();
+        }
+
+        public PhaseMetrics end(Problem problem) {
+            wallTimeNanos = System.nanoTime() - startNanos;
+            fitnessAfter = problem.calculateFitness();
+            return this;
+        }
+
+        public void addIterations(long count) {
+            iterations += count;
+        }
+
+        /**
+         * Count an assignment attempt
+         */
+        public void assignment(boolean made) {
+            if (made) assignmentsMade++;
+            else assignmentsRejected++;
+        }
+
+        public void addAssignmentsMade(long count) {
+            assignmentsMade += count;
+        }
+
+        public void addSwapsEvaluated(long count) {
+            swapsEvaluated += count;
+        }
+
+        public void addSwapsExecuted(long count) {
+            swapsExecuted += count;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getWallTimeNanos() {
+            return wallTimeNanos;
+        }
+
+        public double getWallTimeMillis() {
+            return wallTimeNanos / 1e6;
+        }
+
+        public long getIterations() {
+            return iterations;
+        }
+
+        public long getAssignmentsMade() {
+            return assignmentsMade;
+        }
+
+        public long getAssignmentsRejected() {
+            return assignmentsRejected;
+        }
+
+        public long getSwapsEvaluated() {
+            return swapsEvaluated;
+        }
+
+        public long getSwapsExecuted() {
+            return swapsExecuted;
+        }
+
+        public int getFitnessBefore() {
+            return fitnessBefore;
+        }
+
+        public int getFitnessAfter() {
+            return fitnessAfter;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%-22s %10.1f ms %9d iterations %8d assigned %8d rejected %8d swaps evaluated %6d executed, fitness %d -> %d",
+                    name, getWallTimeMillis(), iterations, assignmentsMade, assignmentsRejected, swapsEvaluated, swapsExecuted, fitnessBefore, fitnessAfter);
+        }
+    }
+}
@@ -1,265 +1,178 @@
 package fi.partio.pajautin.optimizer.engine;
 
-import fi.partio.pajautin.optimizer.member.Participant;
+import fi.partio.pajautin.optimizer.member.Assignment;
 import fi.partio.pajautin.optimizer.member.Problem;
-import fi.partio.pajautin.optimizer.member.Program;
+import fi.partio.pajautin.optimizer.member.ProblemDefinition;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
-import java.util.Optional;
 import java.util.stream.Collectors;
-
+import java.util.stream.IntStream;
+
+/**
+ * Checks that a solution fulfills all the requirements. Participants and programs are split to partitions that
+ * are checked in parallel, each in a single pass, and every violation found is collected to a SanityReport.
+ *
+ * Participants: allocated programs are from the preferences, active in the slot and the participant is present,
+ * the participant is in the roster of the program, no program twice (not fatal), a program that continues to
+ * another slot is allocated there as a continuation and every continuation has the program in the slot it
+ * starts in, and participants with more than 9 preferences are allocated in all the slots they are present.
+ *
+ * Programs: not active in more slots than max occurrence, between min and max places in each active slot, every
+ * participant in the roster is allocated to the program and only once, and facilitators are not allocated
+ * during the program.
+ */
 public class SanityChecker {
 
     private static final Logger log = LogManager.getLogger(SanityChecker.class);
 
-    public static boolean checkSanity(Problem problem) {
-        return checkProgramsParametersFulfilled(problem)
-                && checkParticipantsRequirementsFulfilled(problem)
-                && crossCheckProgramAndParticipant(problem);
-
-    }
-
-    private static boolean checkParticipantsRequirementsFulfilled(Problem problem) {
-
-        return allProgramsFromThePreferences(problem) &&
-                noDuplicatePrograms(problem) &&
-                noProgramsWhileNotPresent(problem) &&
-                noProgramAllocationWithProgramNotActive(problem) &&
-                noUnallocatedParticipants(problem);
-
-
-    }
-
+    private static final int SLOTS = ProblemDefinition.SLOT_COUNT;
 
+    private static final int PARTICIPANT_PARTITION = 4096;
 
-    public static boolean checkProgramsParametersFulfilled(Problem problem) {
-        return noActiveMoreThanMaxOccurances(problem) &&
-                noTooMuchParticipants(problem) &&
-                noTooLittleParticipants(problem) &&
-                noDuplicateParticipants(problem) &&
-                noFacilitatorAllocatedInProgramDuringOwnWorkshop(problem);
+    private static final int PROGRAM_PARTITION = 64;
 
+    // How many violations are logged at most
+    private static final int MAX_LOGGED = 20;
 
-    }
-
-
-    private static boolean noUnallocatedParticipants(Problem problem) {
-        Optional<Participant> unallocated = problem.getParticipants().stream().filter(p -> p.getAllocatedCount() < p.getPresentCount() && p.getOriginalPreferences().size() > 9).findFirst();
-        if (unallocated.isPresent()) {
-            log.error("Participant " + unallocated.get().getId() + " has not been allocated to enough programs");
-            return false;
-        }
-        log.info("No unallocated participants");
-        return true;
-    }
-
-    public static boolean crossCheckProgramAndParticipant(Problem problem) {
-        for (Participant p : problem.getParticipants()) {
-            for (int i = 0; i < p.getAllocatedPreferences().length; i++) {
-                if (p.getAllocatedPreferences()[i] != null && !p.getAllocatedPreferences()[i].getProgram().isDummy()) {
-                    if (!p.getAllocatedPreferences()[i].getProgram().getAssignedParticipants(i).containsKey(p.getId())) {
-                        log.error("Participant " + p.getId() + " allocated to program " + p.getAllocatedPreferences()[i].getProgram().getId() + " while not present in the program");
-                        return false;
-                    }
-                }
-            }
-        }
-
-        for (Program p : problem.getPrograms()) {
-            for (int i = 0; i < p.getAllocatedTimeSlots().length; i++) {
-                if (p.getAllocatedTimeSlots()[i]) {
-                    for (Participant participant : p.getAssignedParticipants(i).values()) {
-                        if (!participant.getAllocatedPreferences()[i].getProgram().equals(p)) {
-                            log.error("Participant " + participant.getId() + " allocated to program " + participant.getAllocatedPreferences()[i].getProgram().getId() + " while not present in the program");
-                            return false;
-                        }
-                    }
-                }
-            }
-        }
-        log.info("Cross check of program and participant allocations passed");
-        return true;
-    }
-
-    private static boolean noDuplicateParticipants(Problem problem) {
-
-        for (Program p : problem.getPrograms()) {
-            for (int slot = 0; slot < p.getAllocatedTimeSlots().length; slot++) {
-
-                var possibleDuplicate = getFirstDuplicateEntry(p.getAssignedParticipants(slot).values());
-                if (possibleDuplicate != null) {
-                    log.error("Program " + p.getId() + " has duplicate participant " + ((Participant)possibleDuplicate).getId() + " in timeslot " + slot);
-                    return false;
-                }
-
+    public static boolean checkSanity(Problem problem) {
+        SanityReport report = check(problem);
+        int logged = 0;
+        for (SanityReport.Violation violation : report.getViolations()) {
+            if (logged++ == MAX_LOGGED) {
+                log.error("... and " + (report.getViolations().size() - MAX_LOGGED) + " more violations");
+                break;
             }
+            if (violation.getType().isFatal()) log.error(violation);
+            else log.warn(violation);
         }
-        log.info("No duplicate participants in programs");
-        return true;
+        if (report.getViolations().isEmpty()) log.info("Sanity check passed");
+        return report.isSane();
     }
 
-    private static boolean noTooLittleParticipants(Problem problem) {
-
-        for (Program p : problem.getPrograms()) {
-            for (int i = 0; i < p.getAllocatedTimeSlots().length; i++) {
-                if (p.getAllocatedTimeSlots()[i]) {
-                    if (p.getAssignedParticipants(i).size() < p.getMinPlaces()) {
-                        log.error("Program " + p.getId() + " has too few participants in timeslot " + i);
-                        // Let's not stop here, because this is not a fatal error
-                        return false;
+    public static SanityReport check(Problem problem) {
+        Assignment state = problem.getAssignment();
+        ProblemDefinition definition = state.getDefinition();
+        int participantPartitions = (definition.getParticipantCount() + PARTICIPANT_PARTITION - 1) / PARTICIPANT_PARTITION;
+        int programPartitions = (definition.getProgramCount() + PROGRAM_PARTITION - 1) / PROGRAM_PARTITION;
+
+        List<SanityReport.Violation> violations = IntStream.range(0, participantPartitions + programPartitions)
+                .parallel()
+                .mapToObj(partition -> {
+                    List<SanityReport.Violation> found = new ArrayList<>();
+                    if (partition < participantPartitions) {
+                        int from = partition * PARTICIPANT_PARTITION;
+                        int to = Math.min(from + PARTICIPANT_PARTITION, definition.getParticipantCount());
+                        for (int p = from; p < to; p++) checkParticipant(state, p, found);
+                    } else {
+                        int from = (partition - participantPartitions) * PROGRAM_PARTITION;
+                        int to = Math.min(from + PROGRAM_PARTITION, definition.getProgramCount());
+                        int[] seen = new int[definition.getParticipantCount()];
+                        for (int program = from; program < to; program++) checkProgram(state, program, seen, found);
                     }
-                }
-            }
-        }
-        //log.info("No too few participants in programs");
-        return true;
+                    return found;
+                })
+                .flatMap(List::stream)
+                .collect(Collectors.toList());
+        return new SanityReport(violations);
     }
 
-    private static boolean noTooMuchParticipants(Problem problem) {
-        for (Program p : problem.getPrograms()) {
-            for (int i = 0; i < p.getAllocatedTimeSlots().length; i++) {
-                if (p.getAllocatedTimeSlots()[i]) {
-                    if (p.getAssignedParticipants(i).size() > p.getMaxPlaces()) {
-                        log.error("Program " + p.getId() + " has too much participants in timeslot " + i);
-                        return false;
-                    }
-                }
+    private static void checkParticipant(Assignment state, int participant, List<SanityReport.Violation> found) {
+        ProblemDefinition definition = state.getDefinition();
+        String id = definition.getParticipantId(participant);
+        int[] programs = new int[SLOTS];
+        int allocatedCount = 0;
+        int presentCount = 0;
+
+        for (int slot = 0; slot < SLOTS; slot++) {
+            programs[slot] = Assignment.NONE;
+            if (state.isPresent(participant, slot)) presentCount++;
+            int rank = state.getAllocated(participant, slot);
+            if (rank == Assignment.NONE) continue;
+            allocatedCount++;
+
+            if ((rank & ~Assignment.CONTINUATION) >= definition.getPreferenceCount(participant)) {
+                found.add(new SanityReport.Violation(SanityReport.Type.NOT_IN_PREFERENCES, id, null, slot));
+                continue;
             }
-        }
-        log.info("No too many participants in programs");
-        return true;
-    }
-
-    private static boolean noActiveMoreThanMaxOccurances(Problem problem) {
-        for (Program p : problem.getPrograms()) {
-            int activeCount = 0;
-            for (boolean b : p.getAllocatedTimeSlots()) {
-                if (b) {
-                    activeCount++;
-                }
-            }
-            if (activeCount > p.getMaxOccurance()) {
-                log.error("Program " + p.getId() + " has too many active timeslots");
-                return false;
+            int program = state.getAllocatedProgram(participant, slot);
+            Integer programId = definition.getProgramId(program);
+            if (!state.isPresent(participant, slot))
+                found.add(new SanityReport.Violation(SanityReport.Type.NOT_PRESENT, id, programId, slot));
+
+            if ((rank & Assignment.CONTINUATION) != 0) {
+                if (!startsContinuation(state, participant, rank & ~Assignment.CONTINUATION, slot))
+                    found.add(new SanityReport.Violation(SanityReport.Type.CONTINUATION_MISMATCH, id, programId, slot));
+                continue;
             }
+            int continuation = definition.getContinuationSlot(program);
+            if (continuation >= 0 && state.getAllocated(participant, continuation) != (rank | Assignment.CONTINUATION))
+                found.add(new SanityReport.Violation(SanityReport.Type.CONTINUATION_MISMATCH, id, programId, slot));
+            programs[slot] = program;
+            if (!state.isActive(program, slot))
+                found.add(new SanityReport.Violation(SanityReport.Type.PROGRAM_NOT_ACTIVE, id, programId, slot));
+            if (!state.isInRoster(participant, slot))
+                found.add(new SanityReport.Violation(SanityReport.Type.ROSTER_MISMATCH, id, programId, slot));
+            for (int other = 0; other < slot; other++)
+                if (programs[other] == program)
+                    found.add(new SanityReport.Violation(SanityReport.Type.DUPLICATE_PROGRAM, id, programId, slot));
         }
-        log.info("No programs with too many active timeslots");
-        return true;
-    }
 
-
-    private static boolean noProgramAllocationWithProgramNotActive(Problem problem) {
-        for (Participant p : problem.getParticipants()) {
-            for (int i = 0; i < p.getAllocatedPreferences().length; i++) {
-                if (p.getAllocatedPreferences()[i] != null && !p.getAllocatedPreferences()[i].getProgram().isDummy()) {
-                    if (!p.getAllocatedPreferences()[i].getProgram().getAllocatedTimeSlots()[i]) {
-                        log.error("Program " + p.getAllocatedPreferences()[i].getProgram().getId() + " allocated to participant " + p.getId() + " while not active in the timeslot " + i);
-                        return false;
-                    }
-                }
-            }
-        }
-        log.info("No program allocations with program not active");
-        return true;
-    }
-
-    private static boolean noProgramsWhileNotPresent(Problem problem) {
-        for (Participant p : problem.getParticipants()) {
-            for (int i = 0; i < p.getAllocatedPreferences().length; i++) {
-                if (p.getAllocatedPreferences()[i] != null) {
-                    if (!p.getPresent()[i]) {
-                        log.error("Program " + p.getAllocatedPreferences()[i].getProgram().getId() + " allocated to participant " + p.getId() + " while not present");
-                        return false;
-                    }
-                }
-            }
-        }
-        log.info("No program allocations while not present");
-        return true;
-    }
-
-    private static boolean noDuplicatePrograms(Problem problem) {
-        for (Participant p : problem.getParticipants()) {
-            for (int i = 0; i < p.getAllocatedPreferences().length; i++) {
-                if (p.getAllocatedPreferences()[i] != null) {
-                    for (int j = i + 1; j < p.getAllocatedPreferences().length; j++) {
-                        if (p.getAllocatedPreferences()[j] != null) {
-                            if (p.getAllocatedPreferences()[i].getProgram().getId() == p.getAllocatedPreferences()[j].getProgram().getId()) {
-                                log.error("Duplicate program " + p.getAllocatedPreferences()[i].getProgram().getId() + " allocated to participant " + p.getId());
-                                //return false;
-                            }
-                        }
-                    }
-                }
-            }
-        }
-        log.info("No duplicate programs allocated to participants");
-        return true;
+        if (allocatedCount < presentCount && definition.getPreferenceCount(participant) > 9)
+            found.add(new SanityReport.Violation(SanityReport.Type.UNALLOCATED, id, null, -1));
     }
 
-    private static boolean allProgramsFromThePreferences(Problem problem) {
-        for (Participant p : problem.getParticipants()) {
-            for (int i = 0; i < p.getAllocatedPreferences().length; i++) {
-                if (p.getAllocatedPreferences()[i] != null && !p.getAllocatedPreferences()[i].getProgram().isDummy()) {
-                    boolean found = false;
-                    for (int j = 0; j < p.getOriginalPreferences().size(); j++) {
-                        if (p.getAllocatedPreferences()[i].getProgram().getId() == p.getOriginalPreferences().get(j).getProgram().getId()) {
-                            found = true;
-                            break;
-                        }
-                    }
-                    if (!found) {
-                        log.error("Program " + p.getAllocatedPreferences()[i].getProgram().getId() + " allocated to participant " + p.getId() + " not in the preferences");
-                        return false;
-                    }
-                }
-            }
-        }
-        log.info("All programs allocated to participants are from their preferences");
-        return true;
+    /**
+     * @return whether the participant has the preference with given rank, without the continuation flag, in a
+     * slot where the program continues to the given slot
+     */
+    private static boolean startsContinuation(Assignment state, int participant, int rank, int slot) {
+        int program = state.getDefinition().getPreference(participant, rank);
+        if (state.getDefinition().getContinuationSlot(program) != slot) return false;
+        for (int start = 0; start < SLOTS; start++)
+            if (start != slot && state.getAllocated(participant, start) == rank) return true;
+        return false;
     }
 
-    public static boolean noFacilitatorAllocatedInProgramDuringOwnWorkshop(Problem problem) {
-        for (Program p : problem.getPrograms()) {
-            for (int i = 0; i < p.getAllocatedTimeSlots().length; i++) {
-                if (p.getAllocatedTimeSlots()[i]) {
-                    for (String facilitatorId : p.getFacilitators()) {
-                        Participant facilitator = problem.getParticipants().stream().filter(participant -> participant.getId().equals(facilitatorId)).findFirst().get();
-                        if (facilitator.getAllocatedPreferences()[i] != null) {
-                                log.error("Facilitator " + facilitatorId + " allocated to program " + facilitator.getAllocatedProgramIds().get(i) + " during own workshop");
-                                return false;
-                        }
-                    }
+    /**
+     * @param seen work array of participant count entries, used to find duplicate participants in the rosters
+     */
+    private static void checkProgram(Assignment state, int program, int[] seen, List<SanityReport.Violation> found) {
+        ProblemDefinition definition = state.getDefinition();
+        Integer programId = definition.getProgramId(program);
+
+        int activeCount = Integer.bitCount(state.getActiveMask(program));
+        if (activeCount > definition.getMaxOccurance(program))
+            found.add(new SanityReport.Violation(SanityReport.Type.TOO_MANY_OCCURRENCES, null, programId, -1));
+
+        for (int slot = 0; slot < SLOTS; slot++) {
+            int count = state.getAssignedCount(program, slot);
+            if (state.isActive(program, slot)) {
+                if (count > definition.getMaxPlaces(program))
+                    found.add(new SanityReport.Violation(SanityReport.Type.TOO_MANY_PARTICIPANTS, null, programId, slot));
+                if (count < definition.getMinPlaces(program))
+                    found.add(new SanityReport.Violation(SanityReport.Type.TOO_FEW_PARTICIPANTS, null, programId, slot));
+                for (int i = 0; i < definition.getFacilitatorCount(program); i++) {
+                    int facilitator = definition.getFacilitator(program, i);
+                    if (state.getAllocated(facilitator, slot) != Assignment.NONE)
+                        found.add(new SanityReport.Violation(SanityReport.Type.FACILITATOR_ALLOCATED,
+                                definition.getParticipantId(facilitator), programId, slot));
                 }
             }
-        }
-        log.info("No facilitator allocated in program during their own workshop");
-        return true;
-    }
-
-    public static Object getFirstDuplicateEntry(Collection<? extends Object> objCol) {
-        List<Object> list;
-        if (objCol instanceof List) list = (List) objCol;
-        else {
-            list = new ArrayList<>(objCol);
-
-        }
-
 
-        for (int i=0; i<list.size(); i++) {
-            for (int j=i+1; j<list.size(); j++) {
-                if (list.get(i).equals(list.get(j))) {
-                    return list.get(i);
-                }
+            // Stamp of this roster in the work array
+            int stamp = program * SLOTS + slot + 1;
+            for (int position = 0; position < count; position++) {
+                int participant = state.getAssigned(program, slot, position);
+                String id = definition.getParticipantId(participant);
+                if (seen[participant] == stamp)
+                    found.add(new SanityReport.Violation(SanityReport.Type.DUPLICATE_PARTICIPANT, id, programId, slot));
+                seen[participant] = stamp;
+                if (!state.isAssigned(program, slot, participant))
+                    found.add(new SanityReport.Violation(SanityReport.Type.ROSTER_MISMATCH, id, programId, slot));
             }
         }
-        return null;
     }
-
-
-
 }
@@ -0,0 +1,122 @@
+package fi.partio.pajautin.optimizer.engine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * All the violations found by SanityChecker in one solution. The solution is sane if none of the violations
+ * is fatal.
+ */
+public class SanityReport {
+
+    public enum Type {
+        NOT_IN_PREFERENCES("allocated program is not in the preferences"),
+        DUPLICATE_PROGRAM("same program allocated twice", false),
+        NOT_PRESENT("program allocated while not present"),
+        PROGRAM_NOT_ACTIVE("program allocated while not active in the time slot"),
+        UNALLOCATED("not allocated to enough programs"),
+        ROSTER_MISMATCH("allocation of the participant and participants of the program do not match"),
+        CONTINUATION_MISMATCH("continuation of a program and the slot the program starts in do not match"),
+        TOO_MANY_OCCURRENCES("program is active in too many time slots"),
+        TOO_MANY_PARTICIPANTS("program has too many participants"),
+        TOO_FEW_PARTICIPANTS("program has too few participants"),
+        DUPLICATE_PARTICIPANT("participant is twice in the same program"),
+        FACILITATOR_ALLOCATED("facilitator allocated to a program during own workshop");
+
+        private final String description;
+        private final boolean fatal;
+
+        Type(String description) {
+            this(description, true);
+        }
+
+        Type(String description, boolean fatal) {
+            this.description = description;
+            this.fatal = fatal;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        /**
+         * @return whether a violation of this type makes the solution insane
+         */
+        public boolean isFatal() {
+            return fatal;
+        }
+    }
+
+    /**
+     * One violation. Participant, program and slot are null / -1 when they do not apply.
+     */
+    public static class Violation {
+        private final Type type;
+        private final String participantId;
+        private final Integer programId;
+        private final int slot;
+
+        public Violation(Type type, String participantId, Integer programId, int slot) {
+            this.type = type;
+            this.participantId = participantId;
+            this.programId = programId;
+            this.slot = slot;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public String getParticipantId() {
+            return participantId;
+        }
+
+        public Integer getProgramId() {
+            return programId;
+        }
+
+        public int getSlot() {
+            return slot;
+        }
+
+        @Override
+        public String toString() {
+            return type + ": " + type.getDescription()
+                    + (participantId != null ? ", participant " + participantId : "")
+                    + (programId != null ? ", program " + programId : "")
+                    + (slot >= 0 ? ", time slot " + slot : "");
+        }
+    }
+
+    private final List<Violation> violations;
+
+    public SanityReport(List<Violation> violations) {
+        this.violations = Collections.unmodifiableList(new ArrayList<>(violations));
+    }
+
+    public boolean isSane() {
+        for (Violation violation : violations)
+            if (violation.getType().isFatal()) return false;
+        return true;
+    }
+
+    public List<Violation> getViolations() {
+        return violations;
+    }
+
+    public List<Violation> getViolations(Type type) {
+        return violations.stream().filter(v -> v.getType() == type).collect(Collectors.toList());
+    }
+
+    public int getFatalCount() {
+        return (int) violations.stream().filter(v -> v.getType().isFatal()).count();
+    }
+
+    @Override
+    public String toString() {
+        if (violations.isEmpty()) return "No violations";
+        return violations.stream().map(Violation::toString).collect(Collectors.joining("\n"));
+    }
+}
@@ -0,0 +1,98 @@
+package fi.partio.pajautin.optimizer.engine;
+
+/**
+ * Keeps the k best of the swap candidates offered to it by fitness change, without creating an object for
+ * every candidate. A candidate is packed into a long: fitness change, index of the participant who moves,
+ * two preference ranks and the slot, see pack. Only the winners are turned into PossibleSwaps by the caller.
+ *
+ * Candidates with the same fitness change stay in the order they were offered in, so the winners are the
+ * same as the first k of all the candidates after a stable sort by fitness change, best first.
+ */
+class SwapCandidates {
+
+    private static final int CHANGE_BITS = 12;
+    private static final int PARTICIPANT_BITS = 24;
+    private static final int RANK_BITS = 12;
+    private static final int SLOT_BITS = 4;
+
+    private static final int CHANGE_SHIFT = 64 - CHANGE_BITS;
+    private static final int PARTICIPANT_SHIFT = CHANGE_SHIFT - PARTICIPANT_BITS;
+    private static final int FIRST_RANK_SHIFT = PARTICIPANT_SHIFT - RANK_BITS;
+    private static final int SECOND_RANK_SHIFT = FIRST_RANK_SHIFT - RANK_BITS;
+
+    private static final int CHANGE_OFFSET = 1 << (CHANGE_BITS - 1);
+
+    // Best candidates so far, best first
+    private final long[] best;
+    private int size;
+    private long offered;
+
+    SwapCandidates(int k) {
+        best = new long[Math.max(1, k)];
+    }
+
+    static long pack(int fitnessChange, int participant, int firstRank, int secondRank, int slot) {
+        if (fitnessChange < -CHANGE_OFFSET || fitnessChange >= CHANGE_OFFSET || participant >= 1 << PARTICIPANT_BITS
+                || firstRank >= 1 << RANK_BITS || secondRank >= 1 << RANK_BITS || slot >= 1 << SLOT_BITS)
+            throw new IllegalArgumentException("Swap candidate out of range: change " + fitnessChange + ", participant "
+                    + participant + ", ranks " + firstRank + " and " + secondRank + ", slot " + slot);
+        return (long) (fitnessChange + CHANGE_OFFSET) << CHANGE_SHIFT
+                | (long) participant << PARTICIPANT_SHIFT
+                | (long) firstRank << FIRST_RANK_SHIFT
+                | (long) secondRank << SECOND_RANK_SHIFT
+                | slot;
+    }
+
+    static int fitnessChange(long candidate) {
+        return (int) (candidate >>> CHANGE_SHIFT) - CHANGE_OFFSET;
+    }
+
+    static int participant(long candidate) {
+        return (int) (candidate >>> PARTICIPANT_SHIFT) & ((1 << PARTICIPANT_BITS) - 1);
+    }
+
+    static int firstRank(long candidate) {
+        return (int) (candidate >>> FIRST_RANK_SHIFT) & ((1 << RANK_BITS) - 1);
+    }
+
+    static int secondRank(long candidate) {
+        return (int) (candidate >>> SECOND_RANK_SHIFT) & ((1 << RANK_BITS) - 1);
+    }
+
+    static int slot(long candidate) {
+        return (int) candidate & ((1 << SLOT_BITS) - 1);
+    }
+
+    void offer(long candidate) {
+        offered++;
+        int change = fitnessChange(candidate);
+        if (size == best.length && fitnessChange(best[size - 1]) >= change) return;
+        int position = size == best.length ? size - 1 : size++;
+        while (position > 0 && fitnessChange(best[position - 1]) < change) {
+            best[position] = best[position - 1];
+            position--;
+        }
+        best[position] = candidate;
+    }
+
+    /**
+     * @return number of winners, at most k
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return winner at given position, best first
+     */
+    long get(int position) {
+        return best[position];
+    }
+
+    /**
+     * @return number of candidates offered
+     */
+    long getOffered() {
+        return offered;
+    }
+}
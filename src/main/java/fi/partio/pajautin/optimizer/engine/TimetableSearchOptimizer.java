@@ -0,0 +1,225 @@
+package fi.partio.pajautin.optimizer.engine;
+
+import fi.partio.pajautin.optimizer.member.Assignment;
+import fi.partio.pajautin.optimizer.member.Problem;
+import fi.partio.pajautin.optimizer.member.ProblemDefinition;
+import fi.partio.pajautin.optimizer.member.Program;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Improves the timetable (active time slots of the programs) of an existing solution, normally the result of
+ * EagerOptimizer and FlowAssignmentOptimizer, with a local search over the slot combinations of the programs.
+ *
+ * A move gives one program another combination of its possible time slots: the program moves to other slots,
+ * or runs in more or fewer slots, up to its max occurrence. Programs that continue to another slot are not
+ * moved. A candidate is scored by applying the move to a copy of the current solution and reassigning the
+ * participants with one round of FlowAssignmentOptimizer.
+ *
+ * The candidates are evaluated in batches of pool parallelism, in parallel on a ForkJoinPool, each in its own
+ * copy of the problem. The copies are kept at the current solution: a candidate that does not beat it is
+ * rolled back with the undo journal of the assignment, and the copies are brought to the new solution only
+ * when a move is taken. The best candidate of a batch is taken if it is better than the current solution. The
+ * moves are tried in random order, and the search stops when all the moves of the current timetable have
+ * been tried without an improvement, or when the time budget is used up.
+ *
+ * Score: missing min places of active programs and unallocated participants with more than 9 preferences
+ * before the fitness, so that a sane solution stays sane.
+ */
+public class TimetableSearchOptimizer extends Optimizer {
+
+    private static final Logger log = LogManager.getLogger(TimetableSearchOptimizer.class);
+
+    private static final int SLOTS = ProblemDefinition.SLOT_COUNT;
+
+    // Cost of each missing min place and of each unallocated participant with more than 9 preferences
+    private static final long VIOLATION_COST = 1L << 40;
+
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    private long timeBudgetMillis = 10 * 1000;
+
+    // Copies of the problem the candidates are evaluated in, one per candidate of a batch
+    private Problem[] scratch;
+
+    private long batches;
+
+    private long acceptedMoves;
+
+    public TimetableSearchOptimizer(Problem problem) {
+        super(problem);
+    }
+
+    public TimetableSearchOptimizer(Problem problem, long seed) {
+        super(problem, seed);
+    }
+
+    @Override
+    public void optimize() {
+        Assignment state = problem.getAssignment();
+        int initial = state.getTotalFitness();
+        long deadline = System.currentTimeMillis() + timeBudgetMillis;
+        int batchSize = Math.max(1, pool.getParallelism());
+        scratch = new Problem[batchSize];
+        batches = 0;
+        acceptedMoves = 0;
+        startPhase("timetable-search");
+
+        Assignment current = state.copy();
+        long currentScore = score(current);
+        int[] moves = listMoves(current);
+        int next = 0;
+        int triedSinceImprovement = 0;
+        while (triedSinceImprovement < moves.length && System.currentTimeMillis() < deadline && !Thread.currentThread().isInterrupted()) {
+            int count = Math.min(batchSize, moves.length - triedSinceImprovement);
+            List<Callable<Long>> candidates = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int candidate = i;
+                int move = moves[next];
+                long seed = getRandom().nextLong();
+                Assignment from = current;
+                long toBeat = currentScore;
+                candidates.add(() -> evaluate(candidate, from, toBeat, move, seed));
+                next = (next + 1) % moves.length;
+            }
+
+            int best = -1;
+            long bestScore = currentScore;
+            try {
+                List<Future<Long>> scores = pool.invokeAll(candidates);
+                for (int i = 0; i < count; i++) {
+                    long candidateScore = scores.get(i).get();
+                    if (candidateScore < bestScore) {
+                        best = i;
+                        bestScore = candidateScore;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Evaluating a timetable failed", e.getCause());
+            }
+            batches++;
+            phase.addSwapsEvaluated(count);
+
+            if (best >= 0) {
+                current = scratch[best].getAssignment().copy();
+                for (Problem copy : scratch) if (copy != null && copy != scratch[best]) copy.getAssignment().restore(current);
+                currentScore = bestScore;
+                acceptedMoves++;
+                moves = listMoves(current);
+                next = 0;
+                triedSinceImprovement = 0;
+            } else {
+                triedSinceImprovement += count;
+            }
+        }
+
+        state.restore(current);
+        phase.addIterations(batches);
+        phase.addSwapsExecuted(acceptedMoves);
+        endPhase();
+        log.info("Timetable search changed fitness from " + initial + " to " + state.getTotalFitness() + " in "
+                + batches + " batches, " + acceptedMoves + " moves taken");
+    }
+
+    /**
+     * @return moves from the timetable of the solution as program index * 8 + new active mask, in random order
+     */
+    private int[] listMoves(Assignment solution) {
+        ProblemDefinition definition = solution.getDefinition();
+        List<Integer> moves = new ArrayList<>();
+        for (int program = 0; program < definition.getProgramCount(); program++) {
+            if (definition.hasContinuation(program)) continue;
+            byte possible = definition.getPossibleMask(program);
+            for (int mask = 1; mask < 1 << SLOTS; mask++) {
+                if ((mask & ~possible) != 0 || Integer.bitCount(mask) > definition.getMaxOccurance(program)
+                        || mask == solution.getActiveMask(program)) continue;
+                moves.add(program * 8 + mask);
+            }
+        }
+        int[] result = moves.stream().mapToInt(Integer::intValue).toArray();
+        for (int i = result.length - 1; i > 0; i--) {
+            int j = getRandom().nextInt(i + 1);
+            int tmp = result[i];
+            result[i] = result[j];
+            result[j] = tmp;
+        }
+        return result;
+    }
+
+    /**
+     * Apply the move to the copy of the solution in scratch[candidate] and reassign the participants. The
+     * change is rolled back unless the score beats toBeat.
+     *
+     * @return score of the resulting solution
+     */
+    private long evaluate(int candidate, Assignment solution, long toBeat, int move, long seed) {
+        if (scratch[candidate] == null) {
+            scratch[candidate] = new Problem(solution.getDefinition());
+            scratch[candidate].getAssignment().restore(solution);
+        }
+        Problem copy = scratch[candidate];
+        Assignment state = copy.getAssignment();
+        int savepoint = state.savepoint();
+
+        Program program = copy.getPrograms().get(move / 8);
+        int mask = move % 8;
+        for (int slot = 0; slot < SLOTS; slot++)
+            if ((mask & 1 << slot) == 0) program.unassignFromSlot(slot);
+        for (int slot = 0; slot < SLOTS; slot++)
+            if ((mask & 1 << slot) != 0 && !program.isActiveInSlot(slot)) program.assignToSlot(slot);
+
+        FlowAssignmentOptimizer flow = new FlowAssignmentOptimizer(copy, seed);
+        flow.setMaxRounds(1);
+        flow.optimize();
+        long score = score(state);
+        if (score < toBeat) state.release(savepoint);
+        else state.rollback(savepoint);
+        return score;
+    }
+
+    private static long score(Assignment solution) {
+        ProblemDefinition definition = solution.getDefinition();
+        long score = solution.getTotalFitness() + VIOLATION_COST * solution.getUnallocatedParticipants();
+        for (int program = 0; program < definition.getProgramCount(); program++)
+            for (int slot = 0; slot < SLOTS; slot++)
+                if (solution.isActive(program, slot))
+                    score += VIOLATION_COST * Math.max(0, definition.getMinPlaces(program) - solution.getAssignedCount(program, slot));
+        return score;
+    }
+
+    /**
+     * Pool the candidates are evaluated in, the common pool by default. A batch has as many candidates as the
+     * pool has parallelism.
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public void setTimeBudgetMillis(long timeBudgetMillis) {
+        this.timeBudgetMillis = timeBudgetMillis;
+    }
+
+    /**
+     * @return number of candidate batches evaluated in the last optimize
+     */
+    public long getBatches() {
+        return batches;
+    }
+
+    /**
+     * @return number of moves taken in the last optimize
+     */
+    public long getAcceptedMoves() {
+        return acceptedMoves;
+    }
+}
@@ -0,0 +1,404 @@
+package fi.partio.pajautin.optimizer.engine;
+
+import fi.partio.pajautin.optimizer.member.Assignment;
+import fi.partio.pajautin.optimizer.member.Participant;
+import fi.partio.pajautin.optimizer.member.Preference;
+import fi.partio.pajautin.optimizer.member.Problem;
+import fi.partio.pajautin.optimizer.member.ProblemDefinition;
+import fi.partio.pajautin.optimizer.member.Program;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Re-optimizes after late registrations, cancellations and changed preferences, starting from a previously
+ * published solution instead of from scratch.
+ *
+ * The timetable of the previous solution is restored, and so are the allocations that are still valid. Only
+ * participants who are new, changed their registration or lost an allocation in the restore are repaired, and
+ * participants with changed preferences are placed from scratch. A free slot is filled with the best preferred
+ * program with space, or else by moving someone out of a full program to another program they picked.
+ * Everyone else keeps their programs, including the slots they were left without in the previous solution.
+ * Programs that continue to another slot are kept, but not used in the repair.
+ *
+ * By default the timetable is fixed. With setFixedTimetable(false) programs that were not in the previous
+ * solution are scheduled if enough of the repaired participants want them, and cancelled again if they end up
+ * below their minimum.
+ *
+ * The problem must be fresh, i.e. nothing assigned yet. What changed is collected to a ChangeReport.
+ */
+public class WarmStartOptimizer extends Optimizer {
+
+    private static final Logger log = LogManager.getLogger(WarmStartOptimizer.class);
+
+    private static final int SLOTS = ProblemDefinition.SLOT_COUNT;
+
+    /**
+     * The previous solution, as read from participants.json and programs.json of its results
+     */
+    public static class PreviousResult {
+
+        private static final int[] NO_PROGRAMS = new int[0];
+
+        // Allocated program ids in each slot, NONE if not allocated
+        private final Map<String, int[]> allocations = new LinkedHashMap<>();
+        private final Map<String, int[]> preferences = new HashMap<>();
+        private final Map<String, Byte> presence = new HashMap<>();
+
+        private final Map<Integer, Byte> activeSlots = new HashMap<>();
+
+        /**
+         * @param programIds allocated program id in each slot, Assignment.NONE if not allocated. Slots taken by
+         *                   the continuation of a program have the id of the placeholder (program id + 1000).
+         */
+        public void addParticipant(String id, int[] programIds, int[] preferenceIds, byte presentMask) {
+            if (programIds.length != SLOTS) throw new IllegalArgumentException("Expected " + SLOTS + " time slots for participant " + id);
+            allocations.put(id, programIds);
+            preferences.put(id, preferenceIds == null ? NO_PROGRAMS : preferenceIds);
+            presence.put(id, presentMask);
+        }
+
+        /**
+         * @param mask time slots the program was active in, bit i = slot i
+         */
+        public void setActiveSlots(int programId, byte mask) {
+            activeSlots.put(programId, mask);
+        }
+
+        public int getParticipantCount() {
+            return allocations.size();
+        }
+
+        public int getProgramCount() {
+            return activeSlots.size();
+        }
+    }
+
+    private final PreviousResult previous;
+
+    private boolean fixedTimetable = true;
+
+    private final ChangeReport report = new ChangeReport();
+
+    // Participants to repair
+    private final List<Participant> affected = new ArrayList<>();
+
+    // Participants whose allocation may differ from the previous solution
+    private final Set<Participant> touched = new LinkedHashSet<>();
+
+    // Programs scheduled to a slot by this optimizer, bit i = slot i
+    private final Map<Program, Integer> scheduled = new HashMap<>();
+
+    public WarmStartOptimizer(Problem problem, PreviousResult previous) {
+        super(problem);
+        this.previous = previous;
+    }
+
+    public WarmStartOptimizer(Problem problem, PreviousResult previous, long seed) {
+        super(problem, seed);
+        this.previous = previous;
+    }
+
+    /**
+     * Whether to keep the time slots of the previous solution as they are. Default true.
+     */
+    public void setFixedTimetable(boolean fixedTimetable) {
+        this.fixedTimetable = fixedTimetable;
+    }
+
+    public ChangeReport getChangeReport() {
+        return report;
+    }
+
+    @Override
+    public void optimize() {
+        startPhase("warm-start-restore");
+        restoreTimetable();
+        restoreAllocations();
+        endPhase();
+
+        long start = System.currentTimeMillis();
+        startPhase("warm-start-repair");
+        if (!fixedTimetable) scheduleNewPrograms();
+        repair(affected);
+        if (!fixedTimetable) cancelScheduledUnderMinimum();
+        problem.pruneResolvedParticipants();
+        problem.pruneResolvedPrograms();
+        endPhase();
+        report.setRepair(affected.size(), System.currentTimeMillis() - start);
+
+        collectChanges();
+        log.info(report);
+    }
+
+    /**
+     * Activate the programs in the slots they were active in the previous solution
+     */
+    private void restoreTimetable() {
+        for (Map.Entry<Integer, Byte> entry : previous.activeSlots.entrySet()) {
+            int programId = entry.getKey();
+            Program program = problem.getProgram(programId);
+            for (int slot = 0; slot < SLOTS; slot++) {
+                if ((entry.getValue() & (1 << slot)) == 0) continue;
+                if (program == null || !program.isPossibleInSlot(slot) || program.getAllocatedTimeSlotCount() >= program.getMaxOccurance()) {
+                    report.addDroppedProgramSlot(programId, slot);
+                    continue;
+                }
+                program.assignToSlot(slot);
+            }
+            if (program != null) program.setResolved();
+        }
+        if (fixedTimetable) problem.getPrograms().forEach(Program::setResolved);
+    }
+
+    /**
+     * Restore the allocations that are still valid and find the participants that need to be repaired
+     */
+    private void restoreAllocations() {
+        int kept = 0;
+        int lost = 0;
+        for (Participant participant : problem.getParticipants()) {
+            int[] before = previous.allocations.get(participant.getId());
+            if (before == null) {
+                affected.add(participant);
+                continue;
+            }
+            // New preferences are placed from scratch, after a change of presence the valid allocations are kept
+            if (!Arrays.equals(previous.preferences.get(participant.getId()), preferenceIds(participant))) {
+                affected.add(participant);
+                continue;
+            }
+            boolean repair = previous.presence.get(participant.getId()) != presentMask(participant);
+            for (int slot = 0; slot < SLOTS; slot++) {
+                if (before[slot] == Assignment.NONE || isContinuation(before, slot)) continue;
+                phase.addIterations(1);
+                if (restore(participant, before[slot], slot)) {
+                    kept++;
+                } else {
+                    lost++;
+                    repair = true;
+                }
+            }
+            if (repair) affected.add(participant);
+        }
+        report.setAllocations(kept, lost);
+        touched.addAll(affected);
+    }
+
+    /**
+     * @return whether the program in the slot is the placeholder for the continuation of a program in another slot
+     */
+    private boolean isContinuation(int[] programIds, int slot) {
+        for (int other = 0; other < SLOTS; other++) {
+            if (other == slot || programIds[other] == Assignment.NONE || programIds[other] + 1000 != programIds[slot]) continue;
+            Program program = problem.getProgram(programIds[other]);
+            if (program != null && program.getCountinueOnSlot() != null && program.getCountinueOnSlot() - 1 == slot) return true;
+        }
+        return false;
+    }
+
+    private boolean restore(Participant participant, int programId, int slot) {
+        Program program = problem.getProgram(programId);
+        if (program == null || participant.hasProgramWithId(programId)) return false;
+        int rank = problem.getDefinition().getPreferenceRank(participant.getIndex(), program.getIndex());
+        if (rank < 0) return false;
+        // Do not let the continuation replace an allocation in the other slot
+        Integer continuation = program.getCountinueOnSlot();
+        if (continuation != null && problem.getAssignment().getAllocated(participant.getIndex(), continuation - 1) != Assignment.NONE) return false;
+        boolean made = participant.assignPreference(participant.getOriginalPreferences().get(rank), slot);
+        countAssignment(made);
+        return made;
+    }
+
+    /**
+     * Schedule programs that were not in the previous solution to the slot most of the affected participants
+     * could take them in, if that would fill the minimum
+     */
+    private void scheduleNewPrograms() {
+        for (Program program : problem.getPrograms()) {
+            if (previous.activeSlots.containsKey(program.getId()) || program.getCountinueOnSlot() != null) continue;
+            while (program.getAllocatedTimeSlotCount() < program.getMaxOccurance()) {
+                int[] demand = new int[SLOTS];
+                for (Participant participant : affected) {
+                    if (participant.hasProgramWithId(program.getId()) || !wants(participant, program)) continue;
+                    for (int slot = 0; slot < SLOTS; slot++) if (participant.isCurrentlyFreeAtSlot(slot)) demand[slot]++;
+                }
+                int best = -1;
+                for (int slot = 0; slot < SLOTS; slot++) {
+                    if (!program.isPossibleInSlot(slot) || program.isActiveInSlot(slot)) continue;
+                    if (best < 0 || demand[slot] > demand[best]) best = slot;
+                }
+                if (best < 0 || demand[best] < program.getMinPlaces()) break;
+                log.info("Scheduling new program " + program.getId() + " to slot " + (best + 1) + " for " + demand[best] + " participants");
+                program.assignToSlot(best);
+                scheduled.merge(program, 1 << best, (a, b) -> a | b);
+                // Facilitators of the program are no longer free in the slot
+                touched.addAll(program.getFacilitatorParticipants());
+            }
+            program.setResolved();
+        }
+    }
+
+    private boolean wants(Participant participant, Program program) {
+        return problem.getDefinition().getPreferenceRank(participant.getIndex(), program.getIndex()) >= 0;
+    }
+
+    /**
+     * Cancel the programs scheduled by scheduleNewPrograms that did not get enough participants, and repair
+     * the participants that were in them
+     */
+    private void cancelScheduledUnderMinimum() {
+        List<Participant> released = new ArrayList<>();
+        Assignment state = problem.getAssignment();
+        for (Map.Entry<Program, Integer> entry : scheduled.entrySet()) {
+            Program program = entry.getKey();
+            for (int slot = 0; slot < SLOTS; slot++) {
+                if ((entry.getValue() & (1 << slot)) == 0 || program.getParticipantsInSlot(slot) >= program.getMinPlaces()) continue;
+                log.info("Cancelling new program " + program.getId() + " in slot " + (slot + 1) + ", only " + program.getParticipantsInSlot(slot) + " participants");
+                for (Participant participant : program.getAssignedParticipants(slot)) {
+                    participant.unAssignSlot(slot);
+                    released.add(participant);
+                }
+                state.setActive(program.getIndex(), slot, false);
+                for (Participant facilitator : program.getFacilitatorParticipants()) {
+                    facilitator.setPresent(slot, problem.getDefinition().isPresent(facilitator.getIndex(), slot));
+                    released.add(facilitator);
+                }
+            }
+        }
+        repair(released);
+    }
+
+    /**
+     * Fill the free slots of the participants in random order
+     */
+    private void repair(List<Participant> participants) {
+        List<Participant> order = new ArrayList<>(participants);
+        Collections.shuffle(order, getRandom());
+        for (Participant participant : order) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                if (!participant.isCurrentlyFreeAtSlot(slot)) continue;
+                phase.addIterations(1);
+                if (!assignBestWithSpace(participant, slot)) displace(participant, slot);
+            }
+        }
+    }
+
+    private boolean canTake(Participant participant, Program program, int slot) {
+        return program.isActiveInSlot(slot) && program.getCountinueOnSlot() == null && !participant.hasProgramWithId(program.getId());
+    }
+
+    private boolean assignBestWithSpace(Participant participant, int slot) {
+        for (Preference preference : participant.getOriginalPreferences()) {
+            Program program = preference.getProgram();
+            if (!canTake(participant, program, slot) || !program.hasSpace(slot)) continue;
+            boolean made = participant.assignPreference(preference, slot);
+            countAssignment(made);
+            if (made) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Make room in a full program the participant picked by moving one of its participants to another program
+     * with space in the same slot
+     */
+    private void displace(Participant participant, int slot) {
+        PossibleSwap best = null;
+        int evaluated = 0;
+        for (Preference preference : participant.getOriginalPreferences()) {
+            Program program = preference.getProgram();
+            if (!canTake(participant, program, slot)) continue;
+            int swaps = 0;
+            for (Participant other : program.getAssignedParticipants(slot)) {
+                int currentOrder = other.getAllocatedPreference(slot).getOrder();
+                for (Preference alternative : other.getOriginalPreferences()) {
+                    Program to = alternative.getProgram();
+                    if (to == program || !canTake(other, to, slot) || !to.hasSpace(slot)) continue;
+                    swaps++;
+                    // Same estimate as in EagerOptimizer: the slot of the participant is assumed to be the worst
+                    int fitnessChange = 13 - preference.getOrder() + currentOrder - alternative.getOrder();
+                    if (best == null || fitnessChange > best.getFitnessChange())
+                        best = new PossibleSwap(other, participant, alternative, preference, slot, fitnessChange);
+                }
+            }
+            problem.getContentionProfile().countSwapAttempts(program.getIndex(), slot, swaps);
+            evaluated += swaps;
+        }
+        phase.addSwapsEvaluated(evaluated);
+        if (best == null) {
+            log.debug("No way to allocate participant " + participant + " in slot " + slot);
+            return;
+        }
+
+        // Both moves or neither
+        Participant other = best.getFromParticipant();
+        Assignment state = problem.getAssignment();
+        int savepoint = state.savepoint();
+        other.unAssignSlot(slot);
+        boolean made = other.assignPreference(best.getFromPreference(), slot);
+        countAssignment(made);
+        if (made) {
+            made = participant.assignPreference(best.getToPreference(), slot);
+            countAssignment(made);
+        }
+        if (made) {
+            state.release(savepoint);
+            phase.addSwapsExecuted(1);
+            touched.add(other);
+        } else {
+            log.warn("Could not move participant " + other + " to program " + best.getFromPreference().getProgramId() + " for participant " + participant + ", restoring the original allocations");
+            state.rollback(savepoint);
+        }
+    }
+
+    private void collectChanges() {
+        for (Participant participant : touched) {
+            int[] before = previous.allocations.get(participant.getId());
+            Integer[] after = participant.getAllocatedProgramIds().toArray(new Integer[0]);
+            if (before == null) {
+                report.add(new ChangeReport.Entry(participant.getId(), ChangeReport.Status.ADDED, new Integer[SLOTS], after));
+                continue;
+            }
+            Integer[] beforeIds = boxed(before);
+            boolean changed = !Arrays.equals(previous.preferences.get(participant.getId()), preferenceIds(participant))
+                    || previous.presence.get(participant.getId()) != presentMask(participant);
+            if (changed) report.add(new ChangeReport.Entry(participant.getId(), ChangeReport.Status.CHANGED, beforeIds, after));
+            else if (!Arrays.equals(beforeIds, after)) report.add(new ChangeReport.Entry(participant.getId(), ChangeReport.Status.MOVED, beforeIds, after));
+        }
+        for (Map.Entry<String, int[]> entry : previous.allocations.entrySet()) {
+            if (problem.getParticipant(entry.getKey()) == null)
+                report.add(new ChangeReport.Entry(entry.getKey(), ChangeReport.Status.REMOVED, boxed(entry.getValue()), new Integer[SLOTS]));
+        }
+        for (Program program : problem.getProgramsWithTooFewParticipants()) report.addProgramBelowMinimum(program.getId());
+    }
+
+    private static Integer[] boxed(int[] programIds) {
+        Integer[] ids = new Integer[programIds.length];
+        for (int slot = 0; slot < programIds.length; slot++) ids[slot] = programIds[slot] == Assignment.NONE ? null : programIds[slot];
+        return ids;
+    }
+
+    private int[] preferenceIds(Participant participant) {
+        ProblemDefinition definition = problem.getDefinition();
+        int[] ids = new int[participant.getOriginalPreferenceCount()];
+        for (int rank = 0; rank < ids.length; rank++) ids[rank] = definition.getProgramId(definition.getPreference(participant.getIndex(), rank));
+        return ids;
+    }
+
+    private byte presentMask(Participant participant) {
+        boolean[] present = participant.getPresent();
+        byte mask = 0;
+        for (int slot = 0; slot < SLOTS; slot++) if (present[slot]) mask |= 1 << slot;
+        return mask;
+    }
+}
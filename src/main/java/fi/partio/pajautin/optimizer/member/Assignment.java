@@ -0,0 +1,580 @@
+package fi.partio.pajautin.optimizer.member;
+
+import java.util.Arrays;
+
+/**
+ * Mutable search state of a problem: which programs run in which time slots, who is assigned where, how far
+ * each participant's preference list has been consumed and who is present.
+ *
+ * All the state is kept in flat primitive arrays indexed by the dense indices of the ProblemDefinition
+ * (per participant and slot at participant * SLOT_COUNT + slot, likewise for programs), so it can be reset
+ * to the initial state in O(N) or copied without touching the definition.
+ *
+ * Between savepoint and rollback, assignments, unassignments, popped preferences, presence and active slots
+ * are recorded to an undo journal, so that a tentative change can be undone in time proportional to the
+ * change instead of restoring a copy. The eager bookkeeping (resolved, primary preference counts and slot
+ * preferences) is not journaled.
+ */
+public class Assignment {
+
+    private static final int SLOTS = ProblemDefinition.SLOT_COUNT;
+
+    // Slot has no allocation
+    public static final int NONE = -1;
+
+    // Flag set on an allocated preference rank when the slot is taken by the continuation of a program
+    // that started in an earlier slot. Participant is not in the roster of the program in this slot.
+    public static final int CONTINUATION = 1 << 16;
+
+    final ProblemDefinition definition;
+
+    // Participant state, indexed by participant index
+    // How many preferences have been taken (or given up) from the top of the preference list
+    final int[] preferenceCursor;
+    // Allocated preference rank in each of the time slots, NONE if not allocated
+    final int[] allocated;
+    // Presence as a bitmask, bit n set when present in slot n
+    final byte[] presentMask;
+    final float[] random;
+    // Position of the participant in the roster of the allocated program in each of the time slots
+    final int[] rosterPosition;
+
+    // Program state, indexed by program index
+    // Active time slots as a bitmask, bit n set when active in slot n
+    final byte[] activeMask;
+    final boolean[] resolved;
+    final int[] primaryPreferenceCount;
+    final int[] slotPreference;
+    // Participant indices assigned to each program in each time slot, first rosterCount entries are in use
+    final int[][] roster;
+    final int[] rosterCount;
+
+    // Statistics kept up to date on every change, so that they can be read in O(1)
+    // Fitness of each participant, see getFitness
+    final int[] fitness;
+    // Sum of fitness of participants who are present at least once or have more than 9 preferences
+    int totalFitness;
+    int allocatedSlots;
+    // Participants with more than 9 preferences who have fewer allocations than present slots
+    int unallocatedParticipants;
+    // Participants with more than 9 preferences by the order of their best allocated preference, 0 = none allocated
+    final int[] bestPreferenceCount;
+
+    // Unprocessed participants by their current top preference
+    final TopPreferenceIndex topPreferences;
+
+    // Journal entries: kind, participant or program, slot, value, roster position
+    private static final int ENTRY = 5;
+    private static final int ASSIGNED = 0;
+    private static final int UNASSIGNED = 1;
+    private static final int PRESENCE = 2;
+    private static final int ACTIVE = 3;
+    private static final int POPPED = 4;
+
+    // Undo journal of the changes made since the oldest open savepoint
+    private int[] journal = new int[0];
+    private int journalSize;
+    private int openSavepoints;
+
+    public Assignment(ProblemDefinition definition) {
+        this.definition = definition;
+        int participantCount = definition.getParticipantCount();
+        int programCount = definition.getProgramCount();
+
+        preferenceCursor = new int[participantCount];
+        allocated = new int[participantCount * SLOTS];
+        presentMask = new byte[participantCount];
+        random = new float[participantCount];
+        rosterPosition = new int[participantCount * SLOTS];
+
+        activeMask = new byte[programCount];
+        resolved = new boolean[programCount];
+        primaryPreferenceCount = new int[programCount];
+        slotPreference = new int[programCount * SLOTS];
+        roster = new int[programCount * SLOTS][];
+        rosterCount = new int[programCount * SLOTS];
+        for (int p = 0; p < programCount; p++)
+            for (int slot = 0; slot < SLOTS; slot++)
+                roster[p * SLOTS + slot] = new int[Math.max(1, definition.getMaxPlaces(p))];
+
+        fitness = new int[participantCount];
+        int maxPreferenceCount = 0;
+        for (int i = 0; i < participantCount; i++)
+            maxPreferenceCount = Math.max(maxPreferenceCount, definition.getPreferenceCount(i));
+        bestPreferenceCount = new int[maxPreferenceCount + 1];
+
+        topPreferences = new TopPreferenceIndex(this);
+
+        reset();
+    }
+
+    private Assignment(Assignment other) {
+        this.definition = other.definition;
+        preferenceCursor = other.preferenceCursor.clone();
+        allocated = other.allocated.clone();
+        presentMask = other.presentMask.clone();
+        random = other.random.clone();
+        rosterPosition = other.rosterPosition.clone();
+
+        activeMask = other.activeMask.clone();
+        resolved = other.resolved.clone();
+        primaryPreferenceCount = other.primaryPreferenceCount.clone();
+        slotPreference = other.slotPreference.clone();
+        roster = new int[other.roster.length][];
+        for (int i = 0; i < roster.length; i++) roster[i] = other.roster[i].clone();
+        rosterCount = other.rosterCount.clone();
+
+        fitness = other.fitness.clone();
+        totalFitness = other.totalFitness;
+        allocatedSlots = other.allocatedSlots;
+        unallocatedParticipants = other.unallocatedParticipants;
+        bestPreferenceCount = other.bestPreferenceCount.clone();
+
+        topPreferences = new TopPreferenceIndex(this, other.topPreferences);
+    }
+
+    /**
+     * Return to the initial state: no programs active, nobody assigned, all preferences available.
+     */
+    public void reset() {
+        Arrays.fill(preferenceCursor, 0);
+        Arrays.fill(allocated, NONE);
+        System.arraycopy(definition.presentMask, 0, presentMask, 0, presentMask.length);
+        Arrays.fill(random, 0);
+
+        Arrays.fill(activeMask, (byte) 0);
+        Arrays.fill(resolved, false);
+        Arrays.fill(primaryPreferenceCount, 0);
+        Arrays.fill(slotPreference, 0);
+        Arrays.fill(rosterCount, 0);
+
+        totalFitness = 0;
+        allocatedSlots = 0;
+        unallocatedParticipants = 0;
+        Arrays.fill(bestPreferenceCount, 0);
+        for (int i = 0; i < preferenceCursor.length; i++) updateStatistics(i, 1);
+
+        topPreferences.reset();
+        clearJournal();
+    }
+
+    private void beforeChange(int participant) {
+        updateStatistics(participant, -1);
+        topPreferences.remove(participant);
+    }
+
+    private void afterChange(int participant) {
+        updateStatistics(participant, 1);
+        topPreferences.add(participant);
+    }
+
+    /**
+     * Add (sign 1) or remove (sign -1) the contribution of the participant's current allocations to the statistics.
+     * Every change to a participant's allocations or presence is wrapped between a removal and an addition.
+     */
+    private void updateStatistics(int participant, int sign) {
+        int preferenceCount = definition.getPreferenceCount(participant);
+        // Fitness for unresolved slot  = number of wishes + 3, maximum 13
+        int unalloc = Math.min(preferenceCount + 3, 13);
+
+        int participantFitness = 0;
+        int allocatedCount = 0;
+        int best = 0;
+        for (int slot = 0; slot < SLOTS; slot++) {
+            int rank = allocated[participant * SLOTS + slot];
+            if (rank == NONE) {
+                if (isPresent(participant, slot)) participantFitness += unalloc;
+            } else {
+                int order = (rank & ~CONTINUATION) + 1;
+                participantFitness += order;
+                allocatedCount++;
+                if (best == 0 || order < best) best = order;
+            }
+        }
+        int presentCount = Integer.bitCount(presentMask[participant]);
+
+        if (sign > 0) fitness[participant] = participantFitness;
+        if (presentCount > 0 || preferenceCount > 9) totalFitness += sign * participantFitness;
+        allocatedSlots += sign * allocatedCount;
+        if (preferenceCount > 9) {
+            if (allocatedCount < presentCount) unallocatedParticipants += sign;
+            bestPreferenceCount[best] += sign;
+        }
+    }
+
+    public Assignment copy() {
+        return new Assignment(this);
+    }
+
+    /**
+     * Return to the state of a snapshot taken with copy() from this assignment
+     */
+    public void restore(Assignment snapshot) {
+        System.arraycopy(snapshot.preferenceCursor, 0, preferenceCursor, 0, preferenceCursor.length);
+        System.arraycopy(snapshot.allocated, 0, allocated, 0, allocated.length);
+        System.arraycopy(snapshot.presentMask, 0, presentMask, 0, presentMask.length);
+        System.arraycopy(snapshot.random, 0, random, 0, random.length);
+        System.arraycopy(snapshot.rosterPosition, 0, rosterPosition, 0, rosterPosition.length);
+
+        System.arraycopy(snapshot.activeMask, 0, activeMask, 0, activeMask.length);
+        System.arraycopy(snapshot.resolved, 0, resolved, 0, resolved.length);
+        System.arraycopy(snapshot.primaryPreferenceCount, 0, primaryPreferenceCount, 0, primaryPreferenceCount.length);
+        System.arraycopy(snapshot.slotPreference, 0, slotPreference, 0, slotPreference.length);
+        for (int i = 0; i < roster.length; i++) roster[i] = snapshot.roster[i].clone();
+        System.arraycopy(snapshot.rosterCount, 0, rosterCount, 0, rosterCount.length);
+
+        System.arraycopy(snapshot.fitness, 0, fitness, 0, fitness.length);
+        totalFitness = snapshot.totalFitness;
+        allocatedSlots = snapshot.allocatedSlots;
+        unallocatedParticipants = snapshot.unallocatedParticipants;
+        System.arraycopy(snapshot.bestPreferenceCount, 0, bestPreferenceCount, 0, bestPreferenceCount.length);
+
+        topPreferences.restore(snapshot.topPreferences);
+        clearJournal();
+    }
+
+    /**
+     * Start recording changes. Savepoints nest: each one is closed with either rollback or release, the
+     * innermost first.
+     *
+     * @return the savepoint, to be given to rollback or release
+     */
+    public int savepoint() {
+        openSavepoints++;
+        return journalSize;
+    }
+
+    /**
+     * Undo the changes made after the savepoint, newest first, and close it
+     */
+    public void rollback(int savepoint) {
+        checkSavepoint(savepoint);
+        while (journalSize > savepoint) {
+            journalSize -= ENTRY;
+            int target = journal[journalSize + 1];
+            int slot = journal[journalSize + 2];
+            int value = journal[journalSize + 3];
+            switch (journal[journalSize]) {
+                case ASSIGNED: undoAssign(target, slot, value); break;
+                case UNASSIGNED: undoUnassign(target, slot, value, journal[journalSize + 4]); break;
+                case PRESENCE: undoPresence(target, slot, value != 0); break;
+                case ACTIVE: if (value != 0) activeMask[target] |= 1 << slot; else activeMask[target] &= ~(1 << slot); break;
+                case POPPED: undoPop(target); break;
+                default: throw new IllegalStateException("Unknown journal entry " + journal[journalSize]);
+            }
+        }
+        closeSavepoint();
+    }
+
+    /**
+     * Keep the changes made after the savepoint and close it. The changes can still be undone by rolling
+     * back an enclosing savepoint.
+     */
+    public void release(int savepoint) {
+        checkSavepoint(savepoint);
+        closeSavepoint();
+    }
+
+    /**
+     * @return number of changes recorded since the oldest open savepoint
+     */
+    public int getJournalSize() {
+        return journalSize / ENTRY;
+    }
+
+    private void checkSavepoint(int savepoint) {
+        if (openSavepoints == 0 || savepoint > journalSize || savepoint % ENTRY != 0)
+            throw new IllegalStateException("No open savepoint " + savepoint);
+    }
+
+    private void closeSavepoint() {
+        if (--openSavepoints == 0) journalSize = 0;
+    }
+
+    private void clearJournal() {
+        journalSize = 0;
+        openSavepoints = 0;
+    }
+
+    private void record(int kind, int target, int slot, int value, int position) {
+        if (openSavepoints == 0) return;
+        if (journalSize == journal.length) journal = Arrays.copyOf(journal, Math.max(64 * ENTRY, journal.length * 2));
+        journal[journalSize] = kind;
+        journal[journalSize + 1] = target;
+        journal[journalSize + 2] = slot;
+        journal[journalSize + 3] = value;
+        journal[journalSize + 4] = position;
+        journalSize += ENTRY;
+    }
+
+    /**
+     * Undo assign or assignContinuation. The participant was added last to the roster, and the later changes
+     * to the roster have been undone already.
+     */
+    private void undoAssign(int participant, int slot, int previous) {
+        int rank = allocated[participant * SLOTS + slot];
+        beforeChange(participant);
+        if ((rank & CONTINUATION) == 0) rosterCount[definition.getPreference(participant, rank) * SLOTS + slot]--;
+        allocated[participant * SLOTS + slot] = previous;
+        afterChange(participant);
+    }
+
+    /**
+     * Undo unassign: put the participant back to its roster position and the participant that took the
+     * position back to the end of the roster
+     */
+    private void undoUnassign(int participant, int slot, int rank, int position) {
+        beforeChange(participant);
+        if ((rank & CONTINUATION) == 0) {
+            int r = definition.getPreference(participant, rank) * SLOTS + slot;
+            if (rosterCount[r] == roster[r].length) roster[r] = Arrays.copyOf(roster[r], roster[r].length * 2);
+            if (position < rosterCount[r]) {
+                int moved = roster[r][position];
+                roster[r][rosterCount[r]] = moved;
+                rosterPosition[moved * SLOTS + slot] = rosterCount[r];
+            }
+            roster[r][position] = participant;
+            rosterPosition[participant * SLOTS + slot] = position;
+            rosterCount[r]++;
+        }
+        allocated[participant * SLOTS + slot] = rank;
+        afterChange(participant);
+    }
+
+    private void undoPresence(int participant, int slot, boolean wasPresent) {
+        beforeChange(participant);
+        if (wasPresent) presentMask[participant] |= 1 << slot;
+        else presentMask[participant] &= ~(1 << slot);
+        afterChange(participant);
+    }
+
+    private void undoPop(int participant) {
+        topPreferences.remove(participant);
+        preferenceCursor[participant]--;
+        topPreferences.add(participant);
+    }
+
+    public ProblemDefinition getDefinition() {
+        return definition;
+    }
+
+    public TopPreferenceIndex getTopPreferences() {
+        return topPreferences;
+    }
+
+    public int getPreferenceCursor(int participant) {
+        return preferenceCursor[participant];
+    }
+
+    public boolean hasPreferencesLeft(int participant) {
+        return preferenceCursor[participant] < definition.getPreferenceCount(participant);
+    }
+
+    /**
+     * @return program index of the participant's current top preference, or NONE if there are no preferences left
+     */
+    public int getTopPreference(int participant) {
+        if (!hasPreferencesLeft(participant)) return NONE;
+        return definition.getPreference(participant, preferenceCursor[participant]);
+    }
+
+    public void popPreference(int participant) {
+        record(POPPED, participant, 0, 0, 0);
+        topPreferences.remove(participant);
+        preferenceCursor[participant]++;
+        topPreferences.add(participant);
+    }
+
+    /**
+     * @return allocated preference rank in the slot, possibly with the CONTINUATION flag set, or NONE
+     */
+    public int getAllocated(int participant, int slot) {
+        return allocated[participant * SLOTS + slot];
+    }
+
+    /**
+     * @return program index allocated to the participant in the slot (also for continuations), or NONE
+     */
+    public int getAllocatedProgram(int participant, int slot) {
+        int rank = allocated[participant * SLOTS + slot];
+        if (rank == NONE) return NONE;
+        return definition.getPreference(participant, rank & ~CONTINUATION);
+    }
+
+    /**
+     * Allocate participant's preference with given rank to the slot and add the participant to the program roster
+     */
+    public void assign(int participant, int slot, int rank) {
+        record(ASSIGNED, participant, slot, allocated[participant * SLOTS + slot], 0);
+        beforeChange(participant);
+        allocated[participant * SLOTS + slot] = rank;
+        afterChange(participant);
+
+        int r = definition.getPreference(participant, rank) * SLOTS + slot;
+        if (rosterCount[r] == roster[r].length) roster[r] = Arrays.copyOf(roster[r], roster[r].length * 2);
+        rosterPosition[participant * SLOTS + slot] = rosterCount[r];
+        roster[r][rosterCount[r]++] = participant;
+    }
+
+    /**
+     * Mark the slot as taken by the continuation of the preference with given rank
+     */
+    public void assignContinuation(int participant, int slot, int rank) {
+        record(ASSIGNED, participant, slot, allocated[participant * SLOTS + slot], 0);
+        beforeChange(participant);
+        allocated[participant * SLOTS + slot] = rank | CONTINUATION;
+        afterChange(participant);
+    }
+
+    public void unassign(int participant, int slot) {
+        int rank = allocated[participant * SLOTS + slot];
+        if (rank == NONE) return;
+        record(UNASSIGNED, participant, slot, rank, rosterPosition[participant * SLOTS + slot]);
+        beforeChange(participant);
+        if ((rank & CONTINUATION) == 0) {
+            // Move the last participant of the roster to the place of the removed one
+            int r = definition.getPreference(participant, rank) * SLOTS + slot;
+            int position = rosterPosition[participant * SLOTS + slot];
+            int last = roster[r][--rosterCount[r]];
+            roster[r][position] = last;
+            rosterPosition[last * SLOTS + slot] = position;
+        }
+        allocated[participant * SLOTS + slot] = NONE;
+        afterChange(participant);
+    }
+
+    /**
+     * Exchange the allocations, preference cursors and random numbers of two members of the same participant
+     * class with the same presence. Both stay in the rosters at the positions of each other. Not recorded to
+     * the journal, so there must be no open savepoint.
+     */
+    public void exchange(int a, int b) {
+        if (openSavepoints > 0) throw new IllegalStateException("Cannot exchange participants with an open savepoint");
+        ParticipantClasses classes = definition.getParticipantClasses();
+        if (classes.getClassOf(a) != classes.getClassOf(b) || presentMask[a] != presentMask[b])
+            throw new IllegalArgumentException("Participants " + a + " and " + b + " do not have the same registration and presence");
+        beforeChange(a);
+        beforeChange(b);
+        for (int slot = 0; slot < SLOTS; slot++) {
+            int rankA = allocated[a * SLOTS + slot];
+            int rankB = allocated[b * SLOTS + slot];
+            int positionA = rosterPosition[a * SLOTS + slot];
+            int positionB = rosterPosition[b * SLOTS + slot];
+            if (rankA != NONE && (rankA & CONTINUATION) == 0) roster[definition.getPreference(a, rankA) * SLOTS + slot][positionA] = b;
+            if (rankB != NONE && (rankB & CONTINUATION) == 0) roster[definition.getPreference(b, rankB) * SLOTS + slot][positionB] = a;
+            allocated[a * SLOTS + slot] = rankB;
+            allocated[b * SLOTS + slot] = rankA;
+            rosterPosition[a * SLOTS + slot] = positionB;
+            rosterPosition[b * SLOTS + slot] = positionA;
+        }
+        int cursor = preferenceCursor[a];
+        preferenceCursor[a] = preferenceCursor[b];
+        preferenceCursor[b] = cursor;
+        float r = random[a];
+        random[a] = random[b];
+        random[b] = r;
+        afterChange(a);
+        afterChange(b);
+    }
+
+    public byte getPresentMask(int participant) {
+        return presentMask[participant];
+    }
+
+    public boolean isPresent(int participant, int slot) {
+        return (presentMask[participant] & (1 << slot)) != 0;
+    }
+
+    public void setPresent(int participant, int slot, boolean isPresent) {
+        record(PRESENCE, participant, slot, isPresent(participant, slot) ? 1 : 0, 0);
+        beforeChange(participant);
+        if (isPresent) presentMask[participant] |= 1 << slot;
+        else presentMask[participant] &= ~(1 << slot);
+        afterChange(participant);
+    }
+
+    public boolean isActive(int program, int slot) {
+        return (activeMask[program] & (1 << slot)) != 0;
+    }
+
+    public byte getActiveMask(int program) {
+        return activeMask[program];
+    }
+
+    public void setActive(int program, int slot, boolean active) {
+        record(ACTIVE, program, slot, isActive(program, slot) ? 1 : 0, 0);
+        if (active) activeMask[program] |= 1 << slot;
+        else activeMask[program] &= ~(1 << slot);
+    }
+
+    public int getAssignedCount(int program, int slot) {
+        return rosterCount[program * SLOTS + slot];
+    }
+
+    public boolean isAssigned(int program, int slot, int participant) {
+        int rank = allocated[participant * SLOTS + slot];
+        return rank != NONE && (rank & CONTINUATION) == 0 && definition.getPreference(participant, rank) == program;
+    }
+
+    /**
+     * @return whether the participant is in the roster of the program allocated to it in the slot
+     */
+    public boolean isInRoster(int participant, int slot) {
+        int rank = allocated[participant * SLOTS + slot];
+        if (rank == NONE || (rank & CONTINUATION) != 0) return false;
+        int r = definition.getPreference(participant, rank) * SLOTS + slot;
+        int position = rosterPosition[participant * SLOTS + slot];
+        return position < rosterCount[r] && roster[r][position] == participant;
+    }
+
+    /**
+     * @return participant assigned to the program in the slot at given position, 0 ... getAssignedCount - 1
+     */
+    public int getAssigned(int program, int slot, int position) {
+        return roster[program * SLOTS + slot][position];
+    }
+
+    /**
+     * @return fitness of the participant: sum of the allocated preference orders, plus a penalty of
+     * number of preferences + 3 (maximum 13) for each present slot without an allocation. Lower is better.
+     */
+    public int getFitness(int participant) {
+        return fitness[participant];
+    }
+
+    /**
+     * @return sum of fitness of the participants who are present at least once or have more than 9 preferences
+     */
+    public int getTotalFitness() {
+        return totalFitness;
+    }
+
+    public int getAllocatedSlots() {
+        return allocatedSlots;
+    }
+
+    public int getUnallocatedSlots() {
+        return preferenceCursor.length * SLOTS - allocatedSlots;
+    }
+
+    /**
+     * @return number of participants with more than 9 preferences who have fewer allocations than present slots
+     */
+    public int getUnallocatedParticipants() {
+        return unallocatedParticipants;
+    }
+
+    /**
+     * @return number of participants with more than 9 preferences whose best allocated preference order is at
+     * most among, and the number of all participants with more than 9 preferences
+     */
+    public int[] getBestPreferenceCounts(int among) {
+        int found = 0;
+        int total = 0;
+        for (int order = 0; order < bestPreferenceCount.length; order++) {
+            if (order > 0 && order <= among) found += bestPreferenceCount[order];
+            total += bestPreferenceCount[order];
+        }
+        return new int[]{found, total};
+    }
+}
@@ -0,0 +1,111 @@
+package fi.partio.pajautin.optimizer.member;
+
+import java.util.Arrays;
+
+/**
+ * Counts per program and time slot how contended the program is: assignment attempts, rejected attempts by
+ * reason and swaps considered to get participants into the program. Preferences given up as hopeless are
+ * counted per program. Used to see which programs would need more places or another occurrence.
+ *
+ * Updated by the participants of one problem, so it is not thread safe.
+ */
+public class ContentionProfile {
+
+    private static final int SLOTS = ProblemDefinition.SLOT_COUNT;
+
+    private static final int REASONS = Participant.Rejection.values().length;
+
+    private final int programCount;
+
+    // Indexed by program * SLOTS + slot
+    private final long[] attempts;
+    private final long[] swapAttempts;
+
+    // Indexed by (program * SLOTS + slot) * REASONS + reason
+    private final long[] rejections;
+
+    // Indexed by program
+    private final long[] hopeless;
+
+    ContentionProfile(int programCount) {
+        this.programCount = programCount;
+        attempts = new long[programCount * SLOTS];
+        swapAttempts = new long[programCount * SLOTS];
+        rejections = new long[programCount * SLOTS * REASONS];
+        hopeless = new long[programCount];
+    }
+
+    void clear() {
+        Arrays.fill(attempts, 0);
+        Arrays.fill(swapAttempts, 0);
+        Arrays.fill(rejections, 0);
+        Arrays.fill(hopeless, 0);
+    }
+
+    void copyTo(ContentionProfile other) {
+        System.arraycopy(attempts, 0, other.attempts, 0, attempts.length);
+        System.arraycopy(swapAttempts, 0, other.swapAttempts, 0, swapAttempts.length);
+        System.arraycopy(rejections, 0, other.rejections, 0, rejections.length);
+        System.arraycopy(hopeless, 0, other.hopeless, 0, hopeless.length);
+    }
+
+    void countAttempt(int program, int slot) {
+        attempts[program * SLOTS + slot]++;
+    }
+
+    void countRejection(int program, int slot, Participant.Rejection reason) {
+        rejections[(program * SLOTS + slot) * REASONS + reason.ordinal()]++;
+    }
+
+    void countHopeless(int program) {
+        hopeless[program]++;
+    }
+
+    /**
+     * Count swaps that were considered to move a participant to the program in the slot
+     */
+    public void countSwapAttempts(int program, int slot, int count) {
+        swapAttempts[program * SLOTS + slot] += count;
+    }
+
+    public int getProgramCount() {
+        return programCount;
+    }
+
+    /**
+     * @param program program index in the problem definition
+     */
+    public long getAttempts(int program, int slot) {
+        return attempts[program * SLOTS + slot];
+    }
+
+    public long getRejections(int program, int slot, Participant.Rejection reason) {
+        return rejections[(program * SLOTS + slot) * REASONS + reason.ordinal()];
+    }
+
+    public long getRejections(int program, int slot) {
+        long count = 0;
+        for (int reason = 0; reason < REASONS; reason++) count += rejections[(program * SLOTS + slot) * REASONS + reason];
+        return count;
+    }
+
+    /**
+     * @return rejections for the reason over all the programs and slots
+     */
+    public long getRejections(Participant.Rejection reason) {
+        long count = 0;
+        for (int i = reason.ordinal(); i < rejections.length; i += REASONS) count += rejections[i];
+        return count;
+    }
+
+    public long getSwapAttempts(int program, int slot) {
+        return swapAttempts[program * SLOTS + slot];
+    }
+
+    /**
+     * @return how many times the program was given up as a hopeless preference
+     */
+    public long getHopeless(int program) {
+        return hopeless[program];
+    }
+}
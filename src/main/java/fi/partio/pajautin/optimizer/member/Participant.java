@@ -5,65 +5,62 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.util.*;
-import java.util.stream.Collectors;
 
 
 public class Participant {
 
     private static final Logger log = LogManager.getLogger(Participant.class);
 
-    // uuid of the participant
-    String id;
-
-    Stack<Preference> preferences;
-
-    List<Preference> originalPreferences;
-
-    // Allocated preferences in each of the time slots [0...2]
-    Preference[] allocatedPreferences;
-
-    // When this participant is present
-    boolean[] present;
-
-
-
-    int fitness;
-
-    public float random;
+    /**
+     * Why an assignment attempt was rejected. Counted per program in the problem's ContentionProfile instead of
+     * logging every attempt.
+     */
+    public enum Rejection {
+        NOT_PRESENT,
+        PROGRAM_NOT_ACTIVE,
+        ALREADY_ALLOCATED,
+        PROGRAM_FULL,
+        NOT_PRESENT_IN_CONTINUATION
+    }
 
+    private final Problem problem;
 
+    // Index of the participant in the problem definition
+    private final int index;
 
-    public Participant(String id, Map<Object,Object> JSONData, Problem problem) {
-        this.id = id;
-        Object progs = JSONData.get("prog");
-        if (progs instanceof List) {
-            int order = 1;
-            this.preferences=new Stack<>();
-            for (Object pr : ((List)progs))
-                this.preferences.add(new Preference(problem.getProgram((Integer)pr),order++));
+    // uuid of the participant
+    final String id;
 
-            originalPreferences=new ArrayList<>(preferences);
+    // Created on first use, the optimizer itself works on the preference ranks
+    private List<Preference> originalPreferences;
 
-            // Preferences will now be in reverse order (in stack), re-reverse the array
-            Collections.reverse(preferences);
+    // Placeholders of the continuations, by rank. Created on first use.
+    private Preference[] continuationPreferences;
 
-        }
-        else {
-            log.warn("Warning: Program list empty for participant "+id);
-        }
-
-        allocatedPreferences=new Preference[]{null,null,null};
-        fitness=Problem.UNALLOCATED_FITNESS;
+    /**
+     * Creates a view to the participant with given index. Preferences and presence are read from the problem
+     * definition and the allocations from the problem's assignment.
+     */
+    Participant(Problem problem, int index) {
+        this.problem = problem;
+        this.index = index;
+        this.id = problem.getDefinition().participantIds[index];
+    }
 
-        present=new boolean[3];
-        List<Boolean> bl = ((List<Boolean>)JSONData.get("present"));
-        for (int i=0; i<bl.size(); i++) present[i]=bl.get(i);
+    private Assignment state() {
+        return problem.getAssignment();
+    }
 
+    private ProblemDefinition definition() {
+        return problem.getDefinition();
+    }
 
+    private Program programOfRank(int rank) {
+        return problem.getProgramAt(definition().getPreference(index, rank));
     }
 
-    public boolean assignFirstPreference() {
-        if (preferences.size()==0) return false;
+    public boolean assignFirstPreference(Random random) {
+        if (!state().hasPreferencesLeft(index)) return false;
         //@TODO allocated to "smart" time slot, maybe not full etc
         /*
         if ((new Random().nextBoolean())) {
@@ -83,42 +80,53 @@ public class Participant {
         }
 
          */
-        Preference pref = preferences.peek();
-        ArrayList<Integer> possibleSlots = new ArrayList<>();
-        for (int i=0; i<present.length; i++) {
-            if (present[i] && allocatedPreferences[i]==null && pref.getProgram().hasSpace(i) && pref.getProgram().getAllocatedTimeSlots()[i]) {
-                possibleSlots.add(i);
+        Program program = programOfRank(state().getPreferenceCursor(index));
+        // Possible slots as a bit mask, bit i = slot i
+        int possibleSlots = 0;
+        for (int i=0; i<ProblemDefinition.SLOT_COUNT; i++) {
+            if (isCurrentlyFreeAtSlot(i) && program.hasSpace(i) && program.isActiveInSlot(i)) {
+                possibleSlots |= 1 << i;
             }
         }
-        if (assingMultiplePreferencesSmartly(possibleSlots,pref.getProgram())) return true;
+        if (assingMultiplePreferencesSmartly(possibleSlots,program,random)) return true;
 
         // Something went wonky, try to assign to any slot
-        log.warn("Could not assign participant "+id+" to any of the preferred slots, trying to assign to any slot.");
-        for (int i=0; i<present.length; i++) {
-            if (present[i]) {
+        log.warn("Could not assign participant {} to any of the preferred slots, trying to assign to any slot.", id);
+        for (int i=0; i<ProblemDefinition.SLOT_COUNT; i++) {
+            if (state().isPresent(index, i)) {
                 if (assignFirstPreference(i)) return true;
             }
         }
 
         // remove hopelessly unassignable preference
-        preferences.pop();
+        problem.contention.countHopeless(program.getIndex());
+        state().popPreference(index);
         return false;
     }
 
 
 
-    private boolean assingMultiplePreferencesSmartly(ArrayList<Integer> possibleSlots, Program program) {
+    /**
+     * @param possibleSlots bit mask of the slots the program can be assigned to
+     */
+    private boolean assingMultiplePreferencesSmartly(int possibleSlots, Program program, Random random) {
 
-        if (possibleSlots.size()==0) return false;
+        if (possibleSlots==0) return false;
         // Easy case, only one possible slot
-        if (possibleSlots.size()==1) return assignFirstPreference(possibleSlots.get(0));
+        if (Integer.bitCount(possibleSlots)==1) return assignFirstPreference(Integer.numberOfTrailingZeros(possibleSlots));
+
+        // Slots that are above minimum
+        int aboveMinimum = 0;
+        for (int slot=0; slot<ProblemDefinition.SLOT_COUNT; slot++) {
+            if ((possibleSlots & 1 << slot) != 0 && program.getParticipantsInSlot(slot)>=program.getMinPlaces()) aboveMinimum |= 1 << slot;
+        }
 
         // If all of the slots are above minimum, assign to the one with least participants
-        if (possibleSlots.stream().allMatch(slot -> program.getParticipantsInSlot(slot)>=program.getMinPlaces())) {
+        if (aboveMinimum == possibleSlots) {
             int min = Integer.MAX_VALUE;
             int minSlot = -1;
-            for (int slot : possibleSlots) {
-                if (program.getParticipantsInSlot(slot) < min) {
+            for (int slot=0; slot<ProblemDefinition.SLOT_COUNT; slot++) {
+                if ((possibleSlots & 1 << slot) != 0 && program.getParticipantsInSlot(slot) < min) {
                     min=program.getParticipantsInSlot(slot);
                     minSlot=slot;
                 }
@@ -127,11 +135,11 @@ public class Participant {
         }
 
         // if none of the slots are above minimum, assign to the one with most participants to fill at least one up
-        if (possibleSlots.stream().allMatch(slot -> program.getParticipantsInSlot(slot)<program.getMinPlaces())) {
+        if (aboveMinimum == 0) {
             int max = 0;
             int maxSlot = -1;
-            for (int slot : possibleSlots) {
-                if (program.getParticipantsInSlot(slot) >= max) {
+            for (int slot=0; slot<ProblemDefinition.SLOT_COUNT; slot++) {
+                if ((possibleSlots & 1 << slot) != 0 && program.getParticipantsInSlot(slot) >= max) {
                     max = program.getParticipantsInSlot(slot);
                     maxSlot = slot;
                 }
@@ -140,56 +148,67 @@ public class Participant {
         }
 
         // See the next preference and assign to slot that does not interfere with it
-        if (preferences.size()>2) {
-            var nextPref = preferences.get(preferences.size()-2);
+        int cursor = state().getPreferenceCursor(index);
+        if (definition().getPreferenceCount(index) - cursor > 2) {
+            Program nextProgram = programOfRank(cursor + 1);
 
-            for (int i=0; i<present.length; i++) {
-                if (present[i] && allocatedPreferences[i]==null && nextPref.getProgram().hasSpace(i) && nextPref.getProgram().getAllocatedTimeSlots()[i]) {
+            for (int i=0; i<ProblemDefinition.SLOT_COUNT; i++) {
+                if (isCurrentlyFreeAtSlot(i) && nextProgram.hasSpace(i) && nextProgram.isActiveInSlot(i)) {
                     // If there is more than one possible slots and the next preference can be assigned to one of them
                     // remove that slot from the possible slots
-                    if (possibleSlots.size()>1) {
-                        int finalI = i;
-                        possibleSlots.removeIf(slot -> slot == finalI);
+                    if (Integer.bitCount(possibleSlots)>1) {
+                        possibleSlots &= ~(1 << i);
                     }
                 }
             }
         }
 
         // Pick a random slot from the remaining possible ones
-        int slot = possibleSlots.get(new Random().nextInt(possibleSlots.size()));
+        int slot = Integer.numberOfTrailingZeros(possibleSlots);
+        for (int skip = random.nextInt(Integer.bitCount(possibleSlots)); skip > 0; skip--) {
+            possibleSlots &= possibleSlots - 1;
+            slot = Integer.numberOfTrailingZeros(possibleSlots);
+        }
         return assignFirstPreference(slot);
 
     }
 
     public boolean assignFirstPreference(int timeSlot) {
-        if (assignPreference(preferences.peek(),timeSlot)) {
-            preferences.pop();
+        if (!state().hasPreferencesLeft(index)) return false;
+        if (assignRank(state().getPreferenceCursor(index),timeSlot)) {
+            state().popPreference(index);
             return true;
         }
         else return false;
     }
 
     public boolean assignPreference(Preference pref, int timeSlot) {
+        return assignRank(pref.getOrder()-1, timeSlot);
+    }
+
+    private boolean assignRank(int rank, int timeSlot) {
 
-        Program program = pref.getProgram();
+        Program program = programOfRank(rank);
+        ContentionProfile contention = problem.contention;
+        contention.countAttempt(program.getIndex(), timeSlot);
 
-        if (!present[timeSlot]) {
-            log.info("Could not assign participant "+id+" to program with id "+program.getId()+" because participant is not present at timeslot "+(timeSlot+1));
+        if (!state().isPresent(index, timeSlot)) {
+            contention.countRejection(program.getIndex(), timeSlot, Rejection.NOT_PRESENT);
             return false;
         }
 
-        if (!program.allocatedTimeSlots[timeSlot]) {
-            log.info("Could not assign participant "+id+" to program with id "+program.getId()+" because program is not active at timeslot "+(timeSlot+1));
+        if (!program.isActiveInSlot(timeSlot)) {
+            contention.countRejection(program.getIndex(), timeSlot, Rejection.PROGRAM_NOT_ACTIVE);
             return false;
         }
 
-        if (allocatedPreferences[timeSlot]!=null) {
-            log.info("Could not assign participant "+id+" to program with id "+program.getId()+" because participant is already allocated at timeslot "+(timeSlot+1)+" to program "+allocatedPreferences[timeSlot].getProgramId());
+        if (state().getAllocated(index, timeSlot)!=Assignment.NONE) {
+            contention.countRejection(program.getIndex(), timeSlot, Rejection.ALREADY_ALLOCATED);
             return false;
         }
 
         if (!program.hasSpace(timeSlot)) {
-            log.warn("Could not assign participant "+id+" to program with id "+program.getId()+" in timeslot "+timeSlot+ " because program is full.");
+            contention.countRejection(program.getIndex(), timeSlot, Rejection.PROGRAM_FULL);
             return false;
         }
 
@@ -198,35 +217,44 @@ public class Participant {
         // If the program has countinueToSlot set, assign the participant to the next slot as well
         if (program.getCountinueOnSlot()!=null) {
             int cntSlot = program.getCountinueOnSlot()-1;
-            if (!present[cntSlot]) {
-                log.warn("Could not assign participant "+id+" to COUNTINUATION OF program with id "+program.getId()+" in timeslot "+cntSlot+ " because participant is not present.");
+            if (!state().isPresent(index, cntSlot)) {
+                contention.countRejection(program.getIndex(), timeSlot, Rejection.NOT_PRESENT_IN_CONTINUATION);
                 return false;
             }
-            // Create a preference that does not exist
-            Program dummyPrg = new Program(program.getId()+1000,"Jatkuu: "+program.getName());
-            Preference dummyPref = new Preference(dummyPrg,pref.order);
-            if (getAllocatedPreferences()[cntSlot]!=null) {
+            // Take the continuation slot with a placeholder for the same preference
+            if (state().getAllocated(index, cntSlot)!=Assignment.NONE) {
                 unAssignSlot(cntSlot);
             }
-            allocatedPreferences[cntSlot]=dummyPref;
+            state().assignContinuation(index, cntSlot, rank);
 
         }
 
-        allocatedPreferences[timeSlot]=pref;
-        program.assignParticipant(this,timeSlot);
-        log.debug("Assigned participant "+id+" to program with id "+program.getId()+" on slot "+(timeSlot+1));
+        state().assign(index, timeSlot, rank);
         return true;
     }
 
+    /**
+     * Remove the allocation of the slot. A program that continues to another slot is removed from both slots,
+     * whichever of them is given.
+     */
     public void unAssignSlot(int slot) {
-        if (allocatedPreferences[slot]==null) return;
-        allocatedPreferences[slot].getProgram().unAssignParticipant(this,slot);
-        allocatedPreferences[slot]=null;
+        Assignment state = state();
+        int rank = state.getAllocated(index, slot);
+        if (rank == Assignment.NONE) return;
+        state.unassign(index, slot);
+
+        int start = rank & ~Assignment.CONTINUATION;
+        if (definition().getContinuationSlot(programOfRank(start).getIndex()) < 0) return;
+        for (int other = 0; other < ProblemDefinition.SLOT_COUNT; other++) {
+            int otherRank = state.getAllocated(index, other);
+            if (other != slot && otherRank != Assignment.NONE && (otherRank & ~Assignment.CONTINUATION) == start)
+                state.unassign(index, other);
+        }
     }
 
     public Preference peekTopPreference() {
-        if (preferences.size()==0) return null;
-        return preferences.peek();
+        if (!state().hasPreferencesLeft(index)) return null;
+        return getOriginalPreferences().get(state().getPreferenceCursor(index));
     }
 
     /**
@@ -235,40 +263,20 @@ public class Participant {
      * @return
      */
     public int getTopPreferenceOrder() {
-        if (preferences.size()==0) return Integer.MAX_VALUE;
-        if (preferences.peek()==null) return Integer.MAX_VALUE;
-        return preferences.peek().getOrder();
+        if (!state().hasPreferencesLeft(index)) return Integer.MAX_VALUE;
+        return state().getPreferenceCursor(index) + 1;
     }
 
 
     public int getFitness() {
-        calculateFitness();
-        return fitness;
-    }
-
-    private void calculateFitness() {
-        // Fitness for unresolved slot  = number of wishes + 3, maximum 13
-        int unalloc = originalPreferences.size() + 3;
-        if (unalloc>13) unalloc=13;
-
-        fitness = 0;
-        for (int i = 0; i < allocatedPreferences.length; i++) {
-            var pref = allocatedPreferences[i];
-            if (pref==null && present[i]) {
-                fitness += unalloc;
-                continue;
-            }
-            else if (pref!=null)
-                fitness+= pref.getOrder();
-
-        }
-
-
+        return state().getFitness(index);
     }
 
     public boolean hasProgramWithId(int id) {
-        for (var p : allocatedPreferences)
-            if (p!=null && p.getProgramId()==id) return true;
+        for (int i = 0; i < ProblemDefinition.SLOT_COUNT; i++) {
+            int program = state().getAllocatedProgram(index, i);
+            if (program!=Assignment.NONE && definition().getProgramId(program)==id) return true;
+        }
         return false;
     }
 
@@ -277,18 +285,47 @@ public class Participant {
     }
 
     @JsonIgnore
-    public Stack<Preference> getPreferences() {
-        return preferences;
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return preferences that have not yet been taken or given up, most preferred first
+     */
+    @JsonIgnore
+    public List<Preference> getPreferences() {
+        List<Preference> originalPreferences = getOriginalPreferences();
+        return originalPreferences.subList(state().getPreferenceCursor(index), originalPreferences.size());
     }
 
     @JsonIgnore
     public Preference[] getAllocatedPreferences() {
+        Preference[] allocatedPreferences = new Preference[ProblemDefinition.SLOT_COUNT];
+        for (int i = 0; i < allocatedPreferences.length; i++)
+            allocatedPreferences[i] = getAllocatedPreference(i);
         return allocatedPreferences;
     }
 
+    /**
+     * @return preference allocated in the slot, or null if the slot is not allocated. If the slot is taken by
+     * the continuation of a program, the preference refers to a dummy program.
+     */
+    public Preference getAllocatedPreference(int slot) {
+        int rank = state().getAllocated(index, slot);
+        if (rank == Assignment.NONE) return null;
+        if ((rank & Assignment.CONTINUATION) == 0) return getOriginalPreferences().get(rank);
+        // A preference that does not exist, created once per rank
+        rank &= ~Assignment.CONTINUATION;
+        if (continuationPreferences == null) continuationPreferences = new Preference[definition().getPreferenceCount(index)];
+        if (continuationPreferences[rank] == null)
+            continuationPreferences[rank] = new Preference(programOfRank(rank).getContinuationPlaceholder(), rank + 1);
+        return continuationPreferences[rank];
+    }
+
     public List<Integer> getAllocatedProgramIds() {
         List<Integer> ids = new ArrayList<>();
-        for (var p : allocatedPreferences) {
+        for (int i = 0; i < ProblemDefinition.SLOT_COUNT; i++) {
+            Preference p = getAllocatedPreference(i);
             if (p != null) ids.add(p.getProgramId());
             else ids.add(null);
         }
@@ -296,32 +333,35 @@ public class Participant {
     }
 
     public boolean[] getPresent() {
+        boolean[] present = new boolean[ProblemDefinition.SLOT_COUNT];
+        for (int i = 0; i < present.length; i++) present[i] = state().isPresent(index, i);
         return present;
     }
 
+    public void setPresent(int slot, boolean present) {
+        state().setPresent(index, slot, present);
+    }
+
 
     public boolean isCurrentlyFreeAtSlot(int slot) {
-        if (!present[slot]) return false;
-        return allocatedPreferences[slot]==null;
+        if (!state().isPresent(index, slot)) return false;
+        return state().getAllocated(index, slot)==Assignment.NONE;
     }
 
     public int getAllocatedCount() {
         int allocatedCount =0;
-        for (var p : allocatedPreferences)
-            allocatedCount+= p == null ? 0 : 1;
+        for (int i = 0; i < ProblemDefinition.SLOT_COUNT; i++)
+            allocatedCount+= state().getAllocated(index, i) == Assignment.NONE ? 0 : 1;
         return allocatedCount;
     }
 
     public int getUnallocatedCount() {
-        int unAllocatedCount =0;
-        for (var p : allocatedPreferences)
-            unAllocatedCount+= p == null ? 1 : 0;
-        return unAllocatedCount;
+        return ProblemDefinition.SLOT_COUNT - getAllocatedCount();
     }
 
     public int getPresentCount() {
         int count =0;
-        for (var p : present)  count+= p  ? 1 : 0;
+        for (int i = 0; i < ProblemDefinition.SLOT_COUNT; i++)  count+= state().isPresent(index, i)  ? 1 : 0;
         return count;
     }
 
@@ -331,27 +371,25 @@ public class Participant {
     public boolean isResolved() {
 
         // Hopeless == resolved
-        if (preferences.size()==0) return true;
+        if (!state().hasPreferencesLeft(index)) return true;
 
-        for (var p : allocatedPreferences)
-            if (p==null) return false;
-        return true;
+        return getAllocatedCount() == ProblemDefinition.SLOT_COUNT;
     }
 
     public float getRandom() {
-        return random;
+        return state().random[index];
     }
 
     public void setRandom(float random) {
-        this.random = random;
+        state().random[index] = random;
     }
 
     @Override
     public String toString() {
         return "Participant{" +
                 "id='" + id + '\'' +
-                ", preferencesCount=" + originalPreferences.size() +
-                ", present=" + Arrays.toString(present) +
+                ", preferencesCount=" + definition().getPreferenceCount(index) +
+                ", present=" + Arrays.toString(getPresent()) +
                 ", fitness=" + getFitness() +
                 ", allocatedCount=" + getAllocatedCount() +
                 ", isResolved=" + isResolved() +
@@ -361,25 +399,46 @@ public class Participant {
 
     public String getAllocatedPrograms() {
         String ret = "[";
-        for (var p : allocatedPreferences)
+        for (var p : getAllocatedPreferences())
             ret += p == null ? "null," : p.getProgramId() + ", ";
         return ret + "]";
     }
 
     @JsonIgnore
     public List<Preference> getOriginalPreferences() {
+        if (originalPreferences == null) {
+            int count = definition().getPreferenceCount(index);
+            List<Preference> prefs = new ArrayList<>(count);
+            for (int rank = 0; rank < count; rank++)
+                prefs.add(new Preference(programOfRank(rank), rank + 1));
+            originalPreferences = Collections.unmodifiableList(prefs);
+        }
         return originalPreferences;
     }
 
+    /**
+     * @return number of preferences the participant originally gave
+     */
+    @JsonIgnore
+    public int getOriginalPreferenceCount() {
+        return definition().getPreferenceCount(index);
+    }
+
     public List<Integer> getOriginalPreferenceIds() {
-        return originalPreferences.stream().map(p -> p.getProgramId()).collect(Collectors.toList());
+        int count = definition().getPreferenceCount(index);
+        List<Integer> ids = new ArrayList<>(count);
+        for (int rank = 0; rank < count; rank++)
+            ids.add(definition().getProgramId(definition().getPreference(index, rank)));
+        return ids;
     }
 
     public int getBestPreference() {
         int best = 999;
-        for (var p : allocatedPreferences) {
-            if (p != null) {
-                if (p.getOrder() < best) best = p.getOrder();
+        for (int i = 0; i < ProblemDefinition.SLOT_COUNT; i++) {
+            int rank = state().getAllocated(index, i);
+            if (rank != Assignment.NONE) {
+                int order = (rank & ~Assignment.CONTINUATION) + 1;
+                if (order < best) best = order;
             }
         }
         return best;
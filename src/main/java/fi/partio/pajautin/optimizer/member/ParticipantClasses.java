@@ -0,0 +1,98 @@
+package fi.partio.pajautin.optimizer.member;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Groups the participants of a problem definition to classes of participants with exactly the same
+ * preferences (in the same order) and presence, e.g. members of a scout group who registered with the same
+ * list. The participants of a class are interchangeable. FlowAssignmentOptimizer uses the classes to solve
+ * each slot on rows of identical free participants and hands out the flow of a row to its members by lottery.
+ * EagerOptimizer serves the members of a class that are still in the same state as one group in its fixed
+ * and worst-first phases, and draws a lottery within each class at the end.
+ *
+ * Computed once per definition, see ProblemDefinition.getParticipantClasses.
+ */
+public class ParticipantClasses {
+
+    private final int classCount;
+
+    // Class of each participant
+    private final int[] classOf;
+
+    // Members of class c at memberStart[c] ... memberStart[c + 1] - 1, in participant order
+    private final int[] memberStart;
+    private final int[] members;
+
+    ParticipantClasses(ProblemDefinition definition) {
+        int participantCount = definition.getParticipantCount();
+        classOf = new int[participantCount];
+
+        // First member of each class, and the next class with the same hash
+        int[] first = new int[participantCount];
+        int[] nextWithHash = new int[participantCount];
+        HashMap<Integer, Integer> byHash = new HashMap<>(participantCount * 2);
+        int count = 0;
+        for (int p = 0; p < participantCount; p++) {
+            int hash = hash(definition, p);
+            Integer c = byHash.get(hash);
+            while (c != null && !sameRegistration(definition, first[c], p)) c = nextWithHash[c] < 0 ? null : nextWithHash[c];
+            if (c == null) {
+                c = count++;
+                first[c] = p;
+                Integer previous = byHash.put(hash, c);
+                nextWithHash[c] = previous == null ? -1 : previous;
+            }
+            classOf[p] = c;
+        }
+        classCount = count;
+
+        // Members by class with a counting sort
+        memberStart = new int[classCount + 1];
+        for (int p = 0; p < participantCount; p++) memberStart[classOf[p] + 1]++;
+        for (int c = 0; c < classCount; c++) memberStart[c + 1] += memberStart[c];
+        members = new int[participantCount];
+        int[] position = Arrays.copyOf(memberStart, classCount);
+        for (int p = 0; p < participantCount; p++) members[position[classOf[p]]++] = p;
+    }
+
+    private static int hash(ProblemDefinition definition, int participant) {
+        int hash = definition.getPresentMask(participant);
+        for (int i = definition.preferenceStart[participant]; i < definition.preferenceStart[participant + 1]; i++)
+            hash = 31 * hash + definition.preferenceProgram[i];
+        return hash;
+    }
+
+    private static boolean sameRegistration(ProblemDefinition definition, int a, int b) {
+        if (definition.getPresentMask(a) != definition.getPresentMask(b)) return false;
+        int count = definition.getPreferenceCount(a);
+        if (definition.getPreferenceCount(b) != count) return false;
+        for (int rank = 0; rank < count; rank++)
+            if (definition.getPreference(a, rank) != definition.getPreference(b, rank)) return false;
+        return true;
+    }
+
+    public int getClassCount() {
+        return classCount;
+    }
+
+    public int getClassOf(int participant) {
+        return classOf[participant];
+    }
+
+    public int getSize(int participantClass) {
+        return memberStart[participantClass + 1] - memberStart[participantClass];
+    }
+
+    /**
+     * @return participant index of the member, 0 ... getSize - 1
+     */
+    public int getMember(int participantClass, int position) {
+        return members[memberStart[participantClass] + position];
+    }
+
+    @Override
+    public String toString() {
+        return classOf.length + " participants in " + classCount + " classes";
+    }
+}
@@ -3,73 +3,167 @@ package fi.partio.pajautin.optimizer.member;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 public class Problem {
     public static final int UNALLOCATED_FITNESS = 30;
 
+    final ProblemDefinition definition;
+
+    final Assignment assignment;
+
+    // Views to the participants and programs, indexed by their index in the definition
+    final Participant[] participantsByIndex;
+    final Program[] programsByIndex;
+
     ArrayList<Participant> participants;
-    HashMap<Integer,Program> programs;
+    List<Program> programs;
 
     ArrayList<Program> unprocessedPrograms;
     ArrayList<Participant> unprocessedParticipants;
 
+    // Assignment attempts, rejections and swaps by program and slot
+    final ContentionProfile contention;
+
     public Problem(List<Map<Object,Object>> programData, Map<Object,Object> participantData, List<List<Object>> participantSpeakers) {
-        programs= new HashMap<Integer,Program>();
-        unprocessedPrograms = new ArrayList<Program>();
-        for (Map<Object,Object> programDatum : programData) {
-            Program program = new Program(programDatum);
-            programs.put(program.getId(), program);
-            unprocessedPrograms.add(program);
+        this(new ProblemDefinition(programData, participantData, participantSpeakers));
+    }
+
+    /**
+     * Creates a problem in its initial state. The definition is not modified and can be shared with other problems.
+     */
+    public Problem(ProblemDefinition definition) {
+        this(definition, new Assignment(definition));
+        unprocessedPrograms = new ArrayList<Program>(programsByIndex.length);
+        unprocessedParticipants = new ArrayList<Participant>(participantsByIndex.length);
+        reset();
+    }
+
+    private Problem(ProblemDefinition definition, Assignment assignment) {
+        this.definition = definition;
+        this.assignment = assignment;
+        this.contention = new ContentionProfile(definition.getProgramCount());
+
+        programsByIndex = new Program[definition.getProgramCount()];
+        for (int i = 0; i < programsByIndex.length; i++) {
+            programsByIndex[i] = new Program(this, i);
         }
+        programs = Collections.unmodifiableList(Arrays.asList(programsByIndex));
 
-        participants = new ArrayList<Participant>();
-        unprocessedParticipants = new ArrayList<Participant>();
-        for (HashMap.Entry<Object, Object> participantDatum : participantData.entrySet()) {
-            Participant participant = new Participant(participantDatum.getKey().toString(), (Map<Object,Object>)participantDatum.getValue(), this);
+        participantsByIndex = new Participant[definition.getParticipantCount()];
+        participants = new ArrayList<Participant>(participantsByIndex.length);
+        for (int i = 0; i < participantsByIndex.length; i++) {
+            Participant participant = new Participant(this, i);
+            participantsByIndex[i] = participant;
             participants.add(participant);
-            unprocessedParticipants.add(participant);
         }
+    }
+
+    /**
+     * Return to the initial state so that the problem can be optimized again. Runs in O(N) and keeps the views.
+     */
+    public void reset() {
+        assignment.reset();
+        contention.clear();
+        unprocessedPrograms.clear();
+        unprocessedPrograms.addAll(programs);
+        unprocessedParticipants.clear();
+        unprocessedParticipants.addAll(participants);
+    }
 
-        // Add participants who are facilitators to the programs
-        for (List<Object> tuple : participantSpeakers) {
-            int programId = (Integer)tuple.get(0);
-            String participantId = (String)tuple.get(1);
-            Optional<Participant> first = participants.stream().filter(p -> p.getId().equals(participantId)).findFirst();
-            if (first.isPresent()) {
-                Participant participant = first.get();
-                Program program = programs.get(programId);
-                program.addFacilitator(participant);
-            }
+    /**
+     * @return independent copy of this problem in its current state, sharing the same definition
+     */
+    public Problem copy() {
+        Problem copy = new Problem(definition, assignment.copy());
+        copy.unprocessedPrograms = new ArrayList<Program>(unprocessedPrograms.size());
+        for (Program program : unprocessedPrograms) copy.unprocessedPrograms.add(copy.programsByIndex[program.getIndex()]);
+        copy.unprocessedParticipants = new ArrayList<Participant>(unprocessedParticipants.size());
+        for (Participant participant : unprocessedParticipants) copy.unprocessedParticipants.add(copy.participantsByIndex[participant.getIndex()]);
+        contention.copyTo(copy.contention);
+        return copy;
+    }
+
+    /**
+     * Create the objects that the participant and program views otherwise create on first use. After this the
+     * views only read, so several threads can read the problem at once as long as nobody changes it.
+     */
+    public void createViews() {
+        for (Participant participant : participantsByIndex) {
+            participant.getOriginalPreferences();
+            for (int slot = 0; slot < ProblemDefinition.SLOT_COUNT; slot++) participant.getAllocatedPreference(slot);
         }
+        for (Program program : programsByIndex) program.getContinuationPlaceholder();
+    }
 
+    @JsonIgnore
+    public ProblemDefinition getDefinition() {
+        return definition;
     }
 
+    @JsonIgnore
+    public Assignment getAssignment() {
+        return assignment;
+    }
 
-    public int calculateFitness() {
-        AtomicInteger fitness = new AtomicInteger();
-        participants.stream().filter(p -> p.getPresentCount()>0 || p.getOriginalPreferences().size()>9).forEach(p -> fitness.addAndGet(p.getFitness()));
+    /**
+     * @return participant with given index in the problem definition
+     */
+    public Participant getParticipantAt(int index) {
+        return participantsByIndex[index];
+    }
+
+    /**
+     * @return participant with given id, or null if there is no such participant. O(1).
+     */
+    public Participant getParticipant(String participantId) {
+        int index = definition.getParticipantIndex(participantId);
+        return index < 0 ? null : participantsByIndex[index];
+    }
+
+    /**
+     * @return number of assignment attempts rejected for the reason since the problem was created or reset
+     */
+    public long getRejectionCount(Participant.Rejection reason) {
+        return contention.getRejections(reason);
+    }
+
+    /**
+     * @return contention of the programs since the problem was created or reset
+     */
+    @JsonIgnore
+    public ContentionProfile getContentionProfile() {
+        return contention;
+    }
 
+    Program getProgramAt(int index) {
+        return programsByIndex[index];
+    }
 
-        return fitness.get();
+    /**
+     * @return total fitness of the participants who are present at least once or have more than 9 preferences.
+     * Maintained by the assignment on every change, so this is O(1).
+     */
+    public int calculateFitness() {
+        return assignment.getTotalFitness();
     }
 
     public Program getProgram(int programId) {
-        return programs.get(programId);
+        int index = definition.getProgramIndex(programId);
+        return index < 0 ? null : programsByIndex[index];
     }
 
     /**
      * Calculate the number of participants who have this program as their first preference.
      */
     public void calculatePrimaryPreferenceCountForProgram() {
-        for (Program program : programs.values()) {
-            program.calculatePrimaryPreferenceCount(unprocessedParticipants);
+        for (Program program : programsByIndex) {
+            program.calculatePrimaryPreferenceCount();
         }
     }
 
     public void sortProgramsByPrimaryPreferenceCount() {
-        unprocessedPrograms.stream().forEach(p -> p.calculatePrimaryPreferenceCount(unprocessedParticipants));
+        unprocessedPrograms.stream().forEach(p -> p.calculatePrimaryPreferenceCount());
         unprocessedPrograms.sort((p1, p2) -> p2.getPrimaryPreferenceCount() - p1.getPrimaryPreferenceCount());
     }
 
@@ -81,7 +175,11 @@ public class Problem {
 
     public int pruneResolvedParticipants() {
         int before = unprocessedParticipants.size();
-        unprocessedParticipants.removeIf(participant -> participant.isResolved());
+        unprocessedParticipants.removeIf(participant -> {
+            if (!participant.isResolved()) return false;
+            assignment.getTopPreferences().removeMember(participant.getIndex());
+            return true;
+        });
         return before - unprocessedParticipants.size();
     }
 
@@ -107,34 +205,43 @@ public class Problem {
         stats.put("Unprocessed participants", unprocessedParticipants.size());
         stats.put("Programs", programs.size());
         stats.put("Unprocessed programs", unprocessedPrograms.size());
-        stats.put("Total Fitness", calculateFitness());
-        stats.put("Average Fitness", (float)calculateFitness()/(float)participants.size());
-        stats.put("Total allocated / unalllocated slots", (participants.stream().mapToInt(p -> p.getAllocatedCount()).sum())+ " / " + (participants.stream().mapToInt(p -> p.getUnallocatedCount()).sum()));
+        int fitness = calculateFitness();
+        stats.put("Total Fitness", fitness);
+        stats.put("Average Fitness", (float)fitness/(float)participants.size());
+        stats.put("Total allocated / unalllocated slots", assignment.getAllocatedSlots() + " / " + assignment.getUnallocatedSlots());
         stats.put("At least one among 3 %", getBestPrefAmong(3));
         stats.put("Got top pref %", getBestPrefAmong(1));
+        StringBuilder rejected = new StringBuilder();
+        for (Participant.Rejection reason : Participant.Rejection.values())
+            rejected.append(rejected.length() > 0 ? ", " : "").append(reason).append(' ').append(getRejectionCount(reason));
+        stats.put("Rejected assignments", rejected.toString());
         return stats;
     }
 
     private float getBestPrefAmong(int among) {
-        float found =0;
-        float tot=0;
-        for (Participant  p : participants.stream().filter(p -> p.getOriginalPreferences().size()>9).collect(Collectors.toList())) {
-            if (p.getBestPreference() <= among) found++;
-
-            tot++;
-        }
+        int[] counts = assignment.getBestPreferenceCounts(among);
+        float found = counts[0];
+        float tot = counts[1];
         return found/tot*100;
     }
 
+    /**
+     * @return number of participants in getUnallocated, in O(1)
+     */
+    @JsonIgnore
+    public int getUnallocatedCount() {
+        return assignment.getUnallocatedParticipants();
+    }
+
     @JsonIgnore
     public List<Participant> getUnallocated() {
-        return getParticipants().stream().filter(p -> p.getAllocatedCount() < p.getPresentCount() && p.getOriginalPreferences().size() > 9).collect(Collectors.toList());
+        return getParticipants().stream().filter(p -> p.getAllocatedCount() < p.getPresentCount() && p.getOriginalPreferenceCount() > 9).collect(Collectors.toList());
     }
 
     public List<Program> getProgramsWithTooFewParticipants() {
-        return getPrograms().stream().filter(p -> (p.getAllocatedTimeSlots()[0] && p.getAssignedParticipants(0).size() < p.getMinPlaces())
-                || (p.getAllocatedTimeSlots()[1] && p.getAssignedParticipants(1).size() < p.getMinPlaces())
-                || (p.getAllocatedTimeSlots()[2] && p.getAssignedParticipants(2).size() < p.getMinPlaces()))
+        return getPrograms().stream().filter(p -> (p.isActiveInSlot(0) && p.getParticipantsInSlot(0) < p.getMinPlaces())
+                || (p.isActiveInSlot(1) && p.getParticipantsInSlot(1) < p.getMinPlaces())
+                || (p.isActiveInSlot(2) && p.getParticipantsInSlot(2) < p.getMinPlaces()))
                 .collect(Collectors.toList());
     }
 
@@ -151,7 +258,10 @@ public class Problem {
         return participants;
     }
 
+    /**
+     * @return all programs in input order. The list is read-only.
+     */
     public List<Program> getPrograms() {
-        return new ArrayList<Program>(programs.values());
+        return programs;
     }
 }
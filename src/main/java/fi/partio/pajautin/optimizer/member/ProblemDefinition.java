@@ -0,0 +1,458 @@
+package fi.partio.pajautin.optimizer.member;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only input data of an optimization problem: programs, participants with their preferences and presence,
+ * and the facilitators of each program.
+ *
+ * The definition is built once from the input data and can be shared by any number of Problem instances
+ * (restarts, parallel workers, what-if runs), each of which keeps its own mutable Assignment.
+ * Programs and participants are identified by dense indices in input order.
+ */
+public class ProblemDefinition {
+
+    private static final Logger log = LogManager.getLogger(ProblemDefinition.class);
+
+    public static final int SLOT_COUNT = 3;
+
+    // Programs, indexed by program index
+    final int[] programIds;
+    final String[] programNames;
+    // Possible time slots of each program as a bitmask, bit n set when possible in slot n
+    final byte[] possibleMask;
+    final int[] minPlaces;
+    final int[] maxPlaces;
+    // How many times each program can repeat
+    final int[] maxOccurance;
+    final int[] possibleTimeSlotCount;
+    // How many different combinations of time slot allocation each program can have
+    final int[] combinations;
+    final Integer[] countinueOnSlot;
+    // Descriptive fields, only needed for the output
+    final String[] keywords;
+    final String[] authors;
+    final String[] descriptions;
+    final String[] types;
+    final boolean[] roverRecommended;
+    final HashMap<Integer, Integer> programIndex;
+
+    // Participants, indexed by participant index
+    final String[] participantIds;
+    // Preferred programs of all participants as program indices, most preferred first.
+    // Preferences of participant i are at preferenceStart[i] ... preferenceStart[i + 1] - 1
+    final int[] preferenceStart;
+    final short[] preferenceProgram;
+    // Presence of each participant as a bitmask, bit n set when present in slot n
+    final byte[] presentMask;
+    final HashMap<String, Integer> participantIndex;
+
+    // Facilitators of each program as participant indices, indexed by program index
+    final int[][] facilitators;
+    // Programs facilitated by each participant, the inverse of facilitators.
+    // Programs facilitated by participant i are at facilitatedStart[i] ... facilitatedStart[i + 1] - 1
+    final int[] facilitatedStart;
+    final int[] facilitatedProgram;
+
+    // Created on first use
+    private ParticipantClasses participantClasses;
+
+    /**
+     * Creates the definition from the untyped data read with DataUtil (programs.json, participants.json and
+     * speakers.json as maps and lists).
+     */
+    public ProblemDefinition(List<Map<Object, Object>> programData, Map<Object, Object> participantData, List<List<Object>> participantSpeakers) {
+        this(fromData(programData, participantData, participantSpeakers));
+    }
+
+    private static Builder fromData(List<Map<Object, Object>> programData, Map<Object, Object> participantData, List<List<Object>> participantSpeakers) {
+        Builder builder = new Builder();
+        for (Map<Object, Object> JSONData : programData) {
+            byte possible = 0;
+            for (int slot = 0; slot < SLOT_COUNT; slot++)
+                if ("TRUE".equals(JSONData.get("slot" + (slot + 1)))) possible |= 1 << slot;
+            Integer countinueOnSlot = null;
+            if (JSONData.containsKey("countinueInSlot") && !JSONData.get("countinueInSlot").equals(""))
+                countinueOnSlot = Integer.parseInt(JSONData.get("countinueInSlot") + "");
+            builder.addProgram(Integer.parseInt(JSONData.get("id") + ""), JSONData.get("name") + "", possible,
+                    safeParseInt(JSONData.get("minSize"), 5), safeParseInt(JSONData.get("maxSize"), 30),
+                    safeParseInt(JSONData.get("availableSlots"), 1), countinueOnSlot,
+                    (String) JSONData.get("keywords"), (String) JSONData.get("author"), (String) JSONData.get("description"),
+                    (String) JSONData.get("type"), "TRUE".equals(JSONData.get("roverRecommended")));
+        }
+
+        for (Map.Entry<Object, Object> participantDatum : participantData.entrySet()) {
+            String id = participantDatum.getKey().toString();
+            Map<?, ?> JSONData = (Map<?, ?>) participantDatum.getValue();
+
+            builder.startParticipant(id);
+            Object progs = JSONData.get("prog");
+            if (progs instanceof List) {
+                for (Object pr : (List<?>) progs) builder.addPreference((Integer) pr);
+            } else {
+                log.warn("Warning: Program list empty for participant " + id);
+            }
+            List<?> bl = (List<?>) JSONData.get("present");
+            for (int i = 0; i < bl.size(); i++)
+                if ((Boolean) bl.get(i)) builder.setPresent(i);
+        }
+
+        for (List<Object> tuple : participantSpeakers) {
+            builder.addFacilitator((Integer) tuple.get(0), (String) tuple.get(1));
+        }
+        return builder;
+    }
+
+    private ProblemDefinition(Builder builder) {
+        this(Arrays.copyOf(builder.programIds, builder.programCount), builder.programNames.toArray(new String[0]),
+                Arrays.copyOf(builder.possibleMask, builder.programCount), Arrays.copyOf(builder.minPlaces, builder.programCount),
+                Arrays.copyOf(builder.maxPlaces, builder.programCount), Arrays.copyOf(builder.maxOccurance, builder.programCount),
+                builder.countinueOnSlot.toArray(new Integer[0]), builder.keywords.toArray(new String[0]),
+                builder.authors.toArray(new String[0]), builder.descriptions.toArray(new String[0]),
+                builder.types.toArray(new String[0]), Arrays.copyOf(builder.roverRecommended, builder.programCount),
+                builder.participantIds.toArray(new String[0]), builder.preferenceStarts(),
+                Arrays.copyOf(builder.preferenceProgram, builder.preferenceCount),
+                Arrays.copyOf(builder.presentMask, builder.participantIds.size()), builder.resolveFacilitators());
+    }
+
+    /**
+     * Creates the definition from its arrays as they are, e.g. when read from a snapshot. Facilitators are
+     * participant indices by program index.
+     */
+    ProblemDefinition(int[] programIds, String[] programNames, byte[] possibleMask, int[] minPlaces, int[] maxPlaces,
+                      int[] maxOccurance, Integer[] countinueOnSlot, String[] keywords, String[] authors,
+                      String[] descriptions, String[] types, boolean[] roverRecommended, String[] participantIds,
+                      int[] preferenceStart, short[] preferenceProgram, byte[] presentMask, int[][] facilitators) {
+        int programCount = programIds.length;
+        this.programIds = programIds;
+        this.programNames = programNames;
+        this.possibleMask = possibleMask;
+        this.minPlaces = minPlaces;
+        this.maxPlaces = maxPlaces;
+        this.maxOccurance = maxOccurance;
+        this.countinueOnSlot = countinueOnSlot;
+        this.keywords = keywords;
+        this.authors = authors;
+        this.descriptions = descriptions;
+        this.types = types;
+        this.roverRecommended = roverRecommended;
+        programIndex = new HashMap<>(programCount * 2);
+        for (int i = 0; i < programCount; i++) programIndex.put(programIds[i], i);
+
+        possibleTimeSlotCount = new int[programCount];
+        combinations = new int[programCount];
+        for (int i = 0; i < programCount; i++) {
+            possibleTimeSlotCount[i] = Integer.bitCount(possibleMask[i]);
+            combinations[i] = calculateCombinations(maxOccurance[i], possibleTimeSlotCount[i]);
+        }
+
+        this.participantIds = participantIds;
+        this.preferenceStart = preferenceStart;
+        this.preferenceProgram = preferenceProgram;
+        this.presentMask = presentMask;
+        participantIndex = new HashMap<>(participantIds.length * 2);
+        for (int i = 0; i < participantIds.length; i++) participantIndex.put(participantIds[i], i);
+
+        this.facilitators = facilitators;
+        facilitatedStart = new int[participantIds.length + 1];
+        for (int[] programFacilitators : facilitators)
+            for (int facilitator : programFacilitators) facilitatedStart[facilitator + 1]++;
+        for (int i = 0; i < participantIds.length; i++) facilitatedStart[i + 1] += facilitatedStart[i];
+        facilitatedProgram = new int[facilitatedStart[participantIds.length]];
+        int[] next = Arrays.copyOf(facilitatedStart, participantIds.length);
+        for (int program = 0; program < programCount; program++)
+            for (int facilitator : facilitators[program]) facilitatedProgram[next[facilitator]++] = program;
+    }
+
+    /**
+     * Builds a definition record by record, so that it can be created while reading the input without
+     * intermediate maps. All programs must be added before the participants that refer to them.
+     */
+    public static class Builder {
+        private int programCount;
+        private int[] programIds = new int[16];
+        private final List<String> programNames = new ArrayList<>();
+        private byte[] possibleMask = new byte[16];
+        private int[] minPlaces = new int[16];
+        private int[] maxPlaces = new int[16];
+        private int[] maxOccurance = new int[16];
+        private final List<Integer> countinueOnSlot = new ArrayList<>();
+        private final List<String> keywords = new ArrayList<>();
+        private final List<String> authors = new ArrayList<>();
+        private final List<String> descriptions = new ArrayList<>();
+        private final List<String> types = new ArrayList<>();
+        private boolean[] roverRecommended = new boolean[16];
+        private final HashMap<Integer, Integer> programIndex = new HashMap<>();
+
+        private final List<String> participantIds = new ArrayList<>();
+        private int[] preferenceStart = new int[16];
+        private short[] preferenceProgram = new short[256];
+        private int preferenceCount;
+        private byte[] presentMask = new byte[16];
+        private final HashMap<String, Integer> participantIndex = new HashMap<>();
+
+        private final List<Integer> facilitatorPrograms = new ArrayList<>();
+        private final List<String> facilitatorParticipants = new ArrayList<>();
+
+        /**
+         * @param possibleMask possible time slots as a bitmask, bit n set when possible in slot n
+         * @param countinueOnSlot slot (1 ...) the program continues to, or null
+         */
+        public void addProgram(int id, String name, byte possibleMask, int minPlaces, int maxPlaces, int maxOccurance,
+                               Integer countinueOnSlot, String keywords, String author, String description, String type,
+                               boolean roverRecommended) {
+            if (programCount == Short.MAX_VALUE)
+                throw new IllegalArgumentException("Too many programs: " + (programCount + 1));
+            if (programCount == programIds.length) {
+                int capacity = programCount * 2;
+                programIds = Arrays.copyOf(programIds, capacity);
+                this.possibleMask = Arrays.copyOf(this.possibleMask, capacity);
+                this.minPlaces = Arrays.copyOf(this.minPlaces, capacity);
+                this.maxPlaces = Arrays.copyOf(this.maxPlaces, capacity);
+                this.maxOccurance = Arrays.copyOf(this.maxOccurance, capacity);
+                this.roverRecommended = Arrays.copyOf(this.roverRecommended, capacity);
+            }
+            programIds[programCount] = id;
+            programNames.add(name);
+            this.possibleMask[programCount] = possibleMask;
+            this.minPlaces[programCount] = minPlaces;
+            this.maxPlaces[programCount] = maxPlaces;
+            this.maxOccurance[programCount] = maxOccurance;
+            this.countinueOnSlot.add(countinueOnSlot);
+            this.keywords.add(keywords);
+            this.authors.add(author);
+            this.descriptions.add(description);
+            this.types.add(type);
+            this.roverRecommended[programCount] = roverRecommended;
+            programIndex.put(id, programCount);
+            programCount++;
+        }
+
+        /**
+         * Start a new participant. Preferences and presence added after this belong to this participant.
+         */
+        public void startParticipant(String id) {
+            int index = participantIds.size();
+            if (index + 1 >= preferenceStart.length) {
+                preferenceStart = Arrays.copyOf(preferenceStart, preferenceStart.length * 2);
+                presentMask = Arrays.copyOf(presentMask, preferenceStart.length);
+            }
+            participantIds.add(id);
+            participantIndex.put(id, index);
+            preferenceStart[index] = preferenceCount;
+        }
+
+        /**
+         * Add the next preference of the current participant. Unknown programs are skipped with a warning.
+         */
+        public void addPreference(int programId) {
+            Integer programIdx = programIndex.get(programId);
+            if (programIdx == null) {
+                log.warn("Warning: Unknown program " + programId + " in preferences of participant " + participantIds.get(participantIds.size() - 1));
+                return;
+            }
+            if (preferenceCount == preferenceProgram.length)
+                preferenceProgram = Arrays.copyOf(preferenceProgram, preferenceProgram.length * 2);
+            preferenceProgram[preferenceCount++] = (short) (int) programIdx;
+        }
+
+        /**
+         * Mark the current participant present in the slot
+         */
+        public void setPresent(int slot) {
+            presentMask[participantIds.size() - 1] |= 1 << slot;
+        }
+
+        /**
+         * Unknown programs and participants are ignored when the definition is built
+         */
+        public void addFacilitator(int programId, String participantId) {
+            facilitatorPrograms.add(programId);
+            facilitatorParticipants.add(participantId);
+        }
+
+        public ProblemDefinition build() {
+            return new ProblemDefinition(this);
+        }
+
+        private int[] preferenceStarts() {
+            int participantCount = participantIds.size();
+            int[] starts = Arrays.copyOf(preferenceStart, participantCount + 1);
+            starts[participantCount] = preferenceCount;
+            return starts;
+        }
+
+        /**
+         * @return participants who are facilitators of the programs, as participant indices by program index
+         */
+        private int[][] resolveFacilitators() {
+            List<List<Integer>> facilitatorLists = new ArrayList<>(programCount);
+            for (int i = 0; i < programCount; i++) facilitatorLists.add(new ArrayList<>());
+            for (int i = 0; i < facilitatorPrograms.size(); i++) {
+                Integer programIdx = programIndex.get(facilitatorPrograms.get(i));
+                Integer participantIdx = participantIndex.get(facilitatorParticipants.get(i));
+                if (programIdx != null && participantIdx != null) {
+                    facilitatorLists.get(programIdx).add(participantIdx);
+                }
+            }
+            int[][] facilitators = new int[programCount][];
+            for (int i = 0; i < programCount; i++)
+                facilitators[i] = facilitatorLists.get(i).stream().mapToInt(Integer::intValue).toArray();
+            return facilitators;
+        }
+    }
+
+    /**
+     * Calculate how many combinations a program can have
+     * (i.e. how many ways it can appear in the time slots)
+     */
+    private static int calculateCombinations(int occurance, int possibilities) {
+        // Return trivial solution for 3 time slots
+        if (possibilities == 1) return 1;
+        if (possibilities == occurance) return 1;
+        if (possibilities == 2 && occurance == 1) return 2;
+        return 3; // 3 combinations for both cases 3-1 and 3-2
+
+    }
+
+    static int safeParseInt(Object o, int def) {
+        try {
+            return Integer.parseInt("" + o);
+        } catch (Exception e) {
+            log.info("Warning, could not parse " + o + " using default value " + def);
+            return def;
+        }
+    }
+
+    public int getProgramCount() {
+        return programIds.length;
+    }
+
+    public int getParticipantCount() {
+        return participantIds.length;
+    }
+
+    /**
+     * @return index of the program with given id, or -1 if there is no such program
+     */
+    public int getProgramIndex(int programId) {
+        Integer index = programIndex.get(programId);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * @return index of the participant with given id, or -1 if there is no such participant
+     */
+    public int getParticipantIndex(String participantId) {
+        Integer index = participantIndex.get(participantId);
+        return index == null ? -1 : index;
+    }
+
+    public int getProgramId(int program) {
+        return programIds[program];
+    }
+
+    public String getParticipantId(int participant) {
+        return participantIds[participant];
+    }
+
+    public int getPreferenceCount(int participant) {
+        return preferenceStart[participant + 1] - preferenceStart[participant];
+    }
+
+    /**
+     * @return program index of the participant's preference with given rank (0 = most preferred)
+     */
+    public int getPreference(int participant, int rank) {
+        return preferenceProgram[preferenceStart[participant] + rank];
+    }
+
+    /**
+     * @return rank of the program in the participant's preferences, or -1 if the participant did not pick it
+     */
+    public int getPreferenceRank(int participant, int program) {
+        int start = preferenceStart[participant];
+        for (int i = start; i < preferenceStart[participant + 1]; i++)
+            if (preferenceProgram[i] == program) return i - start;
+        return -1;
+    }
+
+    public boolean isPossible(int program, int slot) {
+        return (possibleMask[program] & (1 << slot)) != 0;
+    }
+
+    public byte getPossibleMask(int program) {
+        return possibleMask[program];
+    }
+
+    public boolean isPresent(int participant, int slot) {
+        return (presentMask[participant] & (1 << slot)) != 0;
+    }
+
+    public byte getPresentMask(int participant) {
+        return presentMask[participant];
+    }
+
+    /**
+     * @return whether the program continues to another time slot (countinueInSlot is set)
+     */
+    public boolean hasContinuation(int program) {
+        return countinueOnSlot[program] != null;
+    }
+
+    /**
+     * @return time slot the program continues to, 0 ... SLOT_COUNT - 1, or -1 if it does not continue
+     */
+    public int getContinuationSlot(int program) {
+        return countinueOnSlot[program] == null ? -1 : countinueOnSlot[program] - 1;
+    }
+
+    public int getMaxOccurance(int program) {
+        return maxOccurance[program];
+    }
+
+    public int getFacilitatorCount(int program) {
+        return facilitators[program].length;
+    }
+
+    /**
+     * @return participant index of the facilitator of the program, 0 ... getFacilitatorCount - 1
+     */
+    public int getFacilitator(int program, int position) {
+        return facilitators[program][position];
+    }
+
+    public int getFacilitatedProgramCount(int participant) {
+        return facilitatedStart[participant + 1] - facilitatedStart[participant];
+    }
+
+    /**
+     * @return program index of a program the participant facilitates, 0 ... getFacilitatedProgramCount - 1
+     */
+    public int getFacilitatedProgram(int participant, int position) {
+        return facilitatedProgram[facilitatedStart[participant] + position];
+    }
+
+    /**
+     * @return the participants grouped by identical preferences and presence
+     */
+    public synchronized ParticipantClasses getParticipantClasses() {
+        if (participantClasses == null) participantClasses = new ParticipantClasses(this);
+        return participantClasses;
+    }
+
+    public int getMinPlaces(int program) {
+        return minPlaces[program];
+    }
+
+    public int getMaxPlaces(int program) {
+        return maxPlaces[program];
+    }
+}
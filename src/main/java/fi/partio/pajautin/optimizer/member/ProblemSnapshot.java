@@ -0,0 +1,302 @@
+package fi.partio.pajautin.optimizer.member;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Compact binary snapshot of a problem definition and, optionally, the assignment of a solution.
+ *
+ * The file is little endian: a header (magic, version, flags and counts) followed by the arrays of the
+ * definition and the assignment, each written in one piece. Reading maps the file and copies every array with
+ * one bulk get, so apart from the strings (names and ids) nothing is created per record.
+ *
+ * Only the state needed to continue from the solution is stored: active time slots, resolved programs,
+ * presence, preference cursors and allocations. The rosters and statistics are rebuilt when it is read.
+ */
+public class ProblemSnapshot {
+
+    private static final int MAGIC = 0x4e534a50; // "PJSN"
+
+    public static final int VERSION = 1;
+
+    private static final int HAS_ASSIGNMENT = 1;
+
+    private static final int SLOTS = ProblemDefinition.SLOT_COUNT;
+
+    /**
+     * Write the definition of the problem, and its assignment if withAssignment is set
+     */
+    public static void write(Problem problem, boolean withAssignment, Path file) {
+        write(problem.getDefinition(), withAssignment ? problem.getAssignment() : null, file);
+    }
+
+    public static void write(ProblemDefinition definition, Path file) {
+        write(definition, null, file);
+    }
+
+    private static void write(ProblemDefinition definition, Assignment assignment, Path file) {
+        int programCount = definition.getProgramCount();
+        int participantCount = definition.getParticipantCount();
+        int preferenceTotal = definition.preferenceStart[participantCount];
+
+        byte[][] programNames = encode(definition.programNames);
+        byte[][] keywords = encode(definition.keywords);
+        byte[][] authors = encode(definition.authors);
+        byte[][] descriptions = encode(definition.descriptions);
+        byte[][] types = encode(definition.types);
+        byte[][] participantIds = encode(definition.participantIds);
+
+        int facilitatorTotal = 0;
+        for (int[] facilitators : definition.facilitators) facilitatorTotal += facilitators.length;
+
+        long size = 6 * 4
+                + programCount * (4 * 5 + 2)
+                + size(programNames) + size(keywords) + size(authors) + size(descriptions) + size(types)
+                + size(participantIds)
+                + (participantCount + 1) * 4 + preferenceTotal * 2 + participantCount
+                + (programCount + 1) * 4 + facilitatorTotal * 4;
+        if (assignment != null) size += programCount * 2 + participantCount * (1 + 4 + SLOTS * 4);
+        if (size > Integer.MAX_VALUE) throw new IllegalArgumentException("Problem is too large for a snapshot: " + size + " bytes");
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(assignment != null ? HAS_ASSIGNMENT : 0)
+                .putInt(programCount).putInt(participantCount).putInt(preferenceTotal);
+
+        // Programs
+        putInts(buffer, definition.programIds);
+        buffer.put(definition.possibleMask);
+        putInts(buffer, definition.minPlaces);
+        putInts(buffer, definition.maxPlaces);
+        putInts(buffer, definition.maxOccurance);
+        for (Integer slot : definition.countinueOnSlot) buffer.putInt(slot == null ? 0 : slot);
+        for (boolean rover : definition.roverRecommended) buffer.put((byte) (rover ? 1 : 0));
+        putStrings(buffer, programNames);
+        putStrings(buffer, keywords);
+        putStrings(buffer, authors);
+        putStrings(buffer, descriptions);
+        putStrings(buffer, types);
+
+        // Participants
+        putStrings(buffer, participantIds);
+        putInts(buffer, definition.preferenceStart);
+        buffer.asShortBuffer().put(definition.preferenceProgram);
+        buffer.position(buffer.position() + preferenceTotal * 2);
+        buffer.put(definition.presentMask);
+
+        // Facilitators, as a start index for each program followed by the participant indices
+        int start = 0;
+        for (int[] facilitators : definition.facilitators) {
+            buffer.putInt(start);
+            start += facilitators.length;
+        }
+        buffer.putInt(start);
+        for (int[] facilitators : definition.facilitators) putInts(buffer, facilitators);
+
+        if (assignment != null) {
+            buffer.put(assignment.activeMask);
+            for (boolean resolved : assignment.resolved) buffer.put((byte) (resolved ? 1 : 0));
+            buffer.put(assignment.presentMask);
+            putInts(buffer, assignment.preferenceCursor);
+            putInts(buffer, assignment.allocated);
+        }
+
+        buffer.flip();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) channel.write(buffer);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return whether the snapshot contains an assignment
+     */
+    public static boolean hasAssignment(Path file) {
+        return (header(map(file), file)[2] & HAS_ASSIGNMENT) != 0;
+    }
+
+    /**
+     * Read the definition of a snapshot, ignoring the assignment if there is one
+     */
+    public static ProblemDefinition readDefinition(Path file) {
+        MappedByteBuffer buffer = map(file);
+        return readDefinition(buffer, header(buffer, file));
+    }
+
+    /**
+     * Read a problem from a snapshot. If the snapshot contains an assignment, the problem is in the state of the
+     * solution, otherwise in its initial state.
+     */
+    public static Problem read(Path file) {
+        MappedByteBuffer buffer = map(file);
+        int[] header = header(buffer, file);
+        Problem problem = new Problem(readDefinition(buffer, header));
+        if ((header[2] & HAS_ASSIGNMENT) != 0) readAssignment(buffer, problem);
+        return problem;
+    }
+
+    private static MappedByteBuffer map(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return magic, version, flags, program count, participant count and preference count
+     */
+    private static int[] header(ByteBuffer buffer, Path file) {
+        if (buffer.remaining() < 6 * 4 || buffer.getInt(0) != MAGIC)
+            throw new IllegalArgumentException("Not a problem snapshot: " + file);
+        int[] header = new int[6];
+        buffer.position(0);
+        buffer.asIntBuffer().get(header);
+        buffer.position(header.length * 4);
+        if (header[1] != VERSION)
+            throw new IllegalArgumentException("Unsupported snapshot version " + header[1] + " in " + file + ", expected " + VERSION);
+        return header;
+    }
+
+    private static ProblemDefinition readDefinition(ByteBuffer buffer, int[] header) {
+        int programCount = header[3];
+        int participantCount = header[4];
+        int preferenceTotal = header[5];
+
+        int[] programIds = getInts(buffer, programCount);
+        byte[] possibleMask = getBytes(buffer, programCount);
+        int[] minPlaces = getInts(buffer, programCount);
+        int[] maxPlaces = getInts(buffer, programCount);
+        int[] maxOccurance = getInts(buffer, programCount);
+        int[] continuation = getInts(buffer, programCount);
+        Integer[] countinueOnSlot = new Integer[programCount];
+        for (int i = 0; i < programCount; i++) if (continuation[i] != 0) countinueOnSlot[i] = continuation[i];
+        byte[] rover = getBytes(buffer, programCount);
+        boolean[] roverRecommended = new boolean[programCount];
+        for (int i = 0; i < programCount; i++) roverRecommended[i] = rover[i] != 0;
+        String[] programNames = getStrings(buffer, programCount);
+        String[] keywords = getStrings(buffer, programCount);
+        String[] authors = getStrings(buffer, programCount);
+        String[] descriptions = getStrings(buffer, programCount);
+        String[] types = getStrings(buffer, programCount);
+
+        String[] participantIds = getStrings(buffer, participantCount);
+        int[] preferenceStart = getInts(buffer, participantCount + 1);
+        short[] preferenceProgram = new short[preferenceTotal];
+        buffer.asShortBuffer().get(preferenceProgram);
+        buffer.position(buffer.position() + preferenceTotal * 2);
+        byte[] presentMask = getBytes(buffer, participantCount);
+
+        int[] facilitatorStart = getInts(buffer, programCount + 1);
+        int[] facilitatorIndices = getInts(buffer, facilitatorStart[programCount]);
+        int[][] facilitators = new int[programCount][];
+        for (int i = 0; i < programCount; i++)
+            facilitators[i] = Arrays.copyOfRange(facilitatorIndices, facilitatorStart[i], facilitatorStart[i + 1]);
+
+        return new ProblemDefinition(programIds, programNames, possibleMask, minPlaces, maxPlaces, maxOccurance,
+                countinueOnSlot, keywords, authors, descriptions, types, roverRecommended, participantIds,
+                preferenceStart, preferenceProgram, presentMask, facilitators);
+    }
+
+    /**
+     * Bring the problem from its initial state to the stored solution through the assignment, so that the
+     * rosters, statistics and top preference index are consistent.
+     */
+    private static void readAssignment(ByteBuffer buffer, Problem problem) {
+        Assignment state = problem.getAssignment();
+        ProblemDefinition definition = state.getDefinition();
+        int programCount = definition.getProgramCount();
+        int participantCount = definition.getParticipantCount();
+
+        byte[] activeMask = getBytes(buffer, programCount);
+        byte[] resolved = getBytes(buffer, programCount);
+        byte[] presentMask = getBytes(buffer, participantCount);
+        int[] preferenceCursor = getInts(buffer, participantCount);
+        int[] allocated = getInts(buffer, participantCount * SLOTS);
+
+        for (int program = 0; program < programCount; program++) {
+            for (int slot = 0; slot < SLOTS; slot++)
+                if ((activeMask[program] & 1 << slot) != 0) state.setActive(program, slot, true);
+            state.resolved[program] = resolved[program] != 0;
+        }
+        for (int p = 0; p < participantCount; p++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                boolean present = (presentMask[p] & 1 << slot) != 0;
+                if (present != state.isPresent(p, slot)) state.setPresent(p, slot, present);
+            }
+            for (int i = 0; i < preferenceCursor[p]; i++) state.popPreference(p);
+            for (int slot = 0; slot < SLOTS; slot++) {
+                int rank = allocated[p * SLOTS + slot];
+                if (rank == Assignment.NONE) continue;
+                if ((rank & Assignment.CONTINUATION) != 0) state.assignContinuation(p, slot, rank & ~Assignment.CONTINUATION);
+                else state.assign(p, slot, rank);
+            }
+        }
+        problem.pruneResolvedParticipants();
+        problem.pruneResolvedPrograms();
+    }
+
+    private static byte[][] encode(String[] strings) {
+        byte[][] encoded = new byte[strings.length][];
+        for (int i = 0; i < strings.length; i++)
+            encoded[i] = strings[i] == null ? null : strings[i].getBytes(StandardCharsets.UTF_8);
+        return encoded;
+    }
+
+    private static long size(byte[][] strings) {
+        long size = 0;
+        for (byte[] string : strings) size += 4 + (string == null ? 0 : string.length);
+        return size;
+    }
+
+    // Strings are written as their length in bytes, -1 for null, followed by the UTF-8 bytes
+    private static void putStrings(ByteBuffer buffer, byte[][] strings) {
+        for (byte[] string : strings) {
+            if (string == null) {
+                buffer.putInt(-1);
+            } else {
+                buffer.putInt(string.length);
+                buffer.put(string);
+            }
+        }
+    }
+
+    private static String[] getStrings(ByteBuffer buffer, int count) {
+        String[] strings = new String[count];
+        for (int i = 0; i < count; i++) {
+            int length = buffer.getInt();
+            if (length < 0) continue;
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            strings[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return strings;
+    }
+
+    private static void putInts(ByteBuffer buffer, int[] values) {
+        buffer.asIntBuffer().put(values);
+        buffer.position(buffer.position() + values.length * 4);
+    }
+
+    private static int[] getInts(ByteBuffer buffer, int count) {
+        int[] values = new int[count];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + count * 4);
+        return values;
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer, int count) {
+        byte[] values = new byte[count];
+        buffer.get(values);
+        return values;
+    }
+}
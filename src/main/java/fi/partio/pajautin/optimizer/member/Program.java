@@ -1,161 +1,139 @@
 package fi.partio.pajautin.optimizer.member;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.File;
 import java.util.*;
-import java.util.stream.Collectors;
 
 public class Program {
 
     private static final Logger log = LogManager.getLogger(Program.class);
 
-    private Integer countinueOnSlot;
-
     public int MAX_SCORE = 30;
 
-    private boolean isDummy;
-
-    private Map<Object,Object> JSONData;
-
-    String name;
-    int id;
-
-    // Timeslots where this program is possible to be
-    boolean[] possibleTimeSlots;
-
-    // Timeslots where this program has been allocated
-    boolean[] allocatedTimeSlots;
-
-    int minPlaces;
-
-    int maxPlaces;
-
-    // How many times this program can repeat
-    int maxOccurance;
-
-    // How many time this program actually repeats
-    int realizedOccurance;
+    private final Problem problem;
 
-    // How many different combinations of time slot allocation this program can have
-    int combinations;
+    // Index of the program in the problem definition, -1 for dummy programs
+    private final int index;
 
-    int possibleTimeSlotCount;
+    private final boolean isDummy;
 
-    int primaryPreferenceCount;
+    final String name;
+    final int id;
 
-    boolean isResolved;
-
-    int[] slotPreference;
-
-    List<Participant> facilitators;
-
-
-    HashMap<String, Participant>[] assignedParticipants;
+    // Dummy program standing for the continuation of this one, created on first use
+    private Program continuationPlaceholder;
 
     public Program (int id, String name) {
+        this.problem = null;
+        this.index = -1;
         this.id = id;
         this.name = name;
         this.isDummy = true;
     }
 
-    public Program(Map<Object, Object> JSONData) {
-        this.name = JSONData.get("name") + "";
-        this.allocatedTimeSlots = new boolean[]{false, false, false};
-        this.possibleTimeSlots = new boolean[]{false, false, false};
-        possibleTimeSlots[0] = "TRUE".equals(JSONData.get("slot1"));
-        possibleTimeSlots[1] = "TRUE".equals(JSONData.get("slot2"));
-        possibleTimeSlots[2] = "TRUE".equals(JSONData.get("slot3"));
-        this.maxPlaces = safeParseInt(JSONData.get("maxSize"), 30);
-        this.minPlaces = safeParseInt(JSONData.get("minSize"), 5);
-        this.maxOccurance = safeParseInt(JSONData.get("availableSlots"), 1);
-        this.id = Integer.parseInt(JSONData.get("id") + "");
-        if (JSONData.containsKey("countinueInSlot") && !JSONData.get("countinueInSlot").equals(""))
-            this.countinueOnSlot = Integer.parseInt(JSONData.get("countinueInSlot") + "");
-        this.JSONData = JSONData;
+    /**
+     * Creates a view to the program with given index. Program data is read from the problem definition and
+     * the time slot allocation and participants from the problem's assignment.
+     */
+    Program(Problem problem, int index) {
+        this.problem = problem;
+        this.index = index;
+        this.id = problem.getDefinition().programIds[index];
+        this.name = problem.getDefinition().programNames[index];
+        this.isDummy = false;
+    }
 
-        possibleTimeSlotCount = 0;
-        for (boolean b : possibleTimeSlots)
-            if (b) possibleTimeSlotCount++;
 
-        combinations = calculateCombinations(maxOccurance, possibleTimeSlotCount);
-        assignedParticipants = new HashMap[]{new HashMap<>(), new HashMap<>(), new HashMap<>()};
-        slotPreference = new int[]{0, 0, 0};
-        facilitators = new ArrayList<>();
+    private Assignment state() {
+        return problem.getAssignment();
     }
 
+    private ProblemDefinition definition() {
+        return problem.getDefinition();
+    }
 
-    public void calculatePrimaryPreferenceCount(List<Participant> participantList) {
-        primaryPreferenceCount = 0;
-        for (Participant p : participantList)
-            if (p.preferences.size() > 0 && p.preferences.peek().getProgramId() == id) primaryPreferenceCount++;
+    /**
+     * Update the number of unprocessed participants who have this program as their top preference
+     */
+    public void calculatePrimaryPreferenceCount() {
+        state().primaryPreferenceCount[index] = state().getTopPreferences().getCount(index);
     }
 
 
     public int getPrimaryPreferenceCount() {
-        return primaryPreferenceCount;
+        return state().primaryPreferenceCount[index];
     }
 
     public int getFirstPossibleSlot() {
-        for (int i = 0; i < possibleTimeSlots.length; i++)
-            if (possibleTimeSlots[i]) return i;
+        for (int i = 0; i < ProblemDefinition.SLOT_COUNT; i++)
+            if (definition().isPossible(index, i)) return i;
         return -1;
     }
 
     public void assignToSlot(int slot) {
-        int assignedSlotCount = 0;
-        for (boolean as : allocatedTimeSlots)
-            if (as) assignedSlotCount++;
-        if (assignedSlotCount >= possibleTimeSlotCount) {
+        if (getAllocatedTimeSlotCount() >= getPossibleTimeSlotCount()) {
             log.info("Could not assign program with id " + id + " to slot " + slot + 1 + " since the program has already been assigned to maximum number of slots it can have.");
             return;
         }
-        if (possibleTimeSlots[slot] == false) {
+        if (!definition().isPossible(index, slot)) {
             log.info("Could not assign program with id " + id + " to slot " + slot + 1 + " since that slot is not possible for this program.");
             return;
         }
-        allocatedTimeSlots[slot] = true;
+        state().setActive(index, slot, true);
 
         // If facilitator is assigned to this program, remove him from other programs and set him as not present
-        for (Participant p : facilitators) {
+        for (Participant p : getFacilitatorParticipants()) {
             p.unAssignSlot(slot);
-            p.getPresent()[slot] = false;
+            p.setPresent(slot, false);
         }
     }
 
     /**
-     * Calculate how many combinations this program can have
-     * (i.e. how many ways it can appear in the time slots)
+     * Opposite of assignToSlot: remove the program from the slot, unassign its participants there and let the
+     * facilitators take part in other programs again, unless they facilitate another program in the slot
      */
-    private int calculateCombinations(int occurance, int possibilities) {
-        // Return trivial solution for 3 time slots
-        if (possibilities == 1) return 1;
-        if (possibilities == occurance) return 1;
-        if (possibilities == 2 && occurance == 1) return 2;
-        return 3; // 3 combinations for both cases 3-1 and 3-2
-
+    public void unassignFromSlot(int slot) {
+        if (!isActiveInSlot(slot)) return;
+        Assignment state = state();
+        while (state.getAssignedCount(index, slot) > 0) state.unassign(state.getAssigned(index, slot, 0), slot);
+        state.setActive(index, slot, false);
+
+        ProblemDefinition definition = definition();
+        for (int facilitator : definition.facilitators[index]) {
+            boolean facilitating = false;
+            for (int i = 0; i < definition.getFacilitatedProgramCount(facilitator); i++) {
+                int other = definition.getFacilitatedProgram(facilitator, i);
+                if (other != index && state.isActive(other, slot)) facilitating = true;
+            }
+            if (!facilitating) state.setPresent(facilitator, slot, definition.isPresent(facilitator, slot));
+        }
     }
 
     /**
-     * Calculates how many participants wants (and is able to) to go to this program in each of the timeslots available
-
-     *
-     * @param participants Participant list used
+     * Calculates how many unprocessed participants wants (and is able to) to go to this program in each of the
+     * timeslots available
      */
-    public void calulateTimeslotPreference(ArrayList<Participant> participants) {
-        for (int i=0; i<slotPreference.length; i++)
-            slotPreference[i]=0;
-
-        for (Participant participant : participants) {
-            if (participant.getPreferences().size() > 0 && participant.peekTopPreference().getProgramId() == this.id) {
-                for (int slot = 0; slot < possibleTimeSlots.length; slot++) {
-                    if (possibleTimeSlots[slot] && participant.isCurrentlyFreeAtSlot(slot)) slotPreference[slot]++;
-                }
-            }
+    public void calulateTimeslotPreference() {
+        int[] slotPreference = state().slotPreference;
+        int offset = index * ProblemDefinition.SLOT_COUNT;
+        for (int slot = 0; slot < ProblemDefinition.SLOT_COUNT; slot++) {
+            slotPreference[offset + slot] = definition().isPossible(index, slot) ? state().getTopPreferences().getFreeCount(index, slot) : 0;
         }
     }
 
+    /**
+     * @return unprocessed participants who have this program as their top preference, in input order
+     */
+    @JsonIgnore
+    public List<Participant> getParticipantsWithTopPreference() {
+        int[] indices = state().getTopPreferences().getParticipants(index);
+        List<Participant> result = new ArrayList<>(indices.length);
+        for (int participant : indices) result.add(problem.getParticipantAt(participant));
+        return result;
+    }
+
     /**
      * Finds most popular available time slot for this program, accoring to slotPreference
      * Assumes that calculateTimeslotPreference has been called before, otherwise just allocates first
@@ -165,32 +143,33 @@ public class Program {
      * - Not yet allocated
      * - Available timeslot for that program
      *
+     * @param random Random source used when no slot is preferred over the others
      * @return number of most popular timeslot, or -1 if there is no more timeslots available
      */
-    public int findMostPopularFreeAndUnallocatedTimeSlot() {
+    public int findMostPopularFreeAndUnallocatedTimeSlot(Random random) {
 
         // No more occurances can be created.
-        if (getAllocatedTimeSlotCount()>=maxOccurance) return  -1;
+        if (getAllocatedTimeSlotCount()>=getMaxOccurance()) return  -1;
 
         int mostPopularSlot = -1;
         int mostPopularCount = 0;
-        for (int i = 0; i < possibleTimeSlots.length; i++) {
-            if (hasSpace(i) && possibleTimeSlots[i] && !allocatedTimeSlots[i] && slotPreference[i] > mostPopularCount) {
+        for (int i = 0; i < ProblemDefinition.SLOT_COUNT; i++) {
+            if (hasSpace(i) && isFreeAndPossible(i) && getSlotPreference(i) > mostPopularCount) {
                 mostPopularSlot = i;
-                mostPopularCount = slotPreference[i];
+                mostPopularCount = getSlotPreference(i);
             }
         }
         if (mostPopularCount==0) {
             if (getAllocatedTimeSlotCount()==0) {
                 // if no timeslots have been allocated yet, allocate one timeslot at random
                 ArrayList<Integer> possibleSlots = new ArrayList<>();
-                for (int i = 0; i < possibleTimeSlots.length; i++) {
-                    if (hasSpace(i) && possibleTimeSlots[i] && !allocatedTimeSlots[i]) {
+                for (int i = 0; i < ProblemDefinition.SLOT_COUNT; i++) {
+                    if (hasSpace(i) && isFreeAndPossible(i)) {
                         possibleSlots.add(i);
                     }
                 }
                 if (possibleSlots.size()>0) {
-                    mostPopularSlot = possibleSlots.get((int) (Math.random() * possibleSlots.size()));
+                    mostPopularSlot = possibleSlots.get(random.nextInt(possibleSlots.size()));
                 }
                 else {
                     log.info("No more slots available for program with id " + id);
@@ -206,35 +185,29 @@ public class Program {
         return mostPopularSlot;
     }
 
+    private boolean isFreeAndPossible(int slot) {
+        return definition().isPossible(index, slot) && !state().isActive(index, slot);
+    }
+
     public void increseSlotPreference(int slot, int increment) {
-        slotPreference[slot] += increment;
+        state().slotPreference[index * ProblemDefinition.SLOT_COUNT + slot] += increment;
     }
 
     public int getSlotPreference(int slot) {
-        return slotPreference[slot];
+        return state().slotPreference[index * ProblemDefinition.SLOT_COUNT + slot];
     }
 
     public void resetSlotPreferences() {
-        slotPreference[0] = 0;
-        slotPreference[1] = 0;
-        slotPreference[2] = 0;
+        for (int slot = 0; slot < ProblemDefinition.SLOT_COUNT; slot++)
+            state().slotPreference[index * ProblemDefinition.SLOT_COUNT + slot] = 0;
     }
 
     public boolean hasSpace(int slot) {
-        return assignedParticipants[slot].size() < maxPlaces;
-    }
-
-    public void assignParticipant(Participant p, int slot) {
-        assignedParticipants[slot].put(p.getId(), p);
+        return state().getAssignedCount(index, slot) < getMaxPlaces();
     }
 
     public void setResolved() {
-        isResolved = true;
-    }
-
-    public void setResolved(boolean[] allocatedTimeSlots) {
-        this.allocatedTimeSlots = allocatedTimeSlots;
-        this.isResolved = true;
+        state().resolved[index] = true;
     }
 
 
@@ -246,97 +219,115 @@ public class Program {
         return id;
     }
 
+    @JsonIgnore
+    public int getIndex() {
+        return index;
+    }
+
     public boolean[] getPossibleTimeSlots() {
+        if (isDummy) return null;
+        boolean[] possibleTimeSlots = new boolean[ProblemDefinition.SLOT_COUNT];
+        for (int slot = 0; slot < possibleTimeSlots.length; slot++) possibleTimeSlots[slot] = definition().isPossible(index, slot);
         return possibleTimeSlots;
     }
 
+    /**
+     * @return true if this program may run in the given slot
+     */
+    public boolean isPossibleInSlot(int slot) {
+        return !isDummy && definition().isPossible(index, slot);
+    }
+
     public boolean[] getAllocatedTimeSlots() {
+        if (isDummy) return null;
+        boolean[] allocatedTimeSlots = new boolean[ProblemDefinition.SLOT_COUNT];
+        for (int slot = 0; slot < allocatedTimeSlots.length; slot++) allocatedTimeSlots[slot] = state().isActive(index, slot);
         return allocatedTimeSlots;
     }
 
+    public boolean isActiveInSlot(int slot) {
+        return !isDummy && state().isActive(index, slot);
+    }
+
     public int getAllocatedTimeSlotCount() {
-        int count =0;
-        for (int i=0; i<allocatedTimeSlots.length; i++) {
-            if (allocatedTimeSlots[i]) count ++;
-        }
-        return count;
+        return Integer.bitCount(state().getActiveMask(index));
     }
 
     public int getParticipantsInSlot(int slot) {
-        if (assignedParticipants[slot]==null) return 0;
-        return assignedParticipants[slot].size();
+        if (isDummy) return 0;
+        return state().getAssignedCount(index, slot);
     }
 
     public int getMinPlaces() {
-        return minPlaces;
+        return definition().minPlaces[index];
     }
 
     public int getMaxPlaces() {
-        return maxPlaces;
+        return definition().maxPlaces[index];
     }
 
     public int getMaxOccurance() {
-        return maxOccurance;
+        return definition().maxOccurance[index];
     }
 
+    /**
+     * @return how many times this program actually repeats
+     */
     public int getRealizedOccurance() {
-        return realizedOccurance;
+        return getAllocatedTimeSlotCount();
     }
 
     public int getPossibleTimeSlotCount() {
-        return possibleTimeSlotCount;
+        return definition().possibleTimeSlotCount[index];
     }
 
     public int getCombinations() {
 
-        return combinations;
+        return definition().combinations[index];
     }
 
     public int getTotalAssignedParticipants() {
         int count = 0;
-        for (int i=0; i<assignedParticipants.length; i++) {
-            count+=assignedParticipants[i].size();
+        for (int i=0; i<ProblemDefinition.SLOT_COUNT; i++) {
+            count+=state().getAssignedCount(index, i);
         }
         return count;
     }
 
     public boolean isResolved() {
-        return isResolved;
+        return state().resolved[index];
     }
 
     @Override
     public String toString() {
         return "Program{" +
                 "id=" + id +
-                ", assigned participants=" + assignedParticipants[0].size() + "," + assignedParticipants[1].size() + "," + assignedParticipants[2].size() +
-                ", maxPlaces=" + maxPlaces +
-                ", minPlaces=" + minPlaces +
-
-                ", activeTimeSlots=" + Arrays.toString(allocatedTimeSlots) +
-                ", possibleTimeSlots=" + Arrays.toString(possibleTimeSlots) +
-                ", timeSlotPreference=" + Arrays.toString(slotPreference) +
-                ", occurances=" + maxOccurance +
-                ", primaryPreferenceCount=" + primaryPreferenceCount +
+                ", assigned participants=" + getParticipantsInSlot(0) + "," + getParticipantsInSlot(1) + "," + getParticipantsInSlot(2) +
+                ", maxPlaces=" + getMaxPlaces() +
+                ", minPlaces=" + getMinPlaces() +
+
+                ", activeTimeSlots=" + Arrays.toString(getAllocatedTimeSlots()) +
+                ", possibleTimeSlots=" + Arrays.toString(getPossibleTimeSlots()) +
+                ", timeSlotPreference=" + Arrays.toString(getSlotPreference()) +
+                ", occurances=" + getMaxOccurance() +
+                ", primaryPreferenceCount=" + getPrimaryPreferenceCount() +
                 ", name='" + name + '\'' +
                 '}';
     }
 
-
-    private int safeParseInt(Object o, int def) {
-        try {
-            return Integer.parseInt("" + o);
-        } catch (Exception e) {
-            log.info("Warning, could not parse " + o + " using default value " + def);
-            return def;
-        }
-    }
-
-    public HashMap<String, Participant> getAssignedParticipants(int slot) {
-        return assignedParticipants[slot];
+    /**
+     * @return participants assigned to this program in the slot, in assignment order
+     */
+    public List<Participant> getAssignedParticipants(int slot) {
+        int count = getParticipantsInSlot(slot);
+        List<Participant> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            result.add(problem.getParticipantAt(state().getAssigned(index, slot, i)));
+        return result;
     }
 
-    public void unAssignParticipant(Participant participant, int slot) {
-        assignedParticipants[slot].remove(participant.getId());
+    public boolean hasAssignedParticipant(Participant participant, int slot) {
+        return !isDummy && state().isAssigned(index, slot, participant.getIndex());
     }
 
     @Override
@@ -353,15 +344,17 @@ public class Program {
     }
 
     public int[] getSlotPreference() {
-        return slotPreference;
+        if (isDummy) return null;
+        int offset = index * ProblemDefinition.SLOT_COUNT;
+        return Arrays.copyOfRange(state().slotPreference, offset, offset + ProblemDefinition.SLOT_COUNT);
     }
 
     public List<List<String>> getAssignedParticipants() {
         List<List<String>> result = new ArrayList<>();
-        for (int i=0; i<assignedParticipants.length; i++) {
+        for (int i=0; i<ProblemDefinition.SLOT_COUNT; i++) {
             List<String> slot = new ArrayList<>();
-            for (Participant p : assignedParticipants[i].values()) {
-                slot.add(p.getId());
+            for (int j = 0; j < getParticipantsInSlot(i); j++) {
+                slot.add(definition().participantIds[state().getAssigned(index, i, j)]);
             }
             result.add(slot);
         }
@@ -369,16 +362,39 @@ public class Program {
     }
 
 
-    public void addFacilitator(Participant facilitator) {
-        facilitators.add(facilitator);
+    /**
+     * @return ids of the facilitators, see getFacilitatorParticipants for the participants
+     */
+    public List<String> getFacilitators() {
+        List<String> result = new ArrayList<>();
+        for (Participant facilitator : getFacilitatorParticipants()) result.add(facilitator.getId());
+        return result;
     }
 
-    public List<String> getFacilitators() {
-        return facilitators.stream().map(f -> f.getId()).collect(Collectors.toList());
+    /**
+     * @return facilitators of the program as participants of the same problem
+     */
+    @JsonIgnore
+    public List<Participant> getFacilitatorParticipants() {
+        if (isDummy) return Collections.emptyList();
+        int[] facilitators = definition().facilitators[index];
+        List<Participant> result = new ArrayList<>(facilitators.length);
+        for (int facilitator : facilitators) result.add(problem.getParticipantAt(facilitator));
+        return result;
+    }
+
+    /**
+     * @return dummy program that takes the slot this program continues to
+     */
+    @JsonIgnore
+    public Program getContinuationPlaceholder() {
+        if (continuationPlaceholder == null) continuationPlaceholder = new Program(id + 1000, "Jatkuu: " + name);
+        return continuationPlaceholder;
     }
 
     public Integer getCountinueOnSlot() {
-        return countinueOnSlot;
+        if (isDummy) return null;
+        return definition().countinueOnSlot[index];
     }
 
     public boolean isDummy() {
@@ -386,11 +402,56 @@ public class Program {
     }
 
 
+    /**
+     * @return the program in the format of programs.json
+     */
     public Map<Object, Object> getJSONData() {
-        return JSONData;
-    }
-
-    public void setJSONData(Map<Object, Object> JSONData) {
-        this.JSONData = JSONData;
+        if (isDummy) return null;
+        ProblemDefinition definition = definition();
+        Map<Object, Object> data = new LinkedHashMap<>();
+        data.put("id", definition.programIds[index] + "");
+        data.put("name", definition.programNames[index]);
+        for (int slot = 0; slot < ProblemDefinition.SLOT_COUNT; slot++)
+            data.put("slot" + (slot + 1), definition.isPossible(index, slot) ? "TRUE" : "FALSE");
+        data.put("maxSize", definition.maxPlaces[index] + "");
+        data.put("minSize", definition.minPlaces[index] + "");
+        data.put("availableSlots", definition.maxOccurance[index] + "");
+        data.put("countinueInSlot", definition.countinueOnSlot[index] == null ? "" : definition.countinueOnSlot[index] + "");
+        data.put("keywords", definition.keywords[index]);
+        data.put("author", definition.authors[index]);
+        data.put("description", definition.descriptions[index]);
+        data.put("roverRecommended", definition.roverRecommended[index] ? "TRUE" : "FALSE");
+        data.put("type", definition.types[index]);
+        return data;
+    }
+
+    @JsonIgnore
+    public String getKeywords() {
+        if (isDummy) return null;
+        return definition().keywords[index];
+    }
+
+    @JsonIgnore
+    public String getAuthor() {
+        if (isDummy) return null;
+        return definition().authors[index];
+    }
+
+    @JsonIgnore
+    public String getDescription() {
+        if (isDummy) return null;
+        return definition().descriptions[index];
+    }
+
+    @JsonIgnore
+    public String getType() {
+        if (isDummy) return null;
+        return definition().types[index];
+    }
+
+    @JsonIgnore
+    public boolean isRoverRecommended() {
+        if (isDummy) return false;
+        return definition().roverRecommended[index];
     }
 }
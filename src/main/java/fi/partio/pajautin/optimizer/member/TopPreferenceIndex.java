@@ -0,0 +1,157 @@
+package fi.partio.pajautin.optimizer.member;
+
+import java.util.Arrays;
+
+/**
+ * Inverted index from each program to the unprocessed participants whose current top preference it is, with
+ * the number of those participants that are free (present and not allocated) in each time slot.
+ *
+ * The index is owned by an Assignment, which updates it whenever a preference is popped, a slot is assigned
+ * or unassigned or presence changes. Participants are removed from the index for good when they are pruned
+ * from the unprocessed participants of the problem.
+ */
+public class TopPreferenceIndex {
+
+    private static final int SLOTS = ProblemDefinition.SLOT_COUNT;
+
+    final Assignment assignment;
+
+    // Participant state, indexed by participant index
+    // Whether the participant is still unprocessed, i.e. included in the index
+    final boolean[] member;
+    // Program under which the participant is indexed, Assignment.NONE if none
+    final int[] indexedProgram;
+    // Free slots of the participant when indexed, as a bitmask
+    final byte[] indexedFreeMask;
+    // Position of the participant in the member list of the indexed program
+    final int[] memberPosition;
+
+    // Program state, indexed by program index
+    // Participant indices whose top preference is the program, first memberCount entries are in use
+    final int[][] members;
+    final int[] memberCount;
+    // Number of those participants who are free in each time slot, at program * SLOT_COUNT + slot
+    final int[] freeCount;
+
+    TopPreferenceIndex(Assignment assignment) {
+        this.assignment = assignment;
+        int participantCount = assignment.definition.getParticipantCount();
+        int programCount = assignment.definition.getProgramCount();
+
+        member = new boolean[participantCount];
+        indexedProgram = new int[participantCount];
+        indexedFreeMask = new byte[participantCount];
+        memberPosition = new int[participantCount];
+
+        members = new int[programCount][];
+        for (int p = 0; p < programCount; p++) members[p] = new int[16];
+        memberCount = new int[programCount];
+        freeCount = new int[programCount * SLOTS];
+    }
+
+    TopPreferenceIndex(Assignment assignment, TopPreferenceIndex other) {
+        this.assignment = assignment;
+        member = other.member.clone();
+        indexedProgram = other.indexedProgram.clone();
+        indexedFreeMask = other.indexedFreeMask.clone();
+        memberPosition = other.memberPosition.clone();
+
+        members = new int[other.members.length][];
+        for (int p = 0; p < members.length; p++) members[p] = other.members[p].clone();
+        memberCount = other.memberCount.clone();
+        freeCount = other.freeCount.clone();
+    }
+
+    void restore(TopPreferenceIndex snapshot) {
+        System.arraycopy(snapshot.member, 0, member, 0, member.length);
+        System.arraycopy(snapshot.indexedProgram, 0, indexedProgram, 0, indexedProgram.length);
+        System.arraycopy(snapshot.indexedFreeMask, 0, indexedFreeMask, 0, indexedFreeMask.length);
+        System.arraycopy(snapshot.memberPosition, 0, memberPosition, 0, memberPosition.length);
+        for (int p = 0; p < members.length; p++) members[p] = snapshot.members[p].clone();
+        System.arraycopy(snapshot.memberCount, 0, memberCount, 0, memberCount.length);
+        System.arraycopy(snapshot.freeCount, 0, freeCount, 0, freeCount.length);
+    }
+
+    /**
+     * Index all participants by their current top preference. Assignment must be reset before this.
+     */
+    void reset() {
+        Arrays.fill(member, true);
+        Arrays.fill(indexedProgram, Assignment.NONE);
+        Arrays.fill(memberCount, 0);
+        Arrays.fill(freeCount, 0);
+        for (int i = 0; i < member.length; i++) add(i);
+    }
+
+    /**
+     * Remove the participant from the index before its top preference, allocations or presence change
+     */
+    void remove(int participant) {
+        int program = indexedProgram[participant];
+        if (program == Assignment.NONE) return;
+
+        int position = memberPosition[participant];
+        int last = members[program][--memberCount[program]];
+        members[program][position] = last;
+        memberPosition[last] = position;
+
+        for (int slot = 0; slot < SLOTS; slot++)
+            if ((indexedFreeMask[participant] & (1 << slot)) != 0) freeCount[program * SLOTS + slot]--;
+        indexedProgram[participant] = Assignment.NONE;
+    }
+
+    /**
+     * Add the participant back to the index after its top preference, allocations or presence have changed
+     */
+    void add(int participant) {
+        if (!member[participant]) return;
+        int program = assignment.getTopPreference(participant);
+        if (program == Assignment.NONE) return;
+
+        if (memberCount[program] == members[program].length)
+            members[program] = Arrays.copyOf(members[program], members[program].length * 2);
+        memberPosition[participant] = memberCount[program];
+        members[program][memberCount[program]++] = participant;
+
+        byte freeMask = 0;
+        for (int slot = 0; slot < SLOTS; slot++) {
+            if (assignment.isPresent(participant, slot) && assignment.getAllocated(participant, slot) == Assignment.NONE) {
+                freeMask |= 1 << slot;
+                freeCount[program * SLOTS + slot]++;
+            }
+        }
+        indexedFreeMask[participant] = freeMask;
+        indexedProgram[participant] = program;
+    }
+
+    /**
+     * Remove a processed participant from the index permanently (until reset)
+     */
+    public void removeMember(int participant) {
+        remove(participant);
+        member[participant] = false;
+    }
+
+    /**
+     * @return number of unprocessed participants whose top preference is the program
+     */
+    public int getCount(int program) {
+        return memberCount[program];
+    }
+
+    /**
+     * @return number of unprocessed participants whose top preference is the program and who are free in the slot
+     */
+    public int getFreeCount(int program, int slot) {
+        return freeCount[program * SLOTS + slot];
+    }
+
+    /**
+     * @return indices of the unprocessed participants whose top preference is the program, in ascending order
+     */
+    public int[] getParticipants(int program) {
+        int[] result = Arrays.copyOf(members[program], memberCount[program]);
+        Arrays.sort(result);
+        return result;
+    }
+}